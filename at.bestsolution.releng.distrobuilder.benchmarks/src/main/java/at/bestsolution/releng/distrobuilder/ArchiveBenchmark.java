@@ -0,0 +1,83 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compressing a distro and extracting a target SDK, the two phases which
+ * dominate a build once the director is done.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ArchiveBenchmark {
+    @Param({ "zip", "tar.gz" })
+    public String format;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    /** see {@link SdkTreeGenerator#SdkTreeGenerator(long, double)} */
+    @Param({ "0.1" })
+    public double scale;
+
+    private File workDir;
+    private File tree;
+    private File archive;
+    private File output;
+    private File extractDir;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        workDir = Files.createTempDirectory("archive-benchmark").toFile();
+        SdkTreeGenerator generator = new SdkTreeGenerator(42, scale);
+        tree = generator.generate(new File(workDir, "tree"));
+        System.out.println("Generated " + generator.getFiles() + " files with " + generator.getBytes() + " bytes");
+
+        String suffix = ArchiveCodecs.get(format).getSuffix();
+        archive = new File(workDir, "sdk" + suffix);
+        output = new File(workDir, "distro" + suffix);
+        extractDir = new File(workDir, "extract");
+        new ArchiveIO(1, OverlayArchive.DEFAULT_BLOCK_SIZE).compress(tree, archive, null);
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() {
+        output.delete();
+        DistroBuilder.deleteDirectory(extractDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() {
+        DistroBuilder.deleteDirectory(workDir);
+    }
+
+    @Benchmark
+    public ArchiveIO.Counts compress() throws IOException {
+        return new ArchiveIO(threads, OverlayArchive.DEFAULT_BLOCK_SIZE).compress(tree, output, null);
+    }
+
+    @Benchmark
+    public File extract() throws IOException {
+        return new ArchiveExtractor(threads).extract(archive, extractDir, null);
+    }
+}
@@ -0,0 +1,110 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Selecting the install units and static repositories of every target, done
+ * once per version, os and arch while the build is planned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildPlanBenchmark {
+    private static final String[] VERSIONS = { "3.8.2", "4.2.2", "4.3.0" };
+    private static final String[] OSES = { "linux-gtk", "win32", "macosx-cocoa", "solaris-gtk" };
+    private static final String[] ARCHS = { "x86", "x86_64" };
+
+    private final List<InstallUnit> installUnits = new ArrayList<InstallUnit>();
+    private File reposDir;
+
+    @Setup(Level.Trial)
+    public void createInput() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 400; i++) {
+            installUnits.add(new InstallUnit("org.example.feature" + i + ".feature.group",
+                    pick(random, VERSIONS), pick(random, OSES), pick(random, ARCHS)));
+        }
+
+        reposDir = Files.createTempDirectory("plan-benchmark").toFile();
+        for (String version : VERSIONS) {
+            for (String os : OSES) {
+                for (String arch : ARCHS) {
+                    File dir = new File(reposDir, version + "/" + os + "/" + arch);
+                    dir.mkdirs();
+                    for (int i = 0; i < 5; i++) {
+                        new File(dir, "repository" + i + ".zip").createNewFile();
+                    }
+                }
+                new File(reposDir, version + "/" + os + "/repository.zip").createNewFile();
+            }
+            new File(reposDir, version + "/repository.zip").createNewFile();
+        }
+        new File(reposDir, "shared").mkdirs();
+        for (int i = 0; i < 10; i++) {
+            new File(reposDir, "shared/repository" + i + ".zip").createNewFile();
+        }
+    }
+
+    /**
+     * @return <code>null</code> in about a third of the calls, i.e. the unit
+     *         is not restricted
+     */
+    private static String pick(Random random, String[] values) {
+        int i = random.nextInt(values.length + values.length / 2 + 1);
+        return i < values.length ? values[i] : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteInput() {
+        DistroBuilder.deleteDirectory(reposDir);
+    }
+
+    @Benchmark
+    public void filterList(Blackhole bh) {
+        for (String version : VERSIONS) {
+            for (String os : OSES) {
+                for (String arch : ARCHS) {
+                    bh.consume(BuildPlan.filterList(installUnits, version, os, arch));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void collectZipFiles(Blackhole bh) {
+        String root = reposDir.getAbsolutePath();
+        for (String version : VERSIONS) {
+            for (String os : OSES) {
+                for (String arch : ARCHS) {
+                    List<String> zips = new ArrayList<String>();
+                    BuildPlan.collectZipFiles(zips, root, "shared", os, arch);
+                    BuildPlan.collectZipFiles(zips, root, version, os, arch);
+                    bh.consume(zips);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloading a repository into the {@link DownloadCache} from a local HTTP
+ * server, and revalidating a cached one. The server answers conditional
+ * requests with <code>304</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+    private static final String ETAG = "\"benchmark-repository\"";
+
+    /** size of the served repository */
+    @Param({ "16" })
+    public int sizeMb;
+
+    private HttpServer server;
+    private String url;
+    private File workDir;
+    private File freshCache;
+    private File warmCache;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        final byte[] content = new byte[sizeMb * 1024 * 1024];
+        new Random(42).nextBytes(content);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/repository.zip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, content.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(content);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/repository.zip";
+
+        workDir = Files.createTempDirectory("download-benchmark").toFile();
+        freshCache = new File(workDir, "fresh");
+        warmCache = new File(workDir, "warm");
+        download(warmCache);
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() {
+        DistroBuilder.deleteDirectory(freshCache);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.stop(0);
+        DistroBuilder.deleteDirectory(workDir);
+    }
+
+    @Benchmark
+    public File download() throws IOException {
+        return download(freshCache);
+    }
+
+    @Benchmark
+    public File revalidate() throws IOException {
+        return download(warmCache);
+    }
+
+    private File download(File cacheDir) throws IOException {
+        DownloadCache cache = new DownloadCache(cacheDir, 0);
+        RepositoryDownloader downloader = new RepositoryDownloader(cache, 1);
+        try {
+            return downloader.get(url);
+        } finally {
+            downloader.shutdown();
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ParallelGZIPOutputStream} against {@link GZIPOutputStream} on the
+ * tar stream of a generated SDK, the gzip part of writing a
+ * <code>.tar.gz</code> distro without the file system around it. Both
+ * compress with the default level; the compressed size is returned, so the
+ * cost of the dictionary priming and sync flushes shows up next to the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GzipBenchmark {
+    /** see {@link SdkTreeGenerator#SdkTreeGenerator(long, double)} */
+    @Param({ "0.1" })
+    public double scale;
+
+    private byte[] tar;
+
+    /**
+     * Parameters only the parallel stream depends on.
+     */
+    @State(Scope.Benchmark)
+    public static class Parallel {
+        @Param({ "1", "2", "4" })
+        public int threads;
+
+        @Param({ "131072" })
+        public int blockSize;
+    }
+
+    @Setup(Level.Trial)
+    public void createTar() throws IOException {
+        File workDir = Files.createTempDirectory("gzip-benchmark").toFile();
+        try {
+            File tree = new SdkTreeGenerator(42, scale).generate(new File(workDir, "tree"));
+            File archive = new File(workDir, "sdk.tar.gz");
+            new ArchiveIO(1, OverlayArchive.DEFAULT_BLOCK_SIZE).compress(tree, archive, null);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = new GZIPInputStream(new FileInputStream(archive));
+            try {
+                byte[] buf = new byte[ArchiveIO.BUFFER_SIZE];
+                int l;
+                while ((l = in.read(buf)) != -1) {
+                    out.write(buf, 0, l);
+                }
+            } finally {
+                in.close();
+            }
+            tar = out.toByteArray();
+            System.out.println("Compressing a tar stream of " + tar.length + " bytes");
+        } finally {
+            DistroBuilder.deleteDirectory(workDir);
+        }
+    }
+
+    @Benchmark
+    public long jdk() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out, ArchiveIO.BUFFER_SIZE);
+        gzip.write(tar);
+        gzip.close();
+        return out.count;
+    }
+
+    @Benchmark
+    public long parallel(Parallel p) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(out, p.threads, p.blockSize);
+        gzip.write(tar);
+        gzip.close();
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates synthetic directory trees shaped like an Eclipse SDK.
+ * <p>
+ * At scale 1 the tree has about the size of an Eclipse 4.x SDK: 500 bundles
+ * below <code>plugins</code>, most of them jars with a log-normal size
+ * distribution around 60 KB and a few of several MB, the rest unpacked
+ * bundles with many small class and resource files; 60 features, each with
+ * the same license text; and the launcher, configuration and p2 metadata in
+ * the root. Jars and other archives get random content, text files are built
+ * from a small vocabulary so they compress like XML and properties files and
+ * class files lie in between. The content only depends on the seed.
+ * </p>
+ */
+class SdkTreeGenerator {
+    private static final String[] WORDS = { "org", "eclipse", "core", "runtime", "bundle", "plugin", "feature",
+            "version", "name", "id", "provider", "license", "require", "import", "export", "package", "extension",
+            "point", "class", "resource", "property", "value", "equinox", "p2", "osgi", "ui", "jface", "swt", "jdt",
+            "internal", "model", "service", "=", "<", ">", "/>", "\"", "1.0.0", "3.8.0", "true", "false" };
+
+    private final Random random;
+    private final double scale;
+    private final byte[] license;
+    private int files;
+    private long bytes;
+
+    /**
+     * @param scale
+     *            factor applied to the number of bundles and features, e.g.
+     *            <code>0.1</code> for a tree of about 10 MB
+     */
+    SdkTreeGenerator(long seed, double scale) {
+        this.random = new Random(seed);
+        this.scale = scale;
+        this.license = text(24 * 1024);
+    }
+
+    /**
+     * @return the root directory <code>&lt;parent&gt;/eclipse</code>
+     */
+    File generate(File parent) throws IOException {
+        File root = new File(parent, "eclipse");
+        File plugins = new File(root, "plugins");
+        File features = new File(root, "features");
+        plugins.mkdirs();
+        features.mkdirs();
+
+        File launcher = write(new File(root, "eclipse"), binary(80 * 1024));
+        launcher.setExecutable(true);
+        write(new File(root, "eclipse.ini"), text(600));
+        write(new File(root, "artifacts.xml"), text(scaled(900 * 1024)));
+        write(new File(root, "configuration/config.ini"), text(2 * 1024));
+        write(new File(root, "p2/org.eclipse.equinox.p2.engine/profileRegistry/SDKProfile.profile/1.profile.gz"),
+                binary(scaled(600 * 1024)));
+        write(new File(root, "p2/org.eclipse.equinox.p2.core/cache/artifacts.xml"), text(scaled(400 * 1024)));
+
+        int bundles = Math.max(1, scaled(500));
+        for (int i = 0; i < bundles; i++) {
+            String name = "org.eclipse.bundle" + i + "_3.8." + random.nextInt(10) + ".v2012";
+            if (random.nextInt(100) < 85) {
+                write(new File(plugins, name + ".jar"), binary(jarSize()));
+            } else {
+                generateBundleDirectory(new File(plugins, name));
+            }
+        }
+
+        int featureCount = Math.max(1, scaled(60));
+        for (int i = 0; i < featureCount; i++) {
+            File feature = new File(features, "org.eclipse.feature" + i + "_3.8.0.v2012");
+            write(new File(feature, "feature.xml"), text(2 * 1024 + random.nextInt(6 * 1024)));
+            write(new File(feature, "feature.properties"), text(4 * 1024 + random.nextInt(4 * 1024)));
+            write(new File(feature, "license.html"), license);
+            write(new File(feature, "epl-v10.html"), license);
+        }
+        return root;
+    }
+
+    private void generateBundleDirectory(File dir) throws IOException {
+        write(new File(dir, "META-INF/MANIFEST.MF"), text(1024 + random.nextInt(2048)));
+        write(new File(dir, "plugin.xml"), text(1024 + random.nextInt(16 * 1024)));
+        write(new File(dir, "plugin.properties"), text(512 + random.nextInt(4 * 1024)));
+        write(new File(dir, "about.html"), license);
+        int classes = 10 + random.nextInt(60);
+        for (int i = 0; i < classes; i++) {
+            write(new File(dir, "bin/org/eclipse/internal/C" + i + ".class"),
+                    classFile(512 + random.nextInt(12 * 1024)));
+        }
+        if (random.nextBoolean()) {
+            write(new File(dir, "lib/library.jar"), binary(jarSize()));
+        }
+    }
+
+    /**
+     * @return number of files written so far
+     */
+    int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return total size of the files written so far
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    private int scaled(int value) {
+        return (int) Math.round(value * scale);
+    }
+
+    private int jarSize() {
+        double size = Math.exp(Math.log(60 * 1024) + random.nextGaussian() * 1.2);
+        return (int) Math.min(Math.max(size, 1024), 20 * 1024 * 1024);
+    }
+
+    private byte[] binary(int length) {
+        byte[] b = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private byte[] text(int length) {
+        byte[] b = new byte[length];
+        int i = 0;
+        while (i < length) {
+            String w = WORDS[random.nextInt(WORDS.length)];
+            for (int j = 0; j < w.length() && i < length; j++) {
+                b[i++] = (byte) w.charAt(j);
+            }
+            if (i < length) {
+                b[i++] = (byte) (random.nextInt(8) == 0 ? '\n' : ' ');
+            }
+        }
+        return b;
+    }
+
+    /**
+     * @return content which deflates to about half its size
+     */
+    private byte[] classFile(int length) {
+        byte[] b = text(length);
+        for (int i = 0; i < length; i += 2) {
+            b[i] = (byte) random.nextInt();
+        }
+        return b;
+    }
+
+    private File write(File f, byte[] content) throws IOException {
+        f.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        files++;
+        bytes += content.length;
+        return f;
+    }
+}
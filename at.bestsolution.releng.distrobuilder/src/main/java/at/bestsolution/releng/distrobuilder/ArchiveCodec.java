@@ -0,0 +1,35 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An output format for distros, e.g. <code>zip</code> or
+ * <code>tar.gz</code>.
+ * <p>
+ * Besides the built-in codecs (<code>zip</code>, <code>tar.gz</code>,
+ * <code>tar.xz</code> and <code>tar.zst</code>) codecs are looked up with
+ * {@link java.util.ServiceLoader}: a jar on the classpath of the task
+ * registers its implementations in
+ * <code>META-INF/services/at.bestsolution.releng.distrobuilder.ArchiveCodec</code>.
+ * Tar based formats only have to provide the compression streams, see
+ * {@link TarCodec}.
+ * </p>
+ */
+public interface ArchiveCodec {
+    /**
+     * @return the name used to select the codec, e.g. <code>tar.zst</code>
+     */
+    String getName();
+
+    /**
+     * @return the file name suffix of archives written by the codec,
+     *         including the leading dot
+     */
+    String getSuffix();
+
+    /**
+     * Creates a writer for a new archive at <code>targetFile</code>.
+     */
+    ArchiveWriter createWriter(File targetFile, CodecSettings settings) throws IOException;
+}
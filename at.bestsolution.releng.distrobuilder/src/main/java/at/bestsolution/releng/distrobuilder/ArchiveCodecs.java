@@ -0,0 +1,307 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The known {@link ArchiveCodec}s: the built-in ones followed by those
+ * registered with {@link ServiceLoader}.
+ */
+final class ArchiveCodecs {
+    static final String ZIP = "zip";
+    static final String TAR_GZ = "tar.gz";
+
+    /** extensions of formats which are compressed already */
+    private static final Set<String> INCOMPRESSIBLE = new HashSet<String>(Arrays.asList("jar", "war", "zip", "gz",
+            "tgz", "bz2", "xz", "zst", "7z", "png", "gif", "jpg", "jpeg"));
+
+    private static List<ArchiveCodec> codecs;
+
+    private ArchiveCodecs() {
+    }
+
+    private static synchronized List<ArchiveCodec> getCodecs() {
+        if (codecs == null) {
+            List<ArchiveCodec> l = new ArrayList<ArchiveCodec>();
+            l.add(new ZipCodec());
+            l.add(new GzipTarCodec());
+            l.add(new ProcessTarCodec("tar.xz", "xz"));
+            l.add(new ProcessTarCodec("tar.zst", "zstd"));
+            // the classloader of the task, not the context classloader of ant
+            for (ArchiveCodec c : ServiceLoader.load(ArchiveCodec.class, ArchiveCodec.class.getClassLoader())) {
+                l.add(c);
+            }
+            codecs = l;
+        }
+        return codecs;
+    }
+
+    /**
+     * @return the codec named <code>name</code>, the first one wins if
+     *         several have the same name
+     * @throws IOException
+     *             if there is no such codec
+     */
+    static ArchiveCodec get(String name) throws IOException {
+        for (ArchiveCodec c : getCodecs()) {
+            if (c.getName().equals(name)) {
+                return c;
+            }
+        }
+        throw new IOException("Unknown archive format " + name);
+    }
+
+    /**
+     * @return the codec with the longest suffix matching
+     *         <code>fileName</code>, <code>null</code> if there is none
+     */
+    static ArchiveCodec forFile(String fileName) {
+        ArchiveCodec rv = null;
+        for (ArchiveCodec c : getCodecs()) {
+            if (fileName.endsWith(c.getSuffix()) && (rv == null || c.getSuffix().length() > rv.getSuffix().length())) {
+                rv = c;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * @return <code>true</code> if the entry <code>name</code> is of a
+     *         format which is compressed already, like jars and images
+     */
+    static boolean isIncompressible(String name) {
+        int i = name.lastIndexOf('.');
+        return i > name.lastIndexOf('/')
+                && INCOMPRESSIBLE.contains(name.substring(i + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return <code>true</code> if compressing saved less than 2% of the
+     *         data
+     */
+    static boolean isIncompressible(long length, long compressedLength) {
+        return compressedLength > length - length / 50;
+    }
+
+    static class ZipCodec implements ArchiveCodec {
+        @Override
+        public String getName() {
+            return ZIP;
+        }
+
+        @Override
+        public String getSuffix() {
+            return ".zip";
+        }
+
+        @Override
+        public ArchiveWriter createWriter(File targetFile, CodecSettings settings) throws IOException {
+            ExtractionIndex index = settings.getIndex();
+            if (settings.getThreads() > 1 || settings.getCache() != null || settings.isStoreIncompressible()
+                    || (index != null && index.getZipDirectory() != null)) {
+                ParallelZipWriter w = new ParallelZipWriter(targetFile, settings.getThreads(), settings.getLevel());
+                w.setStoreIncompressible(settings.isStoreIncompressible());
+                return new ArchiveIO.ParallelZipEntryWriter(w, index, settings.getCache(),
+                        settings.isStoreIncompressible());
+            }
+            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(targetFile),
+                    ArchiveIO.BUFFER_SIZE));
+            out.setLevel(settings.getLevel());
+            return new ArchiveIO.ZipEntryWriter(out);
+        }
+    }
+
+    static class GzipTarCodec extends TarCodec {
+        @Override
+        public String getName() {
+            return TAR_GZ;
+        }
+
+        @Override
+        public ArchiveWriter createWriter(File targetFile, CodecSettings settings) throws IOException {
+            if (settings.getCache() != null || settings.isStoreIncompressible()) {
+                return new ArchiveIO.TarEntryWriter(new ParallelGZIPOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(targetFile), ArchiveIO.BUFFER_SIZE), settings.getThreads(),
+                        settings.getBlockSize(), settings.getLevel()), settings);
+            }
+            return super.createWriter(targetFile, settings);
+        }
+
+        @Override
+        protected OutputStream compress(File targetFile, CodecSettings settings) throws IOException {
+            if (settings.getThreads() > 1) {
+                return new ParallelGZIPOutputStream(new BufferedOutputStream(new FileOutputStream(targetFile),
+                        ArchiveIO.BUFFER_SIZE), settings.getThreads(), settings.getBlockSize(), settings.getLevel());
+            }
+            final int level = settings.getLevel();
+            return new GZIPOutputStream(new FileOutputStream(targetFile), ArchiveIO.BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+
+        @Override
+        protected InputStream decompress(File archive) throws IOException {
+            return new GZIPInputStream(new FileInputStream(archive), ArchiveIO.BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Pipes the tar data through an external compressor. <code>xz</code>
+     * and <code>zstd</code> share the options used here:
+     * <code>-T&lt;threads&gt;</code> compresses with several threads,
+     * <code>-&lt;level&gt;</code> selects the level (0-9 for xz, 1-19 for
+     * zstd) and <code>-d</code> decompresses.
+     */
+    static class ProcessTarCodec extends TarCodec {
+        private final String name;
+        private final String executable;
+
+        ProcessTarCodec(String name, String executable) {
+            this.name = name;
+            this.executable = executable;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        protected OutputStream compress(File targetFile, CodecSettings settings) throws IOException {
+            List<String> command = new ArrayList<String>();
+            command.add(executable);
+            command.add("-c");
+            command.add("-q");
+            command.add("-T" + settings.getThreads());
+            if (settings.getLevel() != CodecSettings.DEFAULT_LEVEL) {
+                command.add("-" + settings.getLevel());
+            }
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectOutput(targetFile);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            return new ProcessOutputStream(start(builder), executable);
+        }
+
+        @Override
+        protected InputStream decompress(File archive) throws IOException {
+            ProcessBuilder builder = new ProcessBuilder(executable, "-d", "-c", "-q", archive.getAbsolutePath());
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            return new ProcessInputStream(start(builder), executable);
+        }
+
+        private Process start(ProcessBuilder builder) throws IOException {
+            try {
+                return builder.start();
+            } catch (IOException e) {
+                throw new IOException(executable + " is required for " + name + " archives", e);
+            }
+        }
+    }
+
+    static int waitFor(Process p) throws IOException {
+        try {
+            return p.waitFor();
+        } catch (InterruptedException e) {
+            p.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compressor");
+        }
+    }
+
+    /**
+     * Feeds the stdin of a compressor, closing the stream waits for it to
+     * finish.
+     */
+    static class ProcessOutputStream extends FilterOutputStream {
+        private final Process process;
+        private final String executable;
+
+        ProcessOutputStream(Process process, String executable) {
+            super(new BufferedOutputStream(process.getOutputStream(), ArchiveIO.BUFFER_SIZE));
+            this.process = process;
+            this.executable = executable;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                int rv = waitFor(process);
+                if (rv != 0) {
+                    throw new IOException(executable + " failed with exit code " + rv);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the stdout of a decompressor. If the stream is closed before all
+     * data has been read the process is killed, otherwise its exit code is
+     * checked.
+     */
+    static class ProcessInputStream extends FilterInputStream {
+        private final Process process;
+        private final String executable;
+        private boolean eof;
+
+        ProcessInputStream(Process process, String executable) {
+            super(new BufferedInputStream(process.getInputStream(), ArchiveIO.BUFFER_SIZE));
+            this.process = process;
+            this.executable = executable;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int rv = in.read();
+            eof |= rv == -1;
+            return rv;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int rv = in.read(b, off, len);
+            eof |= rv == -1;
+            return rv;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            if (!eof) {
+                process.destroy();
+                return;
+            }
+            int rv = waitFor(process);
+            if (rv != 0) {
+                throw new IOException(executable + " failed with exit code " + rv);
+            }
+        }
+    }
+}
@@ -0,0 +1,656 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+
+/**
+ * Extracts zip archives and the tar archives of all {@link TarCodec}s using
+ * several threads.
+ * <p>
+ * Zip archives are read through their central directory: all directories are
+ * created up front, then the file entries are inflated concurrently, each
+ * worker reading the archive with positional reads on its own channel. The
+ * largest entries are started first so the workers finish at about the same
+ * time. Tar archives have to be decompressed in order, the reading thread
+ * hands the content of small files to the workers and only writes large files
+ * itself.
+ * </p>
+ * <p>
+ * Symbolic links and hard links are restored, unix permissions are applied
+ * where the file system supports them; the owner always keeps read and write
+ * access so the build can update and delete the files.
+ * </p>
+ * <p>
+ * Archives may come from anywhere, so nothing is written outside the target
+ * directory: absolute entry names and names leaving the directory are
+ * rejected, as are entries below a symbolic link, whether restored from the
+ * same archive or already in the directory, and hard links to files outside
+ * the directory.
+ * </p>
+ */
+class ArchiveExtractor {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFLNK = 0120000;
+    private static final int EXEC_BITS = 0111;
+    private static final int OWNER_RW = 0600;
+
+    private static final int TAR_LINK_FLAG_OFFSET = 156;
+    private static final int TAR_HEADER_SIZE = 512;
+
+    /** tar entries up to this size are written by the workers */
+    private static final int SMALL_FILE = 1024 * 1024;
+    /** maximum amount of tar content buffered for the workers */
+    private static final int MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    private static final PosixFilePermission[] PERMISSIONS = PosixFilePermission.values();
+
+    private final int threads;
+    private final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    /**
+     * @param threads
+     *            number of threads writing the extracted files
+     */
+    ArchiveExtractor(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param index
+     *            if not <code>null</code> the modification times of the
+     *            archive entries are applied to the extracted files and
+     *            every file is recorded in the index
+     * @return the first directory found in the archive
+     */
+    public File extract(File compressedFile, File targetDirectory, ExtractionIndex index) throws IOException {
+        ArchiveCodec codec = ArchiveCodecs.forFile(compressedFile.getName());
+        if (codec instanceof TarCodec) {
+            return extractTar(((TarCodec) codec).decompress(compressedFile), targetDirectory, index);
+        } else if (codec != null && codec.getName().equals(ArchiveCodecs.ZIP)) {
+            ZipDirectory directory = index != null && index.getZipDirectory() != null
+                    && index.getZipDirectory().getFile().equals(compressedFile) ? index.getZipDirectory() : null;
+            if (directory == null) {
+                try {
+                    directory = ZipDirectory.read(compressedFile);
+                } catch (IOException e) {
+                    // zip64 or damaged central directory, read the entries
+                    // in order
+                    return extractZipStream(compressedFile, targetDirectory, index);
+                }
+            }
+            return extractZip(directory, targetDirectory, index);
+        }
+        return null;
+    }
+
+    private File extractZip(ZipDirectory directory, File targetDirectory, ExtractionIndex index)
+            throws IOException {
+        File targetDir = null;
+        TargetTree tree = new TargetTree(targetDirectory);
+        // the entries are written concurrently, so every entry is checked
+        // against all links of the archive up front
+        for (ZipDirectory.Entry e : directory.getEntries().values()) {
+            if (!e.isDirectory() && (e.getUnixMode() & S_IFMT) == S_IFLNK) {
+                tree.addLink(tree.resolve(e.name));
+            }
+        }
+        Set<File> dirs = new TreeSet<File>();
+        List<ZipDirectory.Entry> files = new ArrayList<ZipDirectory.Entry>();
+        for (ZipDirectory.Entry e : directory.getEntries().values()) {
+            boolean link = !e.isDirectory() && (e.getUnixMode() & S_IFMT) == S_IFLNK;
+            File f = link ? tree.resolve(e.name) : tree.resolveFile(e.name);
+            if (e.isDirectory()) {
+                dirs.add(f);
+                if (targetDir == null) {
+                    targetDir = f;
+                }
+            } else {
+                if ((e.flags & 1) != 0) {
+                    throw new IOException("Encrypted entry " + e.name + " in " + directory.getFile());
+                }
+                if (e.method != ZipEntry.STORED && e.method != ZipEntry.DEFLATED) {
+                    throw new IOException("Unsupported compression method " + e.method + " of entry " + e.name);
+                }
+                dirs.add(f.getParentFile());
+                files.add(e);
+            }
+        }
+        for (File d : dirs) {
+            d.mkdirs();
+        }
+
+        Collections.sort(files, new Comparator<ZipDirectory.Entry>() {
+            @Override
+            public int compare(ZipDirectory.Entry o1, ZipDirectory.Entry o2) {
+                return Long.compare(o2.compressedSize, o1.compressedSize);
+            }
+        });
+        ZipWorker worker = new ZipWorker(directory, tree, index, files);
+        if (threads == 1 || files.size() < 2) {
+            worker.call();
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int i = 0; i < threads && i < files.size(); i++) {
+                    futures.add(executor.submit(worker));
+                }
+                for (Future<Void> f : futures) {
+                    await(f);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        return targetDir;
+    }
+
+    /**
+     * Extracts the next entry not taken by another worker until all entries
+     * are done.
+     */
+    class ZipWorker implements Callable<Void> {
+        private final ZipDirectory directory;
+        private final TargetTree tree;
+        private final ExtractionIndex index;
+        private final List<ZipDirectory.Entry> files;
+        private final AtomicInteger next = new AtomicInteger();
+
+        ZipWorker(ZipDirectory directory, TargetTree tree, ExtractionIndex index, List<ZipDirectory.Entry> files) {
+            this.directory = directory;
+            this.tree = tree;
+            this.index = index;
+            this.files = files;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(directory.getFile(), "r");
+            Inflater inflater = new Inflater(true);
+            try {
+                ZipEntryReader reader = new ZipEntryReader(raf, inflater);
+                int i;
+                while ((i = next.getAndIncrement()) < files.size()) {
+                    ZipDirectory.Entry e = files.get(i);
+                    writeZipEntry(reader, e, tree.resolve(e.name), index);
+                }
+            } finally {
+                inflater.end();
+                raf.close();
+            }
+            return null;
+        }
+    }
+
+    private void writeZipEntry(ZipEntryReader reader, ZipDirectory.Entry e, File f, ExtractionIndex index)
+            throws IOException {
+        int mode = e.getUnixMode();
+        if ((mode & S_IFMT) == S_IFLNK) {
+            ByteArrayOutputStream target = new ByteArrayOutputStream();
+            reader.read(e, target);
+            symlink(f, new String(target.toByteArray(), UTF8));
+            return;
+        }
+
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            if (e.method == ZipEntry.STORED) {
+                reader.transfer(e, out.getChannel());
+            } else {
+                reader.read(e, out);
+            }
+        } finally {
+            out.close();
+        }
+        if (mode != 0) {
+            applyMode(f, mode);
+        }
+        if (index != null) {
+            f.setLastModified(ParallelZipWriter.fromDosTime(e.dosTime));
+            index.add(e.name, f);
+        }
+    }
+
+    private File extractZipStream(File compressedFile, File targetDirectory, ExtractionIndex index)
+            throws IOException {
+        File targetDir = null;
+        TargetTree tree = new TargetTree(targetDirectory);
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(compressedFile),
+                ArchiveIO.BUFFER_SIZE));
+        try {
+            ZipEntry e;
+            while ((e = in.getNextEntry()) != null) {
+                File f = tree.resolveFile(e.getName());
+                if (e.isDirectory()) {
+                    f.mkdirs();
+                    if (targetDir == null) {
+                        targetDir = f;
+                    }
+                } else {
+                    f.getParentFile().mkdirs();
+                    ArchiveIO.copy(in, f);
+                    if (index != null) {
+                        if (e.getTime() != -1) {
+                            f.setLastModified(e.getTime());
+                        }
+                        index.add(e.getName(), f);
+                    }
+                }
+                in.closeEntry();
+            }
+        } finally {
+            in.close();
+        }
+        return targetDir;
+    }
+
+    /**
+     * @param tar
+     *            the decompressed tar data, closed when done
+     */
+    private File extractTar(InputStream tar, File targetDirectory, final ExtractionIndex index)
+            throws IOException {
+        File targetDir = null;
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        final Semaphore pendingBytes = new Semaphore(MAX_PENDING_BYTES);
+        Map<String, Future<Void>> pending = new HashMap<String, Future<Void>>();
+        Set<File> dirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        byte[] header = new byte[TAR_HEADER_SIZE];
+        TargetTree tree = new TargetTree(targetDirectory);
+
+        TarInputStream in = new TarInputStream(tar);
+        try {
+            TarEntry e;
+            while ((e = in.getNextEntry()) != null) {
+                final String name = e.getName();
+                e.writeEntryHeader(header);
+                byte type = header[TAR_LINK_FLAG_OFFSET];
+                final File f = type == TarConstants.LF_SYMLINK ? tree.resolve(name) : tree.resolveFile(name);
+                if (e.isDirectory()) {
+                    mkdirs(f, dirs);
+                    if (targetDir == null) {
+                        targetDir = f;
+                    }
+                    continue;
+                }
+
+                mkdirs(f.getParentFile(), dirs);
+                if (type == TarConstants.LF_SYMLINK) {
+                    // a worker must not write an earlier entry through it
+                    Future<Void> previous = pending.remove(name);
+                    if (previous != null) {
+                        await(previous);
+                    }
+                    symlink(f, e.getLinkName());
+                    tree.addLink(f);
+                } else if (type == TarConstants.LF_LINK) {
+                    File target = tree.resolveFile(e.getLinkName());
+                    Future<Void> pendingTarget = pending.get(e.getLinkName());
+                    if (pendingTarget != null) {
+                        await(pendingTarget);
+                    }
+                    hardlink(f, target);
+                    if (index != null) {
+                        index.add(name, f);
+                    }
+                } else {
+                    final int mode = e.getMode();
+                    final long time = e.getModTime().getTime();
+                    long size = e.getSize();
+                    if (executor != null && size <= SMALL_FILE) {
+                        final byte[] data = new byte[(int) size];
+                        readFully(in, data);
+                        acquire(pendingBytes, data.length);
+                        pending.put(name, executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                try {
+                                    FileOutputStream out = new FileOutputStream(f);
+                                    try {
+                                        out.write(data);
+                                    } finally {
+                                        out.close();
+                                    }
+                                    finishTarFile(f, name, mode, time, index);
+                                } finally {
+                                    pendingBytes.release(data.length);
+                                }
+                                return null;
+                            }
+                        }));
+                    } else {
+                        ArchiveIO.copy(in, f);
+                        finishTarFile(f, name, mode, time, index);
+                    }
+                }
+            }
+            for (Future<Void> future : pending.values()) {
+                await(future);
+            }
+            // read the padding after the end of archive marker, a
+            // decompressor process fails if its output is not consumed
+            while (tar.read(header) != -1) {
+                // skip
+            }
+        } finally {
+            in.close();
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        return targetDir;
+    }
+
+    private void finishTarFile(File f, String name, int mode, long time, ExtractionIndex index) {
+        applyMode(f, mode);
+        if (index != null) {
+            f.setLastModified(time);
+            index.add(name, f);
+        }
+    }
+
+    private void applyMode(File f, int mode) {
+        if (posix) {
+            Set<PosixFilePermission> perms = EnumSet.noneOf(PosixFilePermission.class);
+            int bits = mode | OWNER_RW;
+            for (int i = 0; i < PERMISSIONS.length; i++) {
+                if ((bits & (0400 >> i)) != 0) {
+                    perms.add(PERMISSIONS[i]);
+                }
+            }
+            try {
+                Files.setPosixFilePermissions(f.toPath(), perms);
+                return;
+            } catch (IOException e) {
+                // fall back to the executable flag
+            }
+        }
+        if ((mode & EXEC_BITS) != 0) {
+            f.setExecutable(true, false);
+        }
+    }
+
+    private static void symlink(File f, String target) throws IOException {
+        Path link = f.toPath();
+        if (Files.isDirectory(link, LinkOption.NOFOLLOW_LINKS)) {
+            // the entries below it may still be written
+            throw new IOException("Symbolic link " + f + " would replace a directory");
+        }
+        Files.deleteIfExists(link);
+        try {
+            Files.createSymbolicLink(link, Paths.get(target));
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("Symbolic links are not supported, can not create " + f + " -> " + target, e);
+        }
+    }
+
+    private static void hardlink(File f, File target) throws IOException {
+        Files.deleteIfExists(f.toPath());
+        try {
+            Files.createLink(f.toPath(), target.toPath());
+        } catch (IOException e) {
+            Files.copy(target.toPath(), f.toPath());
+        } catch (UnsupportedOperationException e) {
+            Files.copy(target.toPath(), f.toPath());
+        }
+    }
+
+    /**
+     * @return the file of the entry <code>name</code> below
+     *         <code>targetDirectory</code>
+     * @throws IOException
+     *             if the name is absolute or leaves the directory
+     */
+    static File resolve(File targetDirectory, String name) throws IOException {
+        Path root = targetDirectory.toPath().toAbsolutePath().normalize();
+        return resolve(root, name).toFile();
+    }
+
+    private static Path resolve(Path root, String name) throws IOException {
+        Path p;
+        try {
+            p = Paths.get(name);
+        } catch (InvalidPathException e) {
+            throw new IOException("Invalid entry name " + name, e);
+        }
+        Path f = root.resolve(p).normalize();
+        if (p.isAbsolute() || p.getRoot() != null || !f.startsWith(root)) {
+            throw new IOException("Entry " + name + " is outside of the target directory");
+        }
+        return f;
+    }
+
+    /**
+     * Resolves the entry names of one archive below the target directory and
+     * keeps track of the symbolic links restored, nothing is written through
+     * them. Directories already in the target directory, like those of a base
+     * SDK below an overlay, are checked for links once.
+     */
+    private static class TargetTree {
+        private final Path root;
+        private final Set<Path> links = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+        private final Set<Path> checked = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+        TargetTree(File targetDirectory) {
+            this.root = targetDirectory.toPath().toAbsolutePath().normalize();
+        }
+
+        /**
+         * @return the file of a symbolic link entry
+         */
+        File resolve(String name) throws IOException {
+            Path f = ArchiveExtractor.resolve(root, name);
+            for (Path p = f.getParent(); p != null && p.startsWith(root); p = p.getParent()) {
+                if (links.contains(p) || !checked.contains(p) && Files.isSymbolicLink(p)) {
+                    throw new IOException("Entry " + name + " is below the symbolic link " + root.relativize(p));
+                }
+                checked.add(p);
+            }
+            return f.toFile();
+        }
+
+        /**
+         * @return the file of any other entry, which must not replace a
+         *         symbolic link either
+         */
+        File resolveFile(String name) throws IOException {
+            File f = resolve(name);
+            if (links.contains(f.toPath())) {
+                throw new IOException("Entry " + name + " would be written through a symbolic link");
+            }
+            return f;
+        }
+
+        void addLink(File f) {
+            links.add(f.toPath());
+        }
+    }
+
+    private static void mkdirs(File dir, Set<File> known) {
+        if (known.add(dir)) {
+            dir.mkdirs();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] data) throws IOException {
+        int off = 0;
+        while (off < data.length) {
+            int l = in.read(data, off, data.length - off);
+            if (l == -1) {
+                throw new IOException("Unexpected end of archive");
+            }
+            off += l;
+        }
+    }
+
+    private static void acquire(Semaphore s, int permits) throws IOException {
+        try {
+            s.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting");
+        }
+    }
+
+    private static void await(Future<?> f) throws IOException {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to extract entry", e.getCause());
+        }
+    }
+
+    /**
+     * Reads the data of zip entries with positional reads, so the
+     * {@link RandomAccessFile} is only used to locate the data.
+     */
+    static class ZipEntryReader {
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final Inflater inflater;
+        private final ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+        private final byte[] output = new byte[ArchiveIO.BUFFER_SIZE];
+        private final CRC32 crc = new CRC32();
+
+        ZipEntryReader(RandomAccessFile raf, Inflater inflater) {
+            this.raf = raf;
+            this.channel = raf.getChannel();
+            this.inflater = inflater;
+        }
+
+        /**
+         * Copies the data of a stored entry without looking at it.
+         */
+        void transfer(ZipDirectory.Entry e, FileChannel out) throws IOException {
+            long position = ZipDirectory.getDataOffset(raf, e);
+            long done = 0;
+            while (done < e.size) {
+                long l = channel.transferTo(position + done, e.size - done, out);
+                if (l <= 0) {
+                    throw new IOException("Unexpected end of data of entry " + e.name);
+                }
+                done += l;
+            }
+        }
+
+        /**
+         * Writes the uncompressed data of <code>e</code> to <code>out</code>
+         * and verifies its checksum.
+         */
+        void read(ZipDirectory.Entry e, OutputStream out) throws IOException {
+            long position = ZipDirectory.getDataOffset(raf, e);
+            long remaining = e.compressedSize;
+            long size = 0;
+            crc.reset();
+
+            if (e.method == ZipEntry.STORED) {
+                while (remaining > 0) {
+                    int l = fill(position, remaining);
+                    crc.update(input.array(), 0, l);
+                    out.write(input.array(), 0, l);
+                    position += l;
+                    remaining -= l;
+                    size += l;
+                }
+            } else {
+                inflater.reset();
+                boolean padded = false;
+                try {
+                    while (!inflater.finished()) {
+                        if (inflater.needsInput()) {
+                            if (remaining > 0) {
+                                int l = fill(position, remaining);
+                                inflater.setInput(input.array(), 0, l);
+                                position += l;
+                                remaining -= l;
+                            } else if (!padded) {
+                                // raw inflate may need one byte past the
+                                // end of the data to finish
+                                inflater.setInput(new byte[1]);
+                                padded = true;
+                            } else {
+                                throw new IOException("Unexpected end of data of entry " + e.name);
+                            }
+                        }
+                        int l = inflater.inflate(output);
+                        if (l == 0 && inflater.needsDictionary()) {
+                            throw new IOException("Invalid compressed data of entry " + e.name);
+                        }
+                        crc.update(output, 0, l);
+                        out.write(output, 0, l);
+                        size += l;
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException("Invalid compressed data of entry " + e.name, ex);
+                }
+            }
+
+            if (size != e.size || crc.getValue() != e.crc) {
+                throw new IOException("Checksum mismatch of entry " + e.name);
+            }
+        }
+
+        private int fill(long position, long remaining) throws IOException {
+            input.clear();
+            input.limit((int) Math.min(input.capacity(), remaining));
+            while (input.hasRemaining()) {
+                if (channel.read(input, position + input.position()) == -1) {
+                    throw new IOException("Unexpected end of archive");
+                }
+            }
+            return input.position();
+        }
+    }
+}
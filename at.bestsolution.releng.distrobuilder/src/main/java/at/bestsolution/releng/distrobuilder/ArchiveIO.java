@@ -0,0 +1,657 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+/**
+ * Archive and transfer primitives shared by compression, extraction and
+ * downloads. File data is moved through {@link FileChannel}s using one large
+ * buffer per thread, directory trees are streamed with
+ * {@link Files#walkFileTree} so entries are written as they are found.
+ */
+class ArchiveIO {
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final int TAR_LINK_NAME_OFFSET = 157;
+    private static final int TAR_LINK_NAME_LENGTH = 100;
+    private static final int TAR_CHECKSUM_OFFSET = 148;
+    private static final int TAR_HEADER_SIZE = 512;
+    private static final int TAR_RECORD_SIZE = 20 * TAR_HEADER_SIZE;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    };
+
+    private final CodecSettings settings;
+
+    /**
+     * @param threads
+     *            number of threads used to compress a single archive
+     * @param blockSize
+     *            block size used for parallel gzip compression
+     */
+    ArchiveIO(int threads, int blockSize) {
+        this(createSettings(threads, blockSize));
+    }
+
+    /**
+     * @param settings
+     *            the settings all archives are written with, the index is
+     *            passed per archive
+     */
+    ArchiveIO(CodecSettings settings) {
+        this.settings = settings;
+    }
+
+    private static CodecSettings createSettings(int threads, int blockSize) {
+        CodecSettings s = new CodecSettings();
+        s.setThreads(threads);
+        s.setBlockSize(blockSize);
+        return s;
+    }
+
+    /**
+     * Writes <code>sourceDir</code> to an archive in the format given by the
+     * suffix of <code>targetFile</code>, every entry is prefixed with the
+     * name of <code>sourceDir</code>.
+     *
+     * @param index
+     *            if it describes a zip file, files which are still unchanged
+     *            since they were extracted are copied without recompressing
+     *            them; may be <code>null</code>
+     * @return the files written
+     */
+    public Counts compress(File sourceDir, File targetFile, ExtractionIndex index) throws IOException {
+        CountingWriter w = new CountingWriter(createWriter(targetFile, index));
+        try {
+            walk(sourceDir, w);
+        } finally {
+            w.close();
+        }
+        return w.counts;
+    }
+
+    /**
+     * Writes the files below <code>sourceDir</code> which are not recorded
+     * as unchanged in <code>index</code> to an archive.
+     * Directories of the base SDK are only written as parents of new or
+     * changed files, new directories are always written.
+     *
+     * @return the files written
+     */
+    public Counts compressOverlay(File sourceDir, File targetFile, ExtractionIndex index) throws IOException {
+        CountingWriter counter = new CountingWriter(createWriter(targetFile, null));
+        ArchiveWriter w = new OverlayEntryWriter(counter, index);
+        try {
+            walk(sourceDir, w);
+        } finally {
+            w.close();
+        }
+        return counter.counts;
+    }
+
+    private ArchiveWriter createWriter(File targetFile, ExtractionIndex index) throws IOException {
+        ArchiveCodec codec = ArchiveCodecs.forFile(targetFile.getName());
+        if (codec == null) {
+            throw new IOException("Unknown archive format of " + targetFile.getName());
+        }
+        targetFile.getParentFile().mkdirs();
+        CodecSettings s = new CodecSettings(settings);
+        s.setIndex(index);
+        return codec.createWriter(targetFile, s);
+    }
+
+    /**
+     * @return the files below <code>dir</code>, symbolic links are not
+     *         followed
+     */
+    static Counts count(File dir) throws IOException {
+        CountingWriter w = new CountingWriter(null);
+        walk(dir, w);
+        return w.counts;
+    }
+
+    /**
+     * Streams all directories and files below <code>sourceDir</code> to the
+     * writer in depth first order, parents before their children. Symbolic
+     * links are passed to the writer as they are.
+     */
+    static void walk(File sourceDir, ArchiveWriter w) throws IOException {
+        walk(sourceDir.toPath(), sourceDir.getName(), w, EnumSet.noneOf(FileVisitOption.class));
+    }
+
+    /**
+     * Streams the content the symbolic link <code>link</code> points to as
+     * entries below <code>name</code>, for writers which can not store
+     * links. Dangling links are skipped.
+     */
+    static void follow(String name, File link, ArchiveWriter w) throws IOException {
+        if (link.isFile()) {
+            w.file(name, link);
+        } else if (link.isDirectory()) {
+            walk(link.toPath(), name, w, EnumSet.of(FileVisitOption.FOLLOW_LINKS));
+        }
+    }
+
+    private static void walk(final Path root, final String prefix, final ArchiveWriter w,
+            Set<FileVisitOption> options) throws IOException {
+        Files.walkFileTree(root, options, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                w.directory(name(dir) + "/", dir.toFile());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isSymbolicLink()) {
+                    w.symlink(name(file), file.toFile());
+                } else {
+                    w.file(name(file), file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String name(Path p) {
+                String rel = root.relativize(p).toString();
+                return rel.isEmpty() ? prefix : prefix + "/" + rel.replace(File.separatorChar, '/');
+            }
+        });
+    }
+
+    /**
+     * Copies the remaining content of <code>in</code> to <code>file</code>,
+     * <code>in</code> is not closed.
+     */
+    public static long copy(InputStream in, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            return copy(in, out.getChannel());
+        } finally {
+            out.close();
+        }
+    }
+
+    public static long copy(InputStream in, FileChannel out) throws IOException {
+        ByteBuffer buf = BUFFERS.get();
+        byte[] array = buf.array();
+        long total = 0;
+        int l;
+        while ((l = in.read(array)) != -1) {
+            buf.clear();
+            buf.limit(l);
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            total += l;
+        }
+        return total;
+    }
+
+    /**
+     * Copies the content of <code>file</code> to <code>out</code>,
+     * <code>out</code> is not closed.
+     */
+    public static long copy(File file, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return copy(in.getChannel(), out);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static long copy(FileChannel in, OutputStream out) throws IOException {
+        ByteBuffer buf = BUFFERS.get();
+        long total = 0;
+        int l;
+        buf.clear();
+        while ((l = in.read(buf)) != -1) {
+            out.write(buf.array(), 0, l);
+            total += l;
+            buf.clear();
+        }
+        return total;
+    }
+
+    static String readLink(File link) throws IOException {
+        return Files.readSymbolicLink(link.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    static long linkModified(File link) throws IOException {
+        return Files.getLastModifiedTime(link.toPath(), LinkOption.NOFOLLOW_LINKS).toMillis();
+    }
+
+    /**
+     * Number and total size of files.
+     */
+    static class Counts {
+        int files;
+        long bytes;
+    }
+
+    /**
+     * Counts the files passed to the wrapped writer, which may be
+     * <code>null</code> to only count them.
+     */
+    static class CountingWriter implements ArchiveWriter {
+        private final ArchiveWriter out;
+        final Counts counts = new Counts();
+
+        CountingWriter(ArchiveWriter out) {
+            this.out = out;
+        }
+
+        @Override
+        public void directory(String name, File dir) throws IOException {
+            if (out != null) {
+                out.directory(name, dir);
+            }
+        }
+
+        @Override
+        public void file(String name, File file) throws IOException {
+            counts.files++;
+            counts.bytes += file.length();
+            if (out != null) {
+                out.file(name, file);
+            }
+        }
+
+        @Override
+        public void symlink(String name, File link) throws IOException {
+            counts.files++;
+            if (out != null) {
+                out.symlink(name, link);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Passes only new and changed entries to the wrapped writer.
+     */
+    static class OverlayEntryWriter implements ArchiveWriter {
+        private final ArchiveWriter out;
+        private final ExtractionIndex index;
+        private final Set<String> baseDirectories = new HashSet<String>();
+        private final LinkedHashMap<String, File> pendingDirectories = new LinkedHashMap<String, File>();
+
+        OverlayEntryWriter(ArchiveWriter out, ExtractionIndex index) {
+            this.out = out;
+            this.index = index;
+            for (String name : index.getRecords().keySet()) {
+                int i;
+                while ((i = name.lastIndexOf('/')) > 0) {
+                    name = name.substring(0, i);
+                    if (!baseDirectories.add(name + "/")) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void directory(String name, File dir) throws IOException {
+            if (baseDirectories.contains(name)) {
+                prune(name);
+                pendingDirectories.put(name, dir);
+            } else {
+                writeParents(name);
+                out.directory(name, dir);
+            }
+        }
+
+        @Override
+        public void file(String name, File file) throws IOException {
+            if (!index.isUnchanged(name, file)) {
+                writeParents(name);
+                out.file(name, file);
+            }
+        }
+
+        @Override
+        public void symlink(String name, File link) throws IOException {
+            writeParents(name);
+            out.symlink(name, link);
+        }
+
+        /**
+         * Drops the pending directories which do not contain
+         * <code>name</code>, the tree is walked depth first so they are done.
+         */
+        private void prune(String name) {
+            Iterator<String> it = pendingDirectories.keySet().iterator();
+            while (it.hasNext()) {
+                if (!name.startsWith(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+
+        private void writeParents(String name) throws IOException {
+            prune(name);
+            for (Map.Entry<String, File> e : pendingDirectories.entrySet()) {
+                out.directory(e.getKey(), e.getValue());
+            }
+            pendingDirectories.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static class ZipEntryWriter implements ArchiveWriter {
+        private final ZipOutputStream out;
+
+        ZipEntryWriter(ZipOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void directory(String name, File dir) throws IOException {
+            ZipEntry e = new ZipEntry(name);
+            e.setTime(dir.lastModified());
+            out.putNextEntry(e);
+            out.closeEntry();
+        }
+
+        @Override
+        public void file(String name, File file) throws IOException {
+            ZipEntry e = new ZipEntry(name);
+            e.setTime(file.lastModified());
+            out.putNextEntry(e);
+            copy(file, out);
+            out.closeEntry();
+        }
+
+        @Override
+        public void symlink(String name, File link) throws IOException {
+            follow(name, link, this);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static class ParallelZipEntryWriter implements ArchiveWriter {
+        private final ParallelZipWriter out;
+        private final ExtractionIndex index;
+        private final EntryCache cache;
+        private final boolean storeIncompressible;
+
+        ParallelZipEntryWriter(ParallelZipWriter out, ExtractionIndex index, EntryCache cache,
+                boolean storeIncompressible) {
+            this.out = out;
+            this.index = index;
+            this.cache = cache;
+            this.storeIncompressible = storeIncompressible;
+        }
+
+        @Override
+        public void directory(String name, File dir) throws IOException {
+            out.addDirectory(name, dir.lastModified());
+        }
+
+        @Override
+        public void file(String name, File file) throws IOException {
+            ZipDirectory.Entry raw = index != null ? index.getReusableEntry(name, file) : null;
+            if (raw != null) {
+                out.addRawEntry(name, file, index.getZipDirectory(), raw);
+            } else if (storeIncompressible && ArchiveCodecs.isIncompressible(name)) {
+                out.addStoredFile(name, file);
+            } else if (cache != null && EntryCache.accepts(file)) {
+                out.addFile(name, file, cache);
+            } else {
+                out.addFile(name, file);
+            }
+        }
+
+        @Override
+        public void symlink(String name, File link) throws IOException {
+            out.addSymlink(name, readLink(link), linkModified(link));
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static class TarEntryWriter implements ArchiveWriter {
+        private final TarOutputStream out;
+        private final ParallelGZIPOutputStream gzip;
+        private final EntryCache cache;
+        private final int level;
+        private final int blockSize;
+        private final boolean storeIncompressible;
+        private long position;
+
+        TarEntryWriter(OutputStream out) {
+            this.out = new TarOutputStream(out);
+            this.out.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+            this.gzip = null;
+            this.cache = null;
+            this.level = CodecSettings.DEFAULT_LEVEL;
+            this.blockSize = ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE;
+            this.storeIncompressible = false;
+        }
+
+        /**
+         * Writes file content through the entry cache of
+         * <code>settings</code> and stores incompressible files if enabled.
+         * The tar stream is written directly to <code>gzip</code>, without
+         * the record buffer of {@link TarOutputStream}, so all preceding data
+         * has reached the gzip stream when the content of an entry is spliced
+         * in.
+         */
+        TarEntryWriter(ParallelGZIPOutputStream gzip, CodecSettings settings) {
+            this.out = null;
+            this.gzip = gzip;
+            this.cache = settings.getCache();
+            this.level = settings.getLevel();
+            this.blockSize = settings.getBlockSize();
+            this.storeIncompressible = settings.isStoreIncompressible();
+        }
+
+        @Override
+        public void directory(String name, File dir) throws IOException {
+            TarEntry e = new TarEntry(name);
+            e.setModTime(dir.lastModified());
+            putEntry(e);
+            closeEntry(0);
+        }
+
+        @Override
+        public void file(String name, File file) throws IOException {
+            TarEntry e = new TarEntry(name);
+            if (file.canExecute()) {
+                e.setMode(0755);
+            }
+            e.setModTime(file.lastModified());
+            e.setSize(file.length());
+            putEntry(e);
+            if (out != null) {
+                copy(file, out);
+            } else if (storeIncompressible && ArchiveCodecs.isIncompressible(name)) {
+                store(file);
+            } else if (cache != null && EntryCache.accepts(file)) {
+                splice(file);
+            } else {
+                position += copy(file, gzip);
+            }
+            closeEntry(file.length());
+        }
+
+        /**
+         * Splices the content of <code>file</code> in from the entry cache.
+         */
+        private void splice(final File file) throws IOException {
+            long length = file.length();
+            gzip.splice(new Callable<DeflateSegment>() {
+                @Override
+                public DeflateSegment call() throws IOException {
+                    return cache.get(file, level);
+                }
+            }, length);
+            position += length;
+        }
+
+        /**
+         * Splices the content of <code>file</code> in as stored deflate
+         * blocks, one gzip block at a time, so large archives are not held in
+         * memory.
+         */
+        private void store(final File file) throws IOException {
+            long length = file.length();
+            for (long offset = 0; offset < length; offset += blockSize) {
+                final long start = offset;
+                final long count = Math.min(blockSize, length - offset);
+                gzip.splice(new Callable<DeflateSegment>() {
+                    @Override
+                    public DeflateSegment call() throws IOException {
+                        return DeflateSegment.deflate(file, start, count, Deflater.NO_COMPRESSION);
+                    }
+                }, count);
+            }
+            position += length;
+        }
+
+        /**
+         * The tar implementation of ant can not set the link name, the header
+         * is patched instead. Targets longer than the header field are stored
+         * as copies.
+         */
+        @Override
+        public void symlink(String name, File link) throws IOException {
+            byte[] target = readLink(link).getBytes("UTF-8");
+            if (target.length > TAR_LINK_NAME_LENGTH) {
+                follow(name, link, this);
+                return;
+            }
+            TarEntry e = new TarEntry(name, TarConstants.LF_SYMLINK);
+            e.setMode(0777);
+            e.setModTime(linkModified(link));
+
+            byte[] header = new byte[TAR_HEADER_SIZE];
+            e.writeEntryHeader(header);
+            System.arraycopy(target, 0, header, TAR_LINK_NAME_OFFSET, target.length);
+            Arrays.fill(header, TAR_CHECKSUM_OFFSET, TAR_CHECKSUM_OFFSET + 8, (byte) ' ');
+            long sum = 0;
+            for (byte b : header) {
+                sum += b & 0xff;
+            }
+            byte[] checksum = String.format("%06o", sum).getBytes("US-ASCII");
+            System.arraycopy(checksum, 0, header, TAR_CHECKSUM_OFFSET, 6);
+            header[TAR_CHECKSUM_OFFSET + 6] = 0;
+
+            TarEntry patched = new TarEntry(header);
+            patched.setName(name);
+            putEntry(patched);
+            closeEntry(0);
+        }
+
+        /**
+         * Writes the header of <code>e</code>, preceded by a GNU long name
+         * entry like {@link TarOutputStream} does for long names.
+         */
+        private void putEntry(TarEntry e) throws IOException {
+            if (out != null) {
+                out.putNextEntry(e);
+                return;
+            }
+            byte[] name = e.getName().getBytes("UTF-8");
+            if (name.length >= TarConstants.NAMELEN) {
+                TarEntry longName = new TarEntry("././@LongLink", TarConstants.LF_GNUTYPE_LONGNAME);
+                longName.setSize(name.length + 1);
+                writeHeader(longName);
+                write(name);
+                write(new byte[1]);
+                pad(name.length + 1);
+            }
+            writeHeader(e);
+        }
+
+        private void closeEntry(long size) throws IOException {
+            if (out != null) {
+                out.closeEntry();
+            } else {
+                pad(size);
+            }
+        }
+
+        private void writeHeader(TarEntry e) throws IOException {
+            byte[] header = new byte[TAR_HEADER_SIZE];
+            e.writeEntryHeader(header);
+            write(header);
+        }
+
+        private void pad(long size) throws IOException {
+            int rest = (int) (size % TAR_HEADER_SIZE);
+            if (rest != 0) {
+                write(new byte[TAR_HEADER_SIZE - rest]);
+            }
+        }
+
+        private void write(byte[] b) throws IOException {
+            gzip.write(b, 0, b.length);
+            position += b.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+                return;
+            }
+            // end of archive marker, padded to the default record size
+            write(new byte[2 * TAR_HEADER_SIZE]);
+            int rest = (int) (position % TAR_RECORD_SIZE);
+            if (rest != 0) {
+                write(new byte[TAR_RECORD_SIZE - rest]);
+            }
+            gzip.close();
+        }
+    }
+}
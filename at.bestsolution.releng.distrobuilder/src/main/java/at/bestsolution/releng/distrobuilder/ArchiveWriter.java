@@ -0,0 +1,26 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Receives the entries of a directory tree, in depth first order with
+ * parents before their children, and writes them to an archive.
+ */
+public interface ArchiveWriter extends Closeable {
+    /**
+     * @param name
+     *            entry name ending with a slash
+     */
+    void directory(String name, File dir) throws IOException;
+
+    void file(String name, File file) throws IOException;
+
+    /**
+     * @param link
+     *            the symbolic link itself, writers which can not store
+     *            links write the content it points to instead
+     */
+    void symlink(String name, File link) throws IOException;
+}
@@ -0,0 +1,629 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Hands the work units of a build to {@link DistroWorkerNode}s and collects
+ * their distros.
+ * <p>
+ * Nodes connect to the coordinator and ask for work whenever they are idle,
+ * so faster nodes take more units. Once no unit is left to hand out, an idle
+ * node steals the unit which has been running longest on another node; the
+ * first result wins. The unit of a node which disconnects or stops sending
+ * heartbeats is handed out again, at most {@link #ATTEMPTS} times.
+ * </p>
+ * <p>
+ * Every unit is sent with its install units, repositories and target
+ * outputs. The SDK and local repositories are sent as well, unless the node
+ * has them already from an earlier unit. Update sites and remote
+ * repositories have to be reachable from the nodes.
+ * </p>
+ * <p>
+ * The coordinator listens on the loopback interface unless another address
+ * is given; to accept nodes on the network a shared secret is required,
+ * which the nodes prove to know by answering a random challenge. The
+ * connections are not encrypted, so the coordinator and its nodes must only
+ * be reachable from a trusted network.
+ * </p>
+ * <p>
+ * Strings are exchanged with {@link DataOutputStream#writeUTF(String)},
+ * texts and files with their length in front:
+ * </p>
+ * <ul>
+ * <li>coordinator: a random challenge</li>
+ * <li>node: <code>HELLO</code>, name, HMAC-SHA256 of the challenge keyed with
+ * the shared secret, or an empty string without secret; the coordinator
+ * answers <code>DENIED</code> and closes the connection if it is wrong</li>
+ * <li>coordinator: <code>JOB</code>, id, job properties as text; or
+ * <code>BYE</code> once the build is done</li>
+ * <li>node: <code>NEED</code>, count, digests of the inputs it is missing;
+ * the coordinator answers with their content</li>
+ * <li>node, while building: <code>ALIVE</code> every {@link #HEARTBEAT}
+ * ms</li>
+ * <li>node: <code>DONE</code>, count, name and content of every distro; or
+ * <code>FAILED</code>, message as text</li>
+ * </ul>
+ */
+class BuildCoordinator {
+    static final String HELLO = "HELLO";
+    static final String DENIED = "DENIED";
+    static final String JOB = "JOB";
+    static final String BYE = "BYE";
+    static final String NEED = "NEED";
+    static final String ALIVE = "ALIVE";
+    static final String DONE = "DONE";
+    static final String FAILED = "FAILED";
+    static final int HEARTBEAT = 10 * 1000;
+
+    /** prefix of repositories which are inputs sent to the node */
+    static final String INPUT = "input:";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int TIMEOUT = 6 * HEARTBEAT;
+    private static final int ATTEMPTS = 3;
+
+    private final String address;
+    private final int port;
+    private final String secret;
+    private final Properties settings;
+    private final FileDigests digests;
+    private final BuildMetrics metrics;
+
+    private final List<Job> jobs = new ArrayList<Job>();
+    private final LinkedList<Job> pending = new LinkedList<Job>();
+    /** the connections of the nodes building a unit */
+    private final Map<Socket, Job> building = new HashMap<Socket, Job>();
+    private int remaining;
+    private int parts;
+
+    static class Job {
+        final BuildPlan.WorkUnit unit;
+        final String target;
+        final Properties properties = new Properties();
+        final Map<String, File> inputs = new LinkedHashMap<String, File>();
+        final Map<String, File> outputs = new LinkedHashMap<String, File>();
+        int attempts;
+        int runners;
+        boolean stolen;
+        boolean done;
+        long started;
+        String failure;
+
+        Job(BuildPlan.WorkUnit unit) {
+            this.unit = unit;
+            this.target = unit.getPrimary().toString();
+        }
+    }
+
+    /**
+     * @param address
+     *            address to listen on, <code>null</code> for the loopback
+     *            interface
+     * @param secret
+     *            secret the nodes have to know, required unless listening on
+     *            the loopback interface
+     * @param settings
+     *            settings of the builders on the nodes, see
+     *            {@link #getSettings(DistroBuilder)}
+     */
+    BuildCoordinator(String address, int port, String secret, Properties settings, FileDigests digests,
+            BuildMetrics metrics) {
+        this.address = address;
+        this.port = port;
+        this.secret = secret;
+        this.settings = settings;
+        this.digests = digests;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the settings of <code>builder</code> which affect the distros
+     *         built by the nodes
+     */
+    static Properties getSettings(DistroBuilder builder) {
+        Properties p = new Properties();
+        if (builder.getProfile() != null) {
+            p.setProperty("profile", builder.getProfile());
+        }
+        p.setProperty("compressionThreads", String.valueOf(builder.getCompressionThreads()));
+        p.setProperty("compressionBlockSize", String.valueOf(builder.getCompressionBlockSize()));
+        p.setProperty("compressionLevel", String.valueOf(builder.getCompressionLevel()));
+        p.setProperty("storeIncompressible", String.valueOf(builder.isStoreIncompressible()));
+        p.setProperty("overlayOutput", String.valueOf(builder.isOverlayOutput()));
+        p.setProperty("reuseSdkEntries", String.valueOf(builder.isReuseSdkEntries()));
+        p.setProperty("extractionThreads", String.valueOf(builder.getExtractionThreads()));
+        p.setProperty("directorConsole", builder.getDirectorConsole());
+        p.setProperty("directorLogTail", String.valueOf(builder.getDirectorLogTail()));
+        p.setProperty("mirrorMinThroughput", String.valueOf(builder.getMirrorMinThroughput()));
+        p.setProperty("mirrorSplit", String.valueOf(builder.getMirrorSplit()));
+        int i = 0;
+        for (List<String> urls : builder.getMirrorUrls().values()) {
+            putList(p, "mirrors." + i++, urls);
+        }
+        return p;
+    }
+
+    static void applySettings(Properties p, DistroBuilder builder) {
+        builder.setProfile(p.getProperty("profile"));
+        builder.setCompressionThreads(Integer.parseInt(p.getProperty("compressionThreads")));
+        builder.setCompressionBlockSize(Integer.parseInt(p.getProperty("compressionBlockSize")));
+        builder.setCompressionLevel(Integer.parseInt(p.getProperty("compressionLevel")));
+        builder.setStoreIncompressible(Boolean.parseBoolean(p.getProperty("storeIncompressible")));
+        builder.setOverlayOutput(Boolean.parseBoolean(p.getProperty("overlayOutput")));
+        builder.setReuseSdkEntries(Boolean.parseBoolean(p.getProperty("reuseSdkEntries")));
+        builder.setExtractionThreads(Integer.parseInt(p.getProperty("extractionThreads")));
+        builder.setDirectorConsole(p.getProperty("directorConsole"));
+        builder.setDirectorLogTail(Integer.parseInt(p.getProperty("directorLogTail")));
+        builder.setMirrorMinThroughput(Integer.parseInt(p.getProperty("mirrorMinThroughput")));
+        builder.setMirrorSplit(Integer.parseInt(p.getProperty("mirrorSplit")));
+        for (int i = 0; p.getProperty("mirrors." + i + ".0") != null; i++) {
+            builder.addMirrors(getList(p, "mirrors." + i));
+        }
+    }
+
+    /**
+     * Builds the units of <code>plan</code> on the nodes connecting until
+     * all of them have finished.
+     */
+    void run(BuildPlan plan) throws DistroBuildException {
+        try {
+            for (BuildPlan.WorkUnit unit : plan.getUnits()) {
+                jobs.add(createJob(unit));
+            }
+        } catch (IOException e) {
+            throw new DistroBuildException("Failed to prepare the jobs", e);
+        }
+        remaining = jobs.size();
+        pending.addAll(jobs);
+
+        final ServerSocket server;
+        try {
+            InetAddress bind = address != null ? InetAddress.getByName(address) : InetAddress.getLoopbackAddress();
+            if (secret == null && !bind.isLoopbackAddress()) {
+                throw new DistroBuildException("A coordinator secret is required to accept worker nodes on "
+                        + bind.getHostAddress());
+            }
+            server = new ServerSocket(port, 50, bind);
+        } catch (IOException e) {
+            throw new DistroBuildException("Failed to listen on " + (address != null ? address : "localhost") + ":"
+                    + port, e);
+        }
+        Thread acceptor = new Thread("coordinator") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        Thread t = new Thread("coordinator-" + socket.getRemoteSocketAddress()) {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        };
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                } catch (IOException e) {
+                    // closed when the build is done
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Waiting for worker nodes on " + server.getInetAddress().getHostAddress() + ":"
+                + server.getLocalPort() + " to build " + jobs.size() + " distros");
+
+        try {
+            synchronized (this) {
+                while (remaining > 0) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new DistroBuildException("Interrupted while waiting for worker nodes", e);
+        } finally {
+            close(server);
+            synchronized (this) {
+                // nodes still building stolen units, idle ones get BYE
+                for (Socket s : building.keySet()) {
+                    close(s);
+                }
+            }
+        }
+
+        List<String> failures = new ArrayList<String>();
+        for (Job job : jobs) {
+            if (job.failure != null) {
+                failures.add(job.target + ": " + job.failure);
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw DistroBuilder.failed(failures, jobs.size(), null);
+        }
+    }
+
+    private Job createJob(BuildPlan.WorkUnit unit) throws IOException {
+        Job job = new Job(unit);
+        Properties p = job.properties;
+        p.putAll(settings);
+        p.setProperty("sdkDigest", unit.sdkDigest);
+        p.setProperty("sdk", addInput(job, unit.getPrimary().sdk));
+        putList(p, "installUnit", unit.installUnits);
+        putList(p, "updateSite", unit.updateSites);
+        List<String> repos = new ArrayList<String>();
+        for (String repo : unit.repositories) {
+            repos.add(RepositoryDownloader.isRemote(repo) ? repo : INPUT + addInput(job, new File(repo)));
+        }
+        putList(p, "repository", repos);
+        List<String> staticRepos = new ArrayList<String>();
+        for (String repo : unit.staticRepositories) {
+            staticRepos.add(addInput(job, new File(repo.substring("jar:file:".length(), repo.length() - 2))));
+        }
+        putList(p, "staticRepository", staticRepos);
+        for (int i = 0; i < unit.targets.size(); i++) {
+            BuildPlan.Target t = unit.targets.get(i);
+            p.setProperty("target." + i + ".version", t.version);
+            p.setProperty("target." + i + ".os", t.os);
+            p.setProperty("target." + i + ".arch", t.arch);
+            p.setProperty("target." + i + ".codec", t.codec.getName());
+            p.setProperty("target." + i + ".level", String.valueOf(t.level));
+            p.setProperty("target." + i + ".out", t.out.getName());
+            job.outputs.put(t.out.getName(), t.out);
+        }
+        return job;
+    }
+
+    /**
+     * @return the digest the node finds <code>file</code> under
+     */
+    private String addInput(Job job, File file) throws IOException {
+        String digest = digests.get(file);
+        job.inputs.put(digest, file);
+        job.properties.setProperty("input." + digest, file.getName());
+        return digest;
+    }
+
+    private static void putList(Properties p, String key, List<String> values) {
+        for (int i = 0; i < values.size(); i++) {
+            p.setProperty(key + "." + i, values.get(i));
+        }
+    }
+
+    static List<String> getList(Properties p, String key) {
+        List<String> rv = new ArrayList<String>();
+        for (int i = 0; p.getProperty(key + "." + i) != null; i++) {
+            rv.add(p.getProperty(key + "." + i));
+        }
+        return rv;
+    }
+
+    /**
+     * The distros received from a node or the reason it failed.
+     */
+    static class Result {
+        final Map<File, File> parts = new LinkedHashMap<File, File>();
+        String failure;
+    }
+
+    private void serve(Socket socket) {
+        String node = socket.getRemoteSocketAddress().toString();
+        Job job = null;
+        try {
+            socket.setSoTimeout(TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] nonce = new byte[16];
+            RANDOM.nextBytes(nonce);
+            String challenge = FileDigests.toHex(nonce);
+            out.writeUTF(challenge);
+            out.flush();
+            if (!HELLO.equals(in.readUTF())) {
+                throw new IOException("Unexpected greeting");
+            }
+            node = in.readUTF() + " (" + socket.getInetAddress().getHostAddress() + ")";
+            String response = in.readUTF();
+            if (secret != null && !MessageDigest.isEqual(response.getBytes(UTF8), respond(secret, challenge)
+                    .getBytes(UTF8))) {
+                System.err.println("Rejected worker node " + node + ", it does not know the secret");
+                out.writeUTF(DENIED);
+                out.flush();
+                return;
+            }
+            System.out.println("Worker node " + node + " connected");
+            while ((job = next(socket, node)) != null) {
+                Result result = exchange(job, in, out);
+                Job finished = job;
+                job = null;
+                synchronized (this) {
+                    building.remove(socket);
+                }
+                if (result.failure != null) {
+                    failed(finished, result.failure, node);
+                } else {
+                    completed(finished, result, node);
+                }
+            }
+            out.writeUTF(BYE);
+            out.flush();
+        } catch (IOException e) {
+            if (job != null) {
+                lost(socket, job, node, e);
+                job = null;
+            }
+        } catch (InterruptedException e) {
+            // the build is over
+        } finally {
+            if (job != null) {
+                lost(socket, job, node, null);
+            }
+            close(socket);
+        }
+    }
+
+    /**
+     * @return the next job for a node or <code>null</code> if the build is
+     *         done, waits while all jobs are running and none can be stolen
+     */
+    private synchronized Job next(Socket socket, String node) throws InterruptedException {
+        while (remaining > 0) {
+            Job job = pending.poll();
+            if (job == null) {
+                job = steal();
+                if (job != null) {
+                    System.out.println("Worker node " + node + " steals " + job.target);
+                }
+            }
+            if (job != null) {
+                if (job.started == 0) {
+                    job.started = System.currentTimeMillis();
+                    metrics.unitStarted(job.target);
+                }
+                job.runners++;
+                building.put(socket, job);
+                return job;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    /**
+     * @return the job running longest on a single node
+     */
+    private Job steal() {
+        Job rv = null;
+        for (Job j : jobs) {
+            if (!j.done && j.runners == 1 && !j.stolen && (rv == null || j.started < rv.started)) {
+                rv = j;
+            }
+        }
+        if (rv != null) {
+            rv.stolen = true;
+        }
+        return rv;
+    }
+
+    private Result exchange(Job job, DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeUTF(JOB);
+        out.writeUTF(job.unit.id);
+        StringWriter w = new StringWriter();
+        job.properties.store(w, null);
+        writeText(out, w.toString());
+        out.flush();
+
+        if (!NEED.equals(in.readUTF())) {
+            throw new IOException("Protocol error, expected " + NEED);
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            File f = job.inputs.get(in.readUTF());
+            if (f == null) {
+                throw new IOException("Protocol error, unknown input");
+            }
+            out.writeLong(f.length());
+            InputStream fin = new FileInputStream(f);
+            try {
+                copy(fin, out, f.length());
+            } finally {
+                fin.close();
+            }
+        }
+        out.flush();
+
+        Result result = new Result();
+        String msg;
+        while (ALIVE.equals(msg = in.readUTF())) {
+            // the node is still building
+        }
+        if (FAILED.equals(msg)) {
+            result.failure = readText(in);
+        } else if (DONE.equals(msg)) {
+            try {
+                count = in.readInt();
+                if (count != job.outputs.size()) {
+                    throw new IOException("Protocol error, expected " + job.outputs.size() + " distros");
+                }
+                for (int i = 0; i < count; i++) {
+                    File target = job.outputs.get(in.readUTF());
+                    if (target == null) {
+                        throw new IOException("Protocol error, unknown distro");
+                    }
+                    File part;
+                    synchronized (this) {
+                        part = new File(target.getPath() + ".part" + (++parts));
+                    }
+                    result.parts.put(part, target);
+                    target.getParentFile().mkdirs();
+                    OutputStream fout = new FileOutputStream(part);
+                    try {
+                        copy(in, fout, in.readLong());
+                    } finally {
+                        fout.close();
+                    }
+                }
+            } catch (IOException e) {
+                for (File part : result.parts.keySet()) {
+                    part.delete();
+                }
+                throw e;
+            }
+        } else {
+            throw new IOException("Protocol error, unexpected " + msg);
+        }
+        return result;
+    }
+
+    private synchronized void completed(Job job, Result result, String node) {
+        job.runners--;
+        if (job.done) {
+            for (File part : result.parts.keySet()) {
+                part.delete();
+            }
+            return;
+        }
+        job.failure = null;
+        try {
+            for (Map.Entry<File, File> e : result.parts.entrySet()) {
+                Files.move(e.getKey().toPath(), e.getValue().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            System.out.println("Worker node " + node + " built " + job.target + " in "
+                    + (System.currentTimeMillis() - job.started) / 1000 + " s");
+        } catch (IOException e) {
+            job.failure = "Failed to store the distros: " + e.getMessage();
+        }
+        finish(job);
+    }
+
+    private synchronized void failed(Job job, String message, String node) {
+        job.runners--;
+        if (job.done) {
+            return;
+        }
+        System.err.println("Worker node " + node + " failed to build " + job.target + ":\n" + message);
+        job.failure = message;
+        if (job.runners == 0) {
+            finish(job);
+        }
+    }
+
+    private synchronized void lost(Socket socket, Job job, String node, IOException e) {
+        building.remove(socket);
+        job.runners--;
+        if (job.done) {
+            return;
+        }
+        System.err.println("Lost worker node " + node + " building " + job.target
+                + (e instanceof EOFException ? ": connection closed" : e != null ? ": " + e.getMessage() : ""));
+        if (job.runners > 0) {
+            return;
+        }
+        job.attempts++;
+        if (job.attempts >= ATTEMPTS) {
+            job.failure = "lost " + job.attempts + " worker nodes while building";
+            finish(job);
+        } else {
+            job.stolen = false;
+            pending.addFirst(job);
+            notifyAll();
+        }
+    }
+
+    private void finish(Job job) {
+        job.done = true;
+        remaining--;
+        metrics.unitFinished(job.target, job.failure == null);
+        notifyAll();
+    }
+
+    /**
+     * @return the answer to <code>challenge</code> proving to know
+     *         <code>secret</code>, an empty string without secret
+     */
+    static String respond(String secret, String challenge) {
+        if (secret == null) {
+            return "";
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(UTF8), "HmacSHA256"));
+            return FileDigests.toHex(mac.doFinal(challenge.getBytes(UTF8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] b = text.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readText(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    static Properties readProperties(DataInputStream in) throws IOException {
+        Properties p = new Properties();
+        p.load(new StringReader(readText(in)));
+        return p;
+    }
+
+    /**
+     * Copies exactly <code>length</code> bytes.
+     */
+    static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buf = new byte[ArchiveIO.BUFFER_SIZE];
+        while (length > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, length));
+            if (n == -1) {
+                throw new EOFException("Connection closed during transfer");
+            }
+            out.write(buf, 0, n);
+            length -= n;
+        }
+    }
+
+    private static void close(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
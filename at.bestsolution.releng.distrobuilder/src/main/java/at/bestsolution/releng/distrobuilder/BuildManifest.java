@@ -0,0 +1,91 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The inputs a distro archive has been built from. The manifest is stored
+ * next to the archive and allows to skip targets whose inputs did not change
+ * since the last build.
+ */
+class BuildManifest {
+    private static final String FINGERPRINT = "fingerprint";
+
+    private final Map<String, String> inputs = new LinkedHashMap<String, String>();
+
+    public void put(String name, String value) {
+        inputs.put(name, value == null ? "" : value);
+    }
+
+    public Map<String, String> getInputs() {
+        return inputs;
+    }
+
+    public String getFingerprint() {
+        MessageDigest d;
+        try {
+            d = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        for (Map.Entry<String, String> e : inputs.entrySet()) {
+            d.update(e.getKey().getBytes(utf8));
+            d.update((byte) 0);
+            d.update(e.getValue().getBytes(utf8));
+            d.update((byte) 0);
+        }
+        return FileDigests.toHex(d.digest());
+    }
+
+    /**
+     * @return <code>null</code> if <code>archive</code> exists and has been
+     *         built from the same inputs, otherwise the reason why it has to
+     *         be built
+     */
+    public String checkUpToDate(File archive) throws IOException {
+        File f = fileFor(archive);
+        if (!f.exists()) {
+            return "no previous build";
+        }
+        if (!archive.exists()) {
+            return "output missing";
+        }
+
+        Properties previous = FileDigests.load(f);
+        if (getFingerprint().equals(previous.getProperty(FINGERPRINT))) {
+            return null;
+        }
+
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, String> e : inputs.entrySet()) {
+            if (!e.getValue().equals(previous.getProperty(e.getKey()))) {
+                changed.add(e.getKey());
+            }
+        }
+        return changed.isEmpty() ? "manifest format changed" : "changed " + changed;
+    }
+
+    public void store(File archive) throws IOException {
+        Properties p = new Properties();
+        p.putAll(inputs);
+        p.setProperty(FINGERPRINT, getFingerprint());
+        FileDigests.store(p, fileFor(archive));
+    }
+
+    public static void delete(File archive) {
+        fileFor(archive).delete();
+    }
+
+    static File fileFor(File archive) {
+        return new File(archive.getParentFile(), archive.getName() + ".manifest");
+    }
+}
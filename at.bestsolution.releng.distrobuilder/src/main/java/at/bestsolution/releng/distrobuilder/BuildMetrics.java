@@ -0,0 +1,294 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Collects the duration, bytes and files of every phase of a build, passes
+ * them on to the {@link DistroBuildListener}s and writes them as JSON report.
+ */
+class BuildMetrics {
+    static final String REPORT_FILE = "build-report.json";
+
+    private final List<DistroBuildListener> listeners;
+    private final long started = System.currentTimeMillis();
+    private final Map<BuildPhase, PhaseTotal> totals = new EnumMap<BuildPhase, PhaseTotal>(BuildPhase.class);
+    private final List<Record> buildPhases = new ArrayList<Record>();
+    private final Map<String, Unit> units = new LinkedHashMap<String, Unit>();
+    private final Map<String, int[]> caches = new LinkedHashMap<String, int[]>();
+    private long millis = -1;
+    private boolean success;
+
+    static class Record {
+        final BuildPhase phase;
+        final long millis;
+        final long bytes;
+        final int files;
+
+        Record(BuildPhase phase, long millis, long bytes, int files) {
+            this.phase = phase;
+            this.millis = millis;
+            this.bytes = bytes;
+            this.files = files;
+        }
+    }
+
+    static class PhaseTotal {
+        long millis;
+        long bytes;
+        int files;
+        int count;
+    }
+
+    static class Unit {
+        final List<Record> phases = new ArrayList<Record>();
+        long started = System.currentTimeMillis();
+        long millis = -1;
+        boolean success;
+    }
+
+    /**
+     * A running phase, {@link #finish(long, int)} records it.
+     */
+    class Timer {
+        private final String target;
+        private final BuildPhase phase;
+        private final long start = System.currentTimeMillis();
+        private long end;
+
+        Timer(String target, BuildPhase phase) {
+            this.target = target;
+            this.phase = phase;
+        }
+
+        /**
+         * Ends the phase before it is finished, e.g. to count its output.
+         */
+        void stop() {
+            end = System.currentTimeMillis();
+        }
+
+        void finish(long bytes, int files) {
+            long millis = (end != 0 ? end : System.currentTimeMillis()) - start;
+            phaseFinished(target, new Record(phase, millis, bytes, files));
+        }
+    }
+
+    BuildMetrics(List<DistroBuildListener> listeners) {
+        this.listeners = listeners;
+    }
+
+    void buildStarted(int unitCount) {
+        for (DistroBuildListener l : listeners) {
+            l.buildStarted(unitCount);
+        }
+    }
+
+    void unitStarted(String target) {
+        synchronized (this) {
+            units.put(target, new Unit());
+        }
+        for (DistroBuildListener l : listeners) {
+            l.unitStarted(target);
+        }
+    }
+
+    /**
+     * @param target
+     *            <code>null</code> for phases of the whole build
+     */
+    Timer start(String target, BuildPhase phase) {
+        for (DistroBuildListener l : listeners) {
+            l.phaseStarted(target, phase);
+        }
+        return new Timer(target, phase);
+    }
+
+    private void phaseFinished(String target, Record r) {
+        synchronized (this) {
+            Unit u = target != null ? units.get(target) : null;
+            (u != null ? u.phases : buildPhases).add(r);
+            PhaseTotal t = totals.get(r.phase);
+            if (t == null) {
+                t = new PhaseTotal();
+                totals.put(r.phase, t);
+            }
+            t.millis += r.millis;
+            t.bytes += r.bytes;
+            t.files += r.files;
+            t.count++;
+        }
+        for (DistroBuildListener l : listeners) {
+            l.phaseFinished(target, r.phase, r.millis, r.bytes, r.files);
+        }
+    }
+
+    void unitFinished(String target, boolean unitSuccess) {
+        synchronized (this) {
+            Unit u = units.get(target);
+            u.millis = System.currentTimeMillis() - u.started;
+            u.success = unitSuccess;
+        }
+        for (DistroBuildListener l : listeners) {
+            l.unitFinished(target, unitSuccess);
+        }
+    }
+
+    synchronized void putCache(String name, int hits, int misses) {
+        caches.put(name, new int[] { hits, misses });
+    }
+
+    void buildFinished(boolean buildSuccess) {
+        synchronized (this) {
+            millis = System.currentTimeMillis() - started;
+            success = buildSuccess;
+        }
+        for (DistroBuildListener l : listeners) {
+            l.buildFinished(buildSuccess, millis);
+        }
+    }
+
+    /**
+     * @return the totals of the build as flat key value pairs, e.g.
+     *         <code>director.millis</code>
+     */
+    synchronized Map<String, String> getTotals() {
+        Map<String, String> rv = new LinkedHashMap<String, String>();
+        rv.put("millis", String.valueOf(millis));
+        rv.put("success", String.valueOf(success));
+        int failed = 0;
+        for (Unit u : units.values()) {
+            if (!u.success) {
+                failed++;
+            }
+        }
+        rv.put("units", String.valueOf(units.size()));
+        rv.put("failedUnits", String.valueOf(failed));
+        for (Map.Entry<BuildPhase, PhaseTotal> e : totals.entrySet()) {
+            String p = e.getKey().getId();
+            rv.put(p + ".millis", String.valueOf(e.getValue().millis));
+            rv.put(p + ".bytes", String.valueOf(e.getValue().bytes));
+            rv.put(p + ".files", String.valueOf(e.getValue().files));
+        }
+        for (Map.Entry<String, int[]> e : caches.entrySet()) {
+            rv.put(e.getKey() + "Cache.hits", String.valueOf(e.getValue()[0]));
+            rv.put(e.getKey() + "Cache.misses", String.valueOf(e.getValue()[1]));
+        }
+        return rv;
+    }
+
+    /**
+     * Writes the report to <code>file</code>, replacing the one of the last
+     * build.
+     */
+    synchronized void write(File file) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        StringBuilder b = new StringBuilder();
+        b.append("{\n");
+        b.append("  \"started\": ").append(quote(format.format(new Date(started)))).append(",\n");
+        b.append("  \"millis\": ").append(millis).append(",\n");
+        b.append("  \"success\": ").append(success).append(",\n");
+        b.append("  \"totals\": {");
+        String sep = "\n";
+        for (Map.Entry<BuildPhase, PhaseTotal> e : totals.entrySet()) {
+            PhaseTotal t = e.getValue();
+            b.append(sep).append("    ").append(quote(e.getKey().getId())).append(": {\"count\": ").append(t.count)
+                    .append(", \"millis\": ").append(t.millis).append(", \"bytes\": ").append(t.bytes)
+                    .append(", \"files\": ").append(t.files).append(", \"mbPerSecond\": ")
+                    .append(throughput(t.bytes, t.millis)).append("}");
+            sep = ",\n";
+        }
+        b.append("\n  },\n");
+        b.append("  \"caches\": {");
+        sep = "\n";
+        for (Map.Entry<String, int[]> e : caches.entrySet()) {
+            b.append(sep).append("    ").append(quote(e.getKey())).append(": {\"hits\": ")
+                    .append(e.getValue()[0]).append(", \"misses\": ").append(e.getValue()[1]).append("}");
+            sep = ",\n";
+        }
+        b.append("\n  },\n");
+        b.append("  \"phases\": ");
+        appendPhases(b, buildPhases, "  ");
+        b.append(",\n");
+        b.append("  \"units\": [");
+        sep = "\n";
+        for (Map.Entry<String, Unit> e : units.entrySet()) {
+            Unit u = e.getValue();
+            b.append(sep).append("    {\"target\": ").append(quote(e.getKey())).append(", \"millis\": ")
+                    .append(u.millis).append(", \"success\": ").append(u.success).append(", \"phases\": ");
+            appendPhases(b, u.phases, "    ");
+            b.append("}");
+            sep = ",\n";
+        }
+        b.append("\n  ]\n");
+        b.append("}\n");
+
+        file.getParentFile().mkdirs();
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            Writer w = new OutputStreamWriter(new FileOutputStream(tmp), Charset.forName("UTF-8"));
+            try {
+                w.write(b.toString());
+            } finally {
+                w.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private static void appendPhases(StringBuilder b, List<Record> phases, String indent) {
+        b.append("[");
+        String sep = "\n";
+        for (Record r : phases) {
+            b.append(sep).append(indent).append("  {\"phase\": ").append(quote(r.phase.getId()))
+                    .append(", \"millis\": ").append(r.millis).append(", \"bytes\": ").append(r.bytes)
+                    .append(", \"files\": ").append(r.files).append(", \"mbPerSecond\": ")
+                    .append(throughput(r.bytes, r.millis)).append("}");
+            sep = ",\n";
+        }
+        b.append(phases.isEmpty() ? "]" : "\n" + indent + "]");
+    }
+
+    private static String throughput(long bytes, long millis) {
+        if (millis <= 0) {
+            return "null";
+        }
+        return String.format(Locale.ENGLISH, "%.2f", bytes * 1000.0 / millis / (1024 * 1024));
+    }
+
+    static String quote(String s) {
+        StringBuilder b = new StringBuilder(s.length() + 2);
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format("\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+}
@@ -0,0 +1,26 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.util.Locale;
+
+/**
+ * The timed phases of a build.
+ */
+public enum BuildPhase {
+    /** mirroring the update sites of all targets */
+    MIRROR,
+    /** waiting for the P2 repositories of a target to be downloaded */
+    DOWNLOAD,
+    /** extracting or cloning the target SDK */
+    EXTRACT,
+    /** running the p2 director */
+    DIRECTOR,
+    /** writing a distro archive */
+    COMPRESS;
+
+    /**
+     * @return the name used in the build report
+     */
+    public String getId() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+}
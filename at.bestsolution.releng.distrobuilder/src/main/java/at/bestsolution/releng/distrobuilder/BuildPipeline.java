@@ -0,0 +1,140 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes jobs through a sequence of stages, each with its own pool of
+ * threads, so a job can be in one stage while the next job is in another.
+ * <p>
+ * Every stage takes at most as many jobs as it has threads plus the same
+ * number waiting in its queue. A thread finishing a job blocks until the
+ * next stage has room for it, so a slow stage holds back the stages before
+ * it instead of letting the jobs pile up.
+ * </p>
+ *
+ * @param <T>
+ *            type of the jobs
+ */
+class BuildPipeline<T> {
+    /**
+     * The work of a stage.
+     */
+    interface Step<T> {
+        /**
+         * @return <code>false</code> if the job is complete and skips the
+         *         remaining stages
+         */
+        boolean run(T job) throws Exception;
+    }
+
+    /**
+     * Called once for every job leaving the pipeline.
+     */
+    interface Completion<T> {
+        /**
+         * @param failure
+         *            the exception the job failed with or <code>null</code>
+         */
+        void finished(T job, Throwable failure);
+    }
+
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    private class Stage {
+        final Step<T> step;
+        final ExecutorService executor;
+        final Semaphore slots;
+
+        Stage(final String name, int threads, Step<T> step) {
+            this.step = step;
+            this.slots = new Semaphore(2 * threads);
+            final AtomicInteger count = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "pipeline-" + name + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Appends a stage running on <code>threads</code> threads.
+     */
+    void addStage(String name, int threads, Step<T> step) {
+        stages.add(new Stage(name, Math.max(1, threads), step));
+    }
+
+    /**
+     * Passes all <code>jobs</code> through the stages and waits until every
+     * one of them is finished. A failing job does not affect the others.
+     */
+    void run(List<T> jobs, Completion<T> completion) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(jobs.size());
+        try {
+            for (T job : jobs) {
+                submit(0, job, completion, done);
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            for (Stage s : stages) {
+                s.executor.shutdownNow();
+            }
+            throw e;
+        } finally {
+            for (Stage s : stages) {
+                s.executor.shutdown();
+            }
+        }
+    }
+
+    private void submit(final int index, final T job, final Completion<T> completion, final CountDownLatch done)
+            throws InterruptedException {
+        final Stage stage = stages.get(index);
+        stage.slots.acquire();
+        stage.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean next;
+                    try {
+                        next = stage.step.run(job);
+                    } catch (Throwable e) {
+                        finish(job, e, completion, done);
+                        return;
+                    }
+                    if (next && index + 1 < stages.size()) {
+                        try {
+                            submit(index + 1, job, completion, done);
+                        } catch (InterruptedException e) {
+                            finish(job, e, completion, done);
+                        }
+                    } else {
+                        finish(job, null, completion, done);
+                    }
+                } finally {
+                    stage.slots.release();
+                }
+            }
+        });
+    }
+
+    private void finish(T job, Throwable failure, Completion<T> completion, CountDownLatch done) {
+        try {
+            completion.finished(job, failure);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The work of a build, resolved from the target directory and the configured
+ * elements before anything runs.
+ * <p>
+ * Every SDK archive below <code>&lt;version&gt;/&lt;os&gt;/&lt;arch&gt;</code>
+ * is a {@link Target}. Targets with the same SDK content, install units and
+ * repositories end up in the same {@link WorkUnit}: the SDK is extracted and
+ * the director runs once, the result is written to the outputs of all its
+ * targets.
+ * </p>
+ */
+class BuildPlan {
+    private static final FileFilter DIRS = new FileFilter() {
+        public boolean accept(File pathname) {
+            return pathname.isDirectory();
+        }
+    };
+
+    private final List<WorkUnit> units = new ArrayList<WorkUnit>();
+    private final Set<String> versions = new LinkedHashSet<String>();
+    private final Set<String> updateSites = new LinkedHashSet<String>();
+    private final Set<String> repositories = new LinkedHashSet<String>();
+    private int targetCount;
+
+    static class Target {
+        final String version;
+        final String os;
+        final String arch;
+        final File sdk;
+        final File out;
+        final ArchiveCodec codec;
+        /** {@link CodecSettings#DEFAULT_LEVEL} if not set by the output format */
+        final int level;
+
+        Target(String version, String os, String arch, File sdk, File out, ArchiveCodec codec, int level) {
+            this.version = version;
+            this.os = os;
+            this.arch = arch;
+            this.sdk = sdk;
+            this.out = out;
+            this.codec = codec;
+            this.level = level;
+        }
+
+        @Override
+        public String toString() {
+            return version + "/" + os + "/" + arch + "/" + sdk.getName();
+        }
+    }
+
+    static class WorkUnit {
+        final String id;
+        final String sdkDigest;
+        final List<String> installUnits;
+        final List<String> updateSites;
+        final List<String> repositories;
+        final List<String> staticRepositories;
+        final List<Target> targets = new ArrayList<Target>();
+
+        WorkUnit(String id, String sdkDigest, List<String> installUnits, List<String> updateSites,
+                List<String> repositories, List<String> staticRepositories) {
+            this.id = id;
+            this.sdkDigest = sdkDigest;
+            this.installUnits = installUnits;
+            this.updateSites = updateSites;
+            this.repositories = repositories;
+            this.staticRepositories = staticRepositories;
+        }
+
+        /**
+         * @return the target whose SDK is extracted and whose version, os and
+         *         arch the director run is done for
+         */
+        Target getPrimary() {
+            return targets.get(0);
+        }
+
+        Set<String> getVersions() {
+            Set<String> rv = new LinkedHashSet<String>();
+            for (Target t : targets) {
+                rv.add(t.version);
+            }
+            return rv;
+        }
+    }
+
+    /**
+     * Resolves the targets below <code>targetDir</code>.
+     *
+     * @param digests
+     *            used to recognize identical SDK archives
+     * @param overlay
+     *            whether the outputs are overlay archives
+     * @param outputFormats
+     *            the first matching format is used for a target, targets
+     *            without one keep the format of their SDK
+     */
+    static BuildPlan create(File targetDir, String staticReposDirectory, File distDir, String appDefinition,
+            boolean overlay, FileDigests digests, List<? extends FilteredElement> installUnits,
+            List<? extends FilteredElement> updateSites, List<? extends FilteredElement> repositories,
+            List<OutputFormat> outputFormats) throws IOException {
+        BuildPlan plan = new BuildPlan();
+        Map<String, WorkUnit> units = new LinkedHashMap<String, WorkUnit>();
+        for (File versionDir : targetDir.listFiles(DIRS)) {
+            String version = versionDir.getName();
+            plan.versions.add(version);
+            for (File osDir : versionDir.listFiles(DIRS)) {
+                String os = osDir.getName();
+                for (File archDir : osDir.listFiles(DIRS)) {
+                    String arch = archDir.getName();
+
+                    List<String> ius = filterList(installUnits, version, os, arch);
+                    List<String> sites = filterList(updateSites, version, os, arch);
+                    List<String> repos = filterList(repositories, version, os, arch);
+                    List<String> staticRepos = new ArrayList<String>();
+                    collectZipFiles(staticRepos, staticReposDirectory, "shared", os, arch);
+                    collectZipFiles(staticRepos, staticReposDirectory, version, os, arch);
+                    OutputFormat format = findFirst(outputFormats, version, os, arch);
+                    plan.updateSites.addAll(sites);
+                    plan.repositories.addAll(repos);
+
+                    for (File sdk : archDir.listFiles()) {
+                        if (!sdk.isFile()) {
+                            continue;
+                        }
+                        String digest = digests.get(sdk);
+                        String key = digest + "\n" + ius + "\n" + sites + "\n" + repos + "\n" + staticRepos;
+                        WorkUnit unit = units.get(key);
+                        if (unit == null) {
+                            unit = new WorkUnit(String.valueOf(units.size() + 1), digest, ius, sites, repos,
+                                    staticRepos);
+                            units.put(key, unit);
+                        }
+                        ArchiveCodec codec = format != null ? ArchiveCodecs.get(format.getName()) : ArchiveCodecs
+                                .forFile(sdk.getName());
+                        if (codec == null) {
+                            codec = ArchiveCodecs.get(ArchiveCodecs.TAR_GZ);
+                        }
+                        unit.targets.add(new Target(version, os, arch, sdk, new File(distDir, constructFilename(
+                                sdk.getName(), appDefinition, overlay, codec)), codec, format != null ? format
+                                .getLevel() : CodecSettings.DEFAULT_LEVEL));
+                        plan.targetCount++;
+                    }
+                }
+            }
+        }
+        plan.units.addAll(units.values());
+        return plan;
+    }
+
+    /**
+     * @return a plan building only <code>unit</code>
+     */
+    static BuildPlan of(WorkUnit unit) {
+        BuildPlan plan = new BuildPlan();
+        plan.units.add(unit);
+        plan.versions.addAll(unit.getVersions());
+        plan.updateSites.addAll(unit.updateSites);
+        plan.repositories.addAll(unit.repositories);
+        plan.targetCount = unit.targets.size();
+        return plan;
+    }
+
+    public List<WorkUnit> getUnits() {
+        return Collections.unmodifiableList(units);
+    }
+
+    public Set<String> getVersions() {
+        return versions;
+    }
+
+    /**
+     * @return the update sites needed by any target
+     */
+    public Set<String> getUpdateSites() {
+        return updateSites;
+    }
+
+    /**
+     * @return the P2 repositories needed by any target
+     */
+    public Set<String> getRepositories() {
+        return repositories;
+    }
+
+    /**
+     * Prints the work units with an estimate of the work needed to build
+     * them.
+     */
+    public void print(PrintStream out) {
+        long extract = 0;
+        int outputs = 0;
+        out.println("Build plan: " + targetCount + " targets, " + units.size() + " director runs");
+        for (WorkUnit unit : units) {
+            Target primary = unit.getPrimary();
+            long size = primary.sdk.length();
+            extract += size;
+            outputs += unit.targets.size();
+            out.println("  [" + unit.id + "] " + primary + " (" + size / (1024 * 1024) + " MB)");
+            out.println("      install units: " + unit.installUnits.size() + ", update sites: "
+                    + unit.updateSites.size() + ", repositories: " + unit.repositories.size()
+                    + ", static repositories: " + unit.staticRepositories.size());
+            for (Target t : unit.targets) {
+                out.println("      -> " + t.out.getName() + (t == primary ? "" : " (same inputs as " + primary + ")"));
+            }
+        }
+        out.println("Estimated work: " + units.size() + " extractions of " + extract / (1024 * 1024)
+                + " MB, " + units.size() + " director runs, " + outputs + " archives, " + repositories.size()
+                + " repositories to download, " + (targetCount - units.size()) + " runs saved by merging");
+    }
+
+    static String constructFilename(String sourceName, String appDefinition, boolean overlay, ArchiveCodec codec) {
+        ArchiveCodec source = ArchiveCodecs.forFile(sourceName);
+        String suffix = source != null ? source.getSuffix() : ".tar.gz";
+        if (appDefinition == null) {
+            appDefinition = "distro";
+        }
+        return sourceName.substring(0, sourceName.length() - suffix.length()) + "-" + appDefinition
+                + (overlay ? "-overlay" : "") + codec.getSuffix();
+    }
+
+    static List<String> filterList(List<? extends FilteredElement> list, String version, String os, String arch) {
+        List<String> rv = new ArrayList<String>();
+
+        for (FilteredElement u : list) {
+            if (matches(u, version, os, arch)) {
+                rv.add(u.getValue());
+            }
+        }
+
+        return rv;
+    }
+
+    static <T extends FilteredElement> T findFirst(List<T> list, String version, String os, String arch) {
+        for (T e : list) {
+            if (matches(e, version, os, arch)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(FilteredElement u, String version, String os, String arch) {
+        if (u.getVersion() != null && !u.getVersion().equals(version)) {
+            return false;
+        }
+
+        if (u.getOs() != null && !u.getOs().equals(os)) {
+            return false;
+        }
+
+        if (u.getArch() != null && !u.getArch().equals(arch)) {
+            return false;
+        }
+
+        return true;
+    }
+
+    static void collectZipFiles(List<String> collectedZips,
+            String rootDir,
+            String version,
+            String os,
+            String arch) {
+        File versionDir = new File(rootDir, version);
+        if (versionDir.exists() && versionDir.isDirectory()) {
+            for (File f : versionDir.listFiles()) {
+                if (f.getName().equals(os)) {
+                    for (File fOs : f.listFiles()) {
+                        if (fOs.isDirectory()) {
+                            if (fOs.getName().equals(arch)) {
+                                for (File fArch : fOs.listFiles()) {
+                                    if (fArch.isFile() && fArch.getName().endsWith(".zip")) {
+                                        collectedZips.add(toZipString(fArch));
+                                    }
+                                }
+                            }
+                        } else if (fOs.isFile() && fOs.getName().endsWith(".zip")) {
+                            collectedZips.add(toZipString(fOs));
+                        }
+                    }
+                }
+                if (f.isFile() && f.getName().endsWith(".zip")) {
+                    collectedZips.add(toZipString(f));
+                }
+            }
+        }
+    }
+
+    static String toZipString(File zipFile) {
+        String dir = zipFile.getParentFile().getAbsolutePath();
+        String name = zipFile.getName();
+        return String.format("jar:file:%s/%s!/", dir, name);
+    }
+}
@@ -0,0 +1,151 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Local p2 artifact repository per target version shared by the director
+ * runs of all platforms.
+ * <p>
+ * After a target has been installed, the artifacts of the installation are
+ * mirrored into <code>&lt;directory&gt;/&lt;version&gt;</code> with the p2
+ * artifact mirror application. Later director runs of the same version get
+ * the pool as an additional repository, so bundles already installed for
+ * another platform are copied from disk instead of being downloaded again.
+ * </p>
+ * <p>
+ * A pool is dropped when its version is no longer built or when a run which
+ * built all targets of the version did not use all of its bundles; the next
+ * run then starts a fresh pool.
+ * </p>
+ */
+class BundlePool {
+    private final File directory;
+    private final String director;
+    private final DirectorLog log;
+
+    private final Map<String, ReadWriteLock> locks = new HashMap<String, ReadWriteLock>();
+    private final Map<String, Set<String>> used = new HashMap<String, Set<String>>();
+    private final Set<String> incomplete = new HashSet<String>();
+
+    BundlePool(File directory, String director, DirectorLog log) {
+        this.directory = directory;
+        this.director = director;
+        this.log = log;
+    }
+
+    /**
+     * @return the location of the pool of <code>version</code> or
+     *         <code>null</code> if it has no artifacts yet
+     */
+    public String getLocation(String version) {
+        File dir = getDirectory(version);
+        if (new File(dir, "artifacts.xml").exists() || new File(dir, "artifacts.jar").exists()) {
+            return dir.toURI().toString();
+        }
+        return null;
+    }
+
+    /**
+     * Lock to hold while a director reads the pool of <code>version</code>,
+     * the pool is not modified while it is held.
+     */
+    public synchronized ReadWriteLock getLock(String version) {
+        ReadWriteLock l = locks.get(version);
+        if (l == null) {
+            l = new ReentrantReadWriteLock(true);
+            locks.put(version, l);
+        }
+        return l;
+    }
+
+    /**
+     * Adds the artifacts of <code>installDir</code> missing in the pool of
+     * <code>version</code>.
+     */
+    public void harvest(String version, File installDir) throws IOException, InterruptedException {
+        synchronized (this) {
+            Set<String> names = used.get(version);
+            if (names == null) {
+                names = new HashSet<String>();
+                used.put(version, names);
+            }
+            list(names, new File(installDir, "plugins"));
+            list(names, new File(installDir, "features"));
+        }
+
+        File dir = getDirectory(version);
+        dir.mkdirs();
+        ReadWriteLock l = getLock(version);
+        l.writeLock().lock();
+        try {
+            UpdateSiteMirror.run(director, UpdateSiteMirror.ARTIFACT_MIRROR, installDir.getAbsoluteFile().toURI()
+                    .toString(), dir.toURI().toString(), log);
+        } finally {
+            l.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks a target of <code>version</code> as not installed in this run,
+     * the bundles it needs are unknown and its pool is kept as it is.
+     */
+    public synchronized void skipped(String version) {
+        incomplete.add(version);
+    }
+
+    /**
+     * Removes the pools of versions not in <code>versions</code> and pools
+     * holding bundles no target of this run installed.
+     */
+    public synchronized void cleanup(Collection<String> versions) {
+        File[] dirs = directory.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            String version = dir.getName();
+            if (!versions.contains(version)) {
+                System.out.println("Removing bundle pool of " + version + ", version is no longer built");
+                DistroBuilder.deleteDirectory(dir);
+            } else if (!incomplete.contains(version) && used.containsKey(version) && hasUnused(dir, used.get(version))) {
+                System.out.println("Removing bundle pool of " + version + ", it holds bundles no longer used");
+                DistroBuilder.deleteDirectory(dir);
+            }
+        }
+    }
+
+    private static boolean hasUnused(File pool, Set<String> names) {
+        Set<String> pooled = new HashSet<String>();
+        list(pooled, new File(pool, "plugins"));
+        list(pooled, new File(pool, "features"));
+        for (String name : pooled) {
+            // folder shaped bundles are stored as jars in the pool
+            if (!names.contains(name) && !(name.endsWith(".jar") && names.contains(name.substring(0,
+                    name.length() - 4)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void list(Set<String> names, File dir) {
+        String[] children = dir.list();
+        if (children != null) {
+            for (String child : children) {
+                names.add(dir.getName() + "/" + child);
+            }
+        }
+    }
+
+    private File getDirectory(String version) {
+        return new File(directory, version).getAbsoluteFile();
+    }
+}
@@ -0,0 +1,99 @@
+package at.bestsolution.releng.distrobuilder;
+
+/**
+ * The parameters an archive is written with.
+ */
+public class CodecSettings {
+    /** let the codec choose its default level */
+    public static final int DEFAULT_LEVEL = -1;
+
+    private int level = DEFAULT_LEVEL;
+    private int threads = 1;
+    private int blockSize = ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE;
+    private boolean storeIncompressible;
+    private ExtractionIndex index;
+    private EntryCache cache;
+
+    public CodecSettings() {
+    }
+
+    CodecSettings(CodecSettings other) {
+        this.level = other.level;
+        this.threads = other.threads;
+        this.blockSize = other.blockSize;
+        this.storeIncompressible = other.storeIncompressible;
+        this.index = other.index;
+        this.cache = other.cache;
+    }
+
+    /**
+     * @return the compression level in the range of the codec, or
+     *         {@link #DEFAULT_LEVEL}
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * @return the number of threads used to compress the archive
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return block size used for parallel gzip compression
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return whether entries which do not get smaller when compressed are
+     *         stored as they are, see
+     *         {@link ArchiveCodecs#isIncompressible(String)}
+     */
+    public boolean isStoreIncompressible() {
+        return storeIncompressible;
+    }
+
+    public void setStoreIncompressible(boolean storeIncompressible) {
+        this.storeIncompressible = storeIncompressible;
+    }
+
+    /**
+     * @return the files extracted from the target SDK, may be
+     *         <code>null</code>
+     */
+    ExtractionIndex getIndex() {
+        return index;
+    }
+
+    void setIndex(ExtractionIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @return deflated file content shared with other archives, may be
+     *         <code>null</code>
+     */
+    EntryCache getCache() {
+        return cache;
+    }
+
+    void setCache(EntryCache cache) {
+        this.cache = cache;
+    }
+}
@@ -0,0 +1,142 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Raw deflate data ending on a byte boundary with a sync flush, without a
+ * final block. Segments can be concatenated with each other and with other
+ * sync flushed data; {@link #FINAL_BLOCK} terminates the stream.
+ */
+class DeflateSegment {
+    /** empty final block with fixed Huffman codes */
+    static final byte[] FINAL_BLOCK = { 0x03, 0x00 };
+
+    final byte[] data;
+    final long crc;
+    final long length;
+
+    DeflateSegment(byte[] data, long crc, long length) {
+        this.data = data;
+        this.crc = crc;
+        this.length = length;
+    }
+
+    /**
+     * @return the segment as complete deflate stream, e.g. for a zip entry
+     */
+    byte[] toFinishedStream() {
+        byte[] rv = new byte[data.length + FINAL_BLOCK.length];
+        System.arraycopy(data, 0, rv, 0, data.length);
+        System.arraycopy(FINAL_BLOCK, 0, rv, data.length, FINAL_BLOCK.length);
+        return rv;
+    }
+
+    /**
+     * Deflates the content of <code>file</code> into a segment.
+     */
+    static DeflateSegment deflate(File file, int level) throws IOException {
+        return deflate(file, 0, Long.MAX_VALUE, level);
+    }
+
+    /**
+     * Deflates <code>count</code> bytes of <code>file</code> starting at
+     * <code>offset</code>, or less if the file ends before, into a segment.
+     */
+    static DeflateSegment deflate(File file, long offset, long count, int level) throws IOException {
+        Deflater deflater = new Deflater(level, true);
+        CRC32 crc = new CRC32();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+            long expected = Math.min(count, Math.max(0, file.length() - offset));
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(
+                    level == Deflater.NO_COMPRESSION ? expected + expected / 1000 + 64 : expected / 2 + 64,
+                    Integer.MAX_VALUE));
+            byte[] buf = new byte[64 * 1024];
+            byte[] outBuf = new byte[64 * 1024];
+            long length = 0;
+            int l;
+            while (length < count && (l = in.read(buf, 0, (int) Math.min(buf.length, count - length))) != -1) {
+                crc.update(buf, 0, l);
+                length += l;
+                deflater.setInput(buf, 0, l);
+                while (!deflater.needsInput()) {
+                    out.write(outBuf, 0, deflater.deflate(outBuf));
+                }
+            }
+            int n;
+            do {
+                n = deflater.deflate(outBuf, 0, outBuf.length, Deflater.SYNC_FLUSH);
+                out.write(outBuf, 0, n);
+            } while (n == outBuf.length);
+            return new DeflateSegment(out.toByteArray(), crc.getValue(), length);
+        } finally {
+            in.close();
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the CRC-32 of the concatenation of two byte sequences with the
+     *         checksums <code>crc1</code> and <code>crc2</code>, the second
+     *         one being <code>length2</code> bytes long (zlib's
+     *         <code>crc32_combine</code>)
+     */
+    static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operators for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // apply len2 zeros to crc1, the first square is for one zero byte
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Captures the output of director processes into a log file.
+ * <p>
+ * Every line is written to the file and kept in a tail of the last lines;
+ * what reaches the console depends on the {@link ConsoleLevel}. The output
+ * of a process is read by {@link #capture(InputStream, boolean)} threads, so
+ * a slow console does not hold up the director and the output of concurrent
+ * directors is not interleaved on the console.
+ * </p>
+ */
+class DirectorLog implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * What is printed to the console besides the log file.
+     */
+    enum ConsoleLevel {
+        /** a line per director run, the tail if it failed */
+        SUMMARY,
+        /** also stderr and the <code>!ENTRY</code> lines of -consoleLog */
+        ERRORS,
+        /** everything */
+        ALL;
+
+        static ConsoleLevel parse(String level) throws DistroBuildException {
+            try {
+                return valueOf(level.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new DistroBuildException("Unknown director console level " + level
+                        + ", use summary, errors or all");
+            }
+        }
+    }
+
+    private final String name;
+    private final File file;
+    private final int tailSize;
+    private final ConsoleLevel level;
+    private final Writer out;
+    private final Deque<String> tail = new ArrayDeque<String>();
+
+    /**
+     * @param name
+     *            prefix of the lines printed to the console
+     * @param tailSize
+     *            number of lines kept for {@link #printTail(PrintStream)}
+     */
+    DirectorLog(String name, File file, int tailSize, ConsoleLevel level) throws IOException {
+        this.name = name;
+        this.file = file;
+        this.tailSize = tailSize;
+        this.level = level;
+        file.getParentFile().mkdirs();
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8), 64 * 1024);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    ConsoleLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * Adds a line to the log.
+     *
+     * @param error
+     *            whether the line is from stderr
+     */
+    public synchronized void println(String line, boolean error) {
+        try {
+            out.write(line);
+            out.write('\n');
+        } catch (IOException e) {
+            // the tail is still complete
+        }
+        if (tailSize > 0) {
+            if (tail.size() == tailSize) {
+                tail.removeFirst();
+            }
+            tail.addLast(line);
+        }
+        if (level == ConsoleLevel.ALL || (level == ConsoleLevel.ERRORS && (error || line.startsWith("!")))) {
+            (error ? System.err : System.out).println("[" + name + "] " + line);
+        }
+    }
+
+    /**
+     * Starts a thread adding the lines of <code>in</code> to the log.
+     *
+     * @return the thread, it ends with the input
+     */
+    public Thread capture(InputStream in, boolean error) {
+        Thread t = new Capture(in, error);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Runs <code>command</code> and captures its output.
+     *
+     * @return the exit code of the process
+     */
+    public int run(List<String> command) throws IOException, InterruptedException {
+        Process p = new ProcessBuilder(command).start();
+        Thread stdThread = capture(p.getInputStream(), false);
+        Thread errThread = capture(p.getErrorStream(), true);
+        try {
+            int rv = p.waitFor();
+            stdThread.join();
+            errThread.join();
+            return rv;
+        } catch (InterruptedException e) {
+            p.destroy();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the last lines of the log
+     */
+    public synchronized List<String> getTail() {
+        return new ArrayList<String>(tail);
+    }
+
+    /**
+     * Prints the last lines of the log, e.g. after the director failed.
+     */
+    public void printTail(PrintStream ps) {
+        List<String> lines = getTail();
+        StringBuilder b = new StringBuilder();
+        b.append("Last ").append(lines.size()).append(" lines of ").append(file.getAbsolutePath()).append(':');
+        for (String l : lines) {
+            b.append("\n  ").append(l);
+        }
+        ps.println(b);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    class Capture extends Thread {
+        private final InputStream in;
+        private final boolean error;
+
+        Capture(InputStream in, boolean error) {
+            super("director-log-" + name);
+            setDaemon(true);
+            this.in = in;
+            this.error = error;
+        }
+
+        @Override
+        public void run() {
+            BufferedReader r = new BufferedReader(new InputStreamReader(in));
+            String l;
+            try {
+                while ((l = r.readLine()) != null) {
+                    println(l, error);
+                }
+            } catch (IOException e) {
+                println("Failed to read output: " + e.getMessage(), true);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Pool of long running director workers, so targets do not pay for starting
+ * Eclipse and loading p2 again for every install.
+ * <p>
+ * Workers are started on demand, at most <code>size</code> of them, a worker
+ * which died is replaced by the next job. Workers talk a line based UTF-8
+ * protocol over their stdin and stdout:
+ * </p>
+ * <ul>
+ * <li>after startup the worker writes <code>READY</code></li>
+ * <li>a job is the line <code>INSTALL &lt;n&gt;</code> followed by the
+ * <code>n</code> director arguments, one per line</li>
+ * <li>the worker answers with output lines prefixed by <code>&gt; </code>
+ * for stdout and <code>! </code> for stderr and ends the job with
+ * <code>EXIT &lt;code&gt;</code></li>
+ * <li>the worker terminates when its stdin is closed</li>
+ * </ul>
+ * A worker pays off only if it keeps the OSGi framework and p2 loaded between
+ * jobs, e.g. an Eclipse application running the director application for
+ * every job; a worker forking the director executable per job would add a
+ * process instead of saving one. There is therefore no default worker.
+ */
+class DirectorWorkerPool {
+    static final String READY = "READY";
+    static final String INSTALL = "INSTALL ";
+    static final String OUT = "> ";
+    static final String ERR = "! ";
+    static final String EXIT = "EXIT ";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<String> command;
+    /** one permit per job which may run at the same time */
+    private final Semaphore jobs;
+    private final DirectorLog log;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+    private final List<Worker> workers = new ArrayList<Worker>();
+
+    /**
+     * @param command
+     *            command line starting a worker
+     * @param size
+     *            maximum number of workers
+     * @param log
+     *            receives the stderr of the workers outside of jobs
+     */
+    DirectorWorkerPool(List<String> command, int size, DirectorLog log) {
+        this.command = command;
+        this.jobs = new Semaphore(size, true);
+        this.log = log;
+    }
+
+    /**
+     * Runs the director with <code>args</code> on an idle worker, its output
+     * goes to <code>jobLog</code>.
+     *
+     * @return the exit code of the director
+     * @throws IOException
+     *             if no worker could be started or the worker died, the job
+     *             has to be run without a worker then
+     */
+    public int run(List<String> args, DirectorLog jobLog) throws IOException, InterruptedException {
+        jobs.acquire();
+        try {
+            // with fewer than size jobs running and none idle there are fewer
+            // than size workers, so a new one may be started
+            Worker w = idle.poll();
+            if (w == null) {
+                w = start();
+            }
+            boolean healthy = false;
+            try {
+                int rv = w.run(args, jobLog);
+                healthy = true;
+                return rv;
+            } finally {
+                if (healthy) {
+                    idle.put(w);
+                } else {
+                    discard(w);
+                }
+            }
+        } finally {
+            jobs.release();
+        }
+    }
+
+    /**
+     * Stops all workers.
+     */
+    public void shutdown() {
+        List<Worker> l;
+        synchronized (workers) {
+            l = new ArrayList<Worker>(workers);
+            workers.clear();
+        }
+        for (Worker w : l) {
+            w.stop();
+        }
+    }
+
+    private Worker start() throws IOException {
+        Worker w = new Worker(command, log);
+        synchronized (workers) {
+            workers.add(w);
+        }
+        return w;
+    }
+
+    private void discard(Worker w) {
+        synchronized (workers) {
+            workers.remove(w);
+        }
+        w.kill();
+    }
+
+    static class Worker {
+        private final Process process;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Worker(List<String> command, DirectorLog log) throws IOException {
+            process = new ProcessBuilder(command).start();
+            log.capture(process.getErrorStream(), true);
+            in = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF8));
+            out = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), UTF8));
+            String l = in.readLine();
+            if (!READY.equals(l)) {
+                kill();
+                throw new IOException("Director worker failed to start: " + l);
+            }
+        }
+
+        int run(List<String> args, DirectorLog log) throws IOException {
+            out.println(INSTALL + args.size());
+            for (String arg : args) {
+                out.println(arg);
+            }
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("Director worker is gone");
+            }
+
+            String l;
+            while ((l = in.readLine()) != null) {
+                if (l.startsWith(OUT)) {
+                    log.println(l.substring(OUT.length()), false);
+                } else if (l.startsWith(ERR)) {
+                    log.println(l.substring(ERR.length()), true);
+                } else if (l.startsWith(EXIT)) {
+                    try {
+                        return Integer.parseInt(l.substring(EXIT.length()).trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid reply of director worker: " + l);
+                    }
+                } else {
+                    log.println(l, false);
+                }
+            }
+            throw new IOException("Director worker terminated unexpectedly");
+        }
+
+        void stop() {
+            out.close();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void kill() {
+            out.close();
+            process.destroy();
+        }
+    }
+}
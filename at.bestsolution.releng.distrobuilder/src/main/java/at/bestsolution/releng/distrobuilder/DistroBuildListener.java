@@ -0,0 +1,42 @@
+package at.bestsolution.releng.distrobuilder;
+
+/**
+ * Receives progress events while distros are built, see
+ * {@link DistroBuilder#addBuildListener(DistroBuildListener)}.
+ * <p>
+ * Work units are built concurrently in parallel mode, so the methods may be
+ * called from several threads. Targets are identified by
+ * <code>&lt;version&gt;/&lt;os&gt;/&lt;arch&gt;/&lt;sdk&gt;</code>, the phases
+ * of a work unit are reported for its first target; phases not belonging to
+ * a target report <code>null</code>.
+ * </p>
+ */
+public interface DistroBuildListener {
+    /**
+     * @param units
+     *            number of work units, i.e. director runs, of the build
+     */
+    void buildStarted(int units);
+
+    void unitStarted(String target);
+
+    void phaseStarted(String target, BuildPhase phase);
+
+    /**
+     * @param bytes
+     *            bytes processed, e.g. the size of the downloaded
+     *            repositories or the uncompressed size of a distro
+     * @param files
+     *            number of files processed
+     */
+    void phaseFinished(String target, BuildPhase phase, long millis, long bytes, int files);
+
+    /**
+     * @param success
+     *            <code>false</code> if the unit failed or the director
+     *            returned an error
+     */
+    void unitFinished(String target, boolean success);
+
+    void buildFinished(boolean success, long millis);
+}
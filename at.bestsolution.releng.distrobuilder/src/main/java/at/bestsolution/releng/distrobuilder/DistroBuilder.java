@@ -1,31 +1,25 @@
 package at.bestsolution.releng.distrobuilder;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.math.BigInteger;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
-
-import org.apache.tools.tar.TarEntry;
-import org.apache.tools.tar.TarInputStream;
-import org.apache.tools.tar.TarOutputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Java class that abstracts/encapsulates building Eclipse distributions to
@@ -35,12 +29,6 @@ public class DistroBuilder {
 
     // http://help.eclipse.org/juno/index.jsp?topic=/org.eclipse.platform.doc.isv/guide/p2_director.html
 
-    private static final FileFilter DIRS = new FileFilter() {
-        public boolean accept(File pathname) {
-            return pathname.isDirectory();
-        }
-    };
-
     private String targetDirectory;
     private String p2DirectorExecutable;
     private String staticReposDirectory;
@@ -48,54 +36,156 @@ public class DistroBuilder {
     private String distDirectory;
     private String profile;
     private String appDefinition;
+    private int threads = 1;
+    private int compressionThreads = 1;
+    private int compressionBlockSize = ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE;
+    private boolean reuseSdkEntries;
+    private boolean sdkCache;
+    private SdkCache extractedSdks;
+    private boolean incremental;
+    private FileDigests digests;
+    private int coordinatorPort;
+    private String coordinatorAddress;
+    private String coordinatorSecret;
+    private String stagingDirectory;
+    private long stagingLimit;
+    private StagingArea staging;
+    private int mirrorMinThroughput = 64;
+    private int mirrorSplit;
+    /** mirrors received from a {@link BuildCoordinator} */
+    private final Map<String, List<String>> mirrorUrls = new HashMap<String, List<String>>();
+    private MirrorSelector mirrorSelector;
+    private List<String> buildReport;
+    private int downloadThreads = 4;
+    private long downloadCacheSize;
+    private boolean mirrorUpdateSites;
+    private UpdateSiteMirror siteMirror;
+    private boolean sharedBundlePool;
+    private BundlePool bundlePool;
+    private boolean aggregateRepositories;
+    private boolean dryRun;
+    private int directorWorkers;
+    private String directorWorkerCommand;
+    private DirectorWorkerPool directorPool;
+    private int extractionThreads = 1;
+    private boolean overlayOutput;
+    private boolean compressedEntryCache;
+    private boolean keepCompressedEntryCache;
+    private EntryCache entryCache;
+    private BuildMetrics metrics;
+    private final List<DistroBuildListener> listeners = new CopyOnWriteArrayList<DistroBuildListener>();
+    private int compressionLevel = CodecSettings.DEFAULT_LEVEL;
+    private boolean storeIncompressible;
+    private boolean pipeline;
+    private int extractStageThreads = 1;
+    private int installStageThreads = 1;
+    private int compressStageThreads = 1;
+    private int maxWorkingTrees;
+    private long workingTreeDiskLimit;
+    private String directorConsole = "summary";
+    private int directorLogTail = 50;
+    private DirectorLog.ConsoleLevel consoleLevel;
+    private DirectorLog toolLog;
+    private RepositoryAggregator aggregator;
+    private DownloadCache downloadCache;
+    private RepositoryDownloader downloader;
 
     private List<InstallUnit> iuList = new ArrayList<InstallUnit>();
     private List<UpdateSite> siteList = new ArrayList<UpdateSite>();
     private List<P2Repository> repoList = new ArrayList<P2Repository>();
+    private List<OutputFormat> formatList = new ArrayList<OutputFormat>();
 
-    private static final int OWNER_EXEC = 00100;
-    private static final int GROUP_EXEC = 00010;
-    private static final int OTHER_EXEC = 00001;
-
-    static class PipeThread extends Thread {
-        private final InputStream in;
-        private final PrintStream out;
-
-        public PipeThread(InputStream in, PrintStream out) {
-            setDaemon(true);
-            this.in = in;
-            this.out = out;
+    private void buildUnit(BuildPlan.WorkUnit unit) throws DistroBuildException {
+        String target = unit.getPrimary().toString();
+        metrics.unitStarted(target);
+        boolean success = false;
+        UnitJob job = new UnitJob(unit, target);
+        try {
+            success = runUnit(job);
+        } finally {
+            if (job.workDir != null) {
+                staging.release(job.workDir);
+            }
+            metrics.unitFinished(target, success);
         }
+    }
 
-        @Override
-        public void run() {
-            BufferedReader r = new BufferedReader(new InputStreamReader(in));
-            String l;
-            try {
-                while ((l = r.readLine()) != null) {
-                    out.println(l);
-                }
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
+    /**
+     * The state of a work unit passed from one build step to the next.
+     */
+    static class UnitJob {
+        final BuildPlan.WorkUnit unit;
+        final String target;
+        /** allocated from the {@link StagingArea} when the SDK is extracted */
+        File workDir;
+        List<String> repos;
+        List<String> downloadedRepos;
+        Map<String, String> fingerprints;
+        List<BuildPlan.Target> outdated;
+        BuildManifest manifest;
+        File rootDir;
+        ExtractionIndex index;
+        /** whether the unit holds a place in the {@link WorkingTreeBudget} */
+        boolean hasTree;
+        long treeSize;
+        boolean success;
+        Throwable failure;
+
+        UnitJob(BuildPlan.WorkUnit unit, String target) {
+            this.unit = unit;
+            this.target = target;
         }
     }
 
-    private void buildDistro(File targetSdksDir, String version, String os, String arch) throws DistroBuildException {
+    /**
+     * @return <code>false</code> if the director failed
+     */
+    private boolean runUnit(UnitJob job) throws DistroBuildException {
+        if (!prepareUnit(job)) {
+            return true;
+        }
+        extractUnit(job);
+        if (!installUnit(job)) {
+            return false;
+        }
+        compressUnit(job);
+        return true;
+    }
 
-        System.out.println("Build distro for " + version + " - " + os + " - " + arch);
+    /**
+     * Downloads the repositories of the unit and, in incremental mode, finds
+     * the targets whose inputs changed.
+     *
+     * @return <code>false</code> if all targets are up to date
+     */
+    private boolean prepareUnit(UnitJob job) throws DistroBuildException {
+        BuildPlan.WorkUnit unit = job.unit;
+        BuildPlan.Target primary = unit.getPrimary();
+        String version = primary.version;
+        System.out.println("Build distro for " + version + " - " + primary.os + " - " + primary.arch);
+        for (BuildPlan.Target t : unit.targets) {
+            if (t != primary) {
+                System.out.println("  same inputs as " + t.version + " - " + t.os + " - " + t.arch);
+            }
+        }
 
-        List<String> iuList = filterList(this.iuList, version, os, arch);
-        List<String> repos = filterList(this.siteList, version, os, arch);
+        List<String> iuList = unit.installUnits;
+        List<String> sites = unit.updateSites;
+        List<String> downloadedRepos;
         try {
-            repos.addAll(makeLocalRepos(new File(buildDirectory, "cache"), filterList(repoList, version, os, arch)));
+            BuildMetrics.Timer timer = metrics.start(job.target, BuildPhase.DOWNLOAD);
+            ArchiveIO.Counts downloaded = new ArchiveIO.Counts();
+            downloadedRepos = makeLocalRepos(unit.repositories, downloaded);
+            timer.finish(downloaded.bytes, downloaded.files);
         } catch (IOException e) {
             throw new DistroBuildException("Error downloading repositories", e);
         }
 
-        collectZipFiles(repos, staticReposDirectory, "shared", os, arch);
-        collectZipFiles(repos, staticReposDirectory, version, os, arch);
+        List<String> staticRepos = unit.staticRepositories;
+
+        List<String> repos = resolveSites(sites);
+        repos.addAll(downloadedRepos);
+        repos.addAll(staticRepos);
 
         if (p2DirectorExecutable == null) {
             throw new DistroBuildException("P2 director executable not defined");
@@ -104,6 +194,143 @@ public class DistroBuilder {
             throw new DistroBuildException("P2 director executable not found at: " + p2DirectorExecutable);
         }
 
+        Map<String, String> fingerprints = null;
+        if (aggregator != null) {
+            try {
+                fingerprints = new LinkedHashMap<String, String>();
+                for (String repo : repos) {
+                    fingerprints.put(repo, fingerprintRepository(repo));
+                }
+            } catch (IOException e) {
+                throw new DistroBuildException("Failed to fingerprint repositories", e);
+            }
+        }
+
+        List<BuildPlan.Target> outdated = new ArrayList<BuildPlan.Target>(unit.targets);
+        BuildManifest manifest = null;
+        if (incremental) {
+            try {
+                manifest = new BuildManifest();
+                manifest.put("sdk", unit.sdkDigest);
+                manifest.put("installUnits", join(iuList, ","));
+                manifest.put("updateSites", join(sites, ","));
+                manifest.put("repositories", digestRepositories(downloadedRepos));
+                manifest.put("staticRepositories", digestRepositories(staticRepos));
+                manifest.put("profile", profile == null ? "SDKProfile" : profile);
+                manifest.put("director", p2DirectorExecutable);
+                List<String> formats = new ArrayList<String>();
+                for (BuildPlan.Target t : unit.targets) {
+                    formats.add(t.codec.getName() + ":" + getLevel(t));
+                }
+                manifest.put("outputFormats", join(formats, ","));
+                manifest.put("storeIncompressible", String.valueOf(storeIncompressible));
+
+                for (BuildPlan.Target t : unit.targets) {
+                    String reason = manifest.checkUpToDate(t.out);
+                    if (reason == null) {
+                        report(t.out.getName() + ": skipped, inputs unchanged");
+                        outdated.remove(t);
+                    } else {
+                        report(t.out.getName() + ": rebuilt, " + reason);
+                        BuildManifest.delete(t.out);
+                    }
+                }
+            } catch (IOException e) {
+                throw new DistroBuildException("Failed to fingerprint inputs of " + primary, e);
+            }
+        }
+        if (outdated.isEmpty()) {
+            skipped(unit);
+            if (aggregator != null) {
+                aggregator.retain(fingerprints);
+            }
+            return false;
+        }
+
+        job.repos = repos;
+        job.downloadedRepos = downloadedRepos;
+        job.fingerprints = fingerprints;
+        job.outdated = outdated;
+        job.manifest = manifest;
+        return true;
+    }
+
+    /**
+     * Extracts the SDK of the primary target into the working directory of
+     * the unit.
+     */
+    private void extractUnit(UnitJob job) throws DistroBuildException {
+        File targetSdk = job.unit.getPrimary().sdk;
+
+        try {
+            BuildMetrics.Timer timer = metrics.start(job.target, BuildPhase.EXTRACT);
+            if (reuseSdkEntries || overlayOutput) {
+                job.index = createIndex(targetSdk);
+            }
+            job.workDir = staging.allocate(job.unit.id, targetSdk.length());
+            try {
+                job.rootDir = extract(targetSdk, job.workDir, job.index);
+            } catch (IOException e) {
+                if (!staging.isFast(job.workDir)) {
+                    throw e;
+                }
+                // most likely out of space, the disk has more
+                System.err.println("Failed to extract into " + job.workDir + ", using the disk: " + e.getMessage());
+                staging.release(job.workDir);
+                job.workDir = staging.allocateOnDisk(job.unit.id);
+                job.rootDir = extract(targetSdk, job.workDir, job.index);
+            }
+            timer.stop();
+            ArchiveIO.Counts counts = job.rootDir != null ? ArchiveIO.count(job.rootDir) : new ArchiveIO.Counts();
+            timer.finish(targetSdk.length(), counts.files);
+            job.treeSize = counts.bytes;
+            staging.resize(job.workDir, job.treeSize);
+        } catch (IOException e1) {
+            throw new DistroBuildException("Failed to extract target SDK: " + targetSdk.getAbsolutePath(), e1);
+        }
+    }
+
+    /**
+     * @return an index for the extraction of <code>sdk</code>; SDKs whose
+     *         central directory can not be read, e.g. zip64 ones, are
+     *         recompressed completely like tar SDKs
+     */
+    static ExtractionIndex createIndex(File sdk) {
+        ZipDirectory directory = null;
+        if (sdk.getName().endsWith(".zip")) {
+            try {
+                directory = ZipDirectory.read(sdk);
+            } catch (IOException e) {
+                System.err.println("Not reusing the entries of " + sdk.getName() + ": " + e.getMessage());
+            }
+        }
+        return new ExtractionIndex(sdk, directory);
+    }
+
+    private File extract(File sdk, File dir, ExtractionIndex index) throws IOException {
+        if (extractedSdks != null) {
+            return extractedSdks.materialize(sdk, dir, index);
+        }
+        return new ArchiveExtractor(extractionThreads).extract(sdk, dir, index);
+    }
+
+    /**
+     * Runs the director on the extracted SDK.
+     *
+     * @return <code>false</code> if the director failed
+     */
+    private boolean installUnit(UnitJob job) throws DistroBuildException {
+        BuildPlan.Target primary = job.unit.getPrimary();
+        String version = primary.version;
+
+        DirectorLog log;
+        try {
+            log = new DirectorLog(version + " " + primary.os + " " + primary.arch, new File(new File(
+                    buildDirectory, "logs"), primary.out.getName() + ".log"), directorLogTail, consoleLevel);
+        } catch (IOException e) {
+            throw new DistroBuildException("Failed to create director log", e);
+        }
+
         List<String> command = new LinkedList<String>();
         command.add(p2DirectorExecutable);
         command.add("-nosplash");
@@ -115,339 +342,658 @@ public class DistroBuilder {
         command.add("-profile");
         command.add(profile == null ? "SDKProfile" : profile);
         command.add("-installIU");
-        command.add(join(iuList, ","));
-        command.add("-repository");
-        command.add(join(repos, ","));
-
-        for (File targetSdk : targetSdksDir.listFiles()) {
-            if (targetSdk.isFile()) {
-                File f = new File(buildDirectory, "tmp");
-                if (f.exists()) {
-                    deleteDirectory(f);
-                }
+        command.add(join(job.unit.installUnits, ","));
 
-                File rootDir;
-                try {
-                    rootDir = uncompress(targetSdk, f);
-                } catch (IOException e1) {
-                    throw new DistroBuildException("Failed to extract target SDK: " + targetSdk.getAbsolutePath());
-                }
+        ProcessBuilder builder = new ProcessBuilder();
+        builder.command().addAll(command);
+
+        List<String> installRepos = job.repos;
+        if (aggregator != null) {
+            try {
+                installRepos = aggregator.aggregate(job.fingerprints);
+            } catch (IOException e) {
+                System.err.println("Failed to aggregate repositories, using them directly: " + e.getMessage());
+            } catch (InterruptedException e) {
+                throw new DistroBuildException("Interrupted while aggregating repositories", e);
+            }
+        }
 
-                ProcessBuilder builder = new ProcessBuilder();
-                builder.command().addAll(command);
+        Lock poolLock = null;
+        if (bundlePool != null) {
+            poolLock = bundlePool.getLock(version).readLock();
+            poolLock.lock();
+            String pool = bundlePool.getLocation(version);
+            if (pool != null) {
+                List<String> l = new ArrayList<String>();
+                l.add(pool);
+                l.addAll(installRepos);
+                installRepos = l;
+            }
+        }
+        builder.command().add("-repository");
+        builder.command().add(join(installRepos, ","));
 
-                builder.command().add("-destination");
-                builder.command().add(rootDir.getAbsolutePath());
+        builder.command().add("-destination");
+        builder.command().add(job.rootDir.getAbsolutePath());
 
-                try {
-                    Process p = builder.start();
-                    PipeThread stdThread = new PipeThread(p.getInputStream(), System.out);
-                    stdThread.start();
-                    PipeThread errThread = new PipeThread(p.getErrorStream(), System.err);
-                    errThread.start();
-                    if (p.waitFor() == 0) {
-                        File distDir = new File(distDirectory);
-                        distDir.mkdirs();
-                        File out = new File(distDir, constructFilename(targetSdk.getName(), appDefinition));
-                        compress(rootDir, out);
+        try {
+            int rv;
+            long start = System.currentTimeMillis();
+            BuildMetrics.Timer directorTimer = metrics.start(job.target, BuildPhase.DIRECTOR);
+            try {
+                rv = runDirector(builder.command(), log);
+                directorTimer.finish(0, 0);
+            } finally {
+                if (poolLock != null) {
+                    poolLock.unlock();
+                }
+                log.close();
+            }
+            System.out.println("Director for " + job.target + " finished with exit code " + rv + " in "
+                    + (System.currentTimeMillis() - start) / 1000 + " s, log in " + log.getFile());
+            if (rv != 0) {
+                System.err.println("Export failed");
+                log.printTail(System.err);
+                skipped(job.unit);
+                return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            throw new DistroBuildException("Interrupted while waiting for program to finish", e);
+        } catch (IOException e) {
+            throw new DistroBuildException(e);
+        }
+    }
+
+    /**
+     * Writes the distros of the outdated targets from the installed tree.
+     */
+    private void compressUnit(UnitJob job) throws DistroBuildException {
+        BuildPlan.Target primary = job.unit.getPrimary();
+        try {
+            // all targets of the unit produce the same distro, it is
+            // compressed once per output format and copied for the others
+            Map<String, File> written = new HashMap<String, File>();
+            for (BuildPlan.Target t : job.outdated) {
+                int level = getLevel(t);
+                String format = t.codec.getName() + ":" + level;
+                File out = written.get(format);
+                if (out == null) {
+                    t.out.getParentFile().mkdirs();
+                    CodecSettings settings = createCodecSettings(level);
+                    BuildMetrics.Timer compressTimer = metrics.start(job.target, BuildPhase.COMPRESS);
+                    ArchiveIO.Counts counts;
+                    if (overlayOutput) {
+                        counts = new OverlayArchive(extractionThreads, settings).write(job.rootDir, t.out,
+                                job.index, primary.sdk, digests.get(primary.sdk));
+                        report(t.out.getName() + ": overlay of " + t.out.length() / 1024 + " KB, base SDK "
+                                + primary.sdk.length() / 1024 + " KB");
                     } else {
-                        System.err.println("Export failed");
+                        counts = new ArchiveIO(settings).compress(job.rootDir, t.out, job.index);
                     }
-                    stdThread.join();
-                    errThread.join();
-                } catch (InterruptedException e) {
-                    throw new DistroBuildException("Interrupted while waiting for program to finish", e);
+                    compressTimer.finish(counts.bytes, counts.files);
+                    written.put(format, t.out);
+                } else if (!out.equals(t.out)) {
+                    Files.copy(out.toPath(), t.out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                if (job.manifest != null) {
+                    job.manifest.store(t.out);
+                }
+            }
+            if (bundlePool != null) {
+                try {
+                    bundlePool.harvest(primary.version, job.rootDir);
                 } catch (IOException e) {
-                    throw new DistroBuildException(e);
+                    System.err.println("Failed to add bundles to the pool: " + e.getMessage());
                 }
+            }
+        } catch (InterruptedException e) {
+            throw new DistroBuildException("Interrupted while waiting for program to finish", e);
+        } catch (IOException e) {
+            throw new DistroBuildException(e);
+        }
+    }
 
+    /**
+     * Runs the director on a worker of the {@link #directorWorkers} pool or,
+     * without workers or if the worker fails, in a new process. The output
+     * goes to <code>log</code>.
+     *
+     * @return the exit code of the director
+     */
+    private int runDirector(List<String> command, DirectorLog log) throws IOException, InterruptedException {
+        if (directorPool != null) {
+            try {
+                return directorPool.run(command.subList(1, command.size()), log);
+            } catch (IOException e) {
+                System.err.println("Director worker failed, starting the director directly: " + e.getMessage());
             }
         }
+        return log.run(command);
     }
 
-    private static void compress(File sourceDir, File targetFile) throws IOException {
-        List<String> fileList = new ArrayList<String>();
-        collectFiles(fileList, sourceDir, "");
+    /**
+     * Tells the bundle pool the targets of <code>unit</code> have not been
+     * installed.
+     */
+    private void skipped(BuildPlan.WorkUnit unit) {
+        if (bundlePool != null) {
+            for (String version : unit.getVersions()) {
+                bundlePool.skipped(version);
+            }
+        }
+    }
 
-        if (targetFile.getName().endsWith(".zip")) {
-            targetFile.getParentFile().mkdirs();
-            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(targetFile));
+    /**
+     * @return the compression level of <code>t</code>, the global one unless
+     *         the target has its own
+     */
+    private int getLevel(BuildPlan.Target t) {
+        return t.level != CodecSettings.DEFAULT_LEVEL ? t.level : compressionLevel;
+    }
 
-            for (String f : fileList) {
-                ZipEntry e = new ZipEntry(sourceDir.getName() + "/" + f);
-                out.putNextEntry(e);
+    private CodecSettings createCodecSettings(int level) {
+        CodecSettings settings = new CodecSettings();
+        settings.setLevel(level);
+        settings.setThreads(compressionThreads);
+        settings.setBlockSize(compressionBlockSize);
+        settings.setStoreIncompressible(storeIncompressible);
+        settings.setCache(entryCache);
+        return settings;
+    }
 
-                FileInputStream in = new FileInputStream(new File(sourceDir, f));
-                byte[] buf = new byte[1024];
-                int l;
+    /**
+     * @return the repositories with the digest of every local zip file
+     */
+    private String digestRepositories(List<String> repos) throws IOException {
+        List<String> rv = new ArrayList<String>();
+        for (String repo : repos) {
+            String fingerprint = fingerprintRepository(repo);
+            rv.add(fingerprint != null ? repo + "=" + fingerprint : repo);
+        }
+        return join(rv, ",");
+    }
 
-                while ((l = in.read(buf)) != -1) {
-                    out.write(buf, 0, l);
+    /**
+     * @return the digest of a zipped repository, the size and modification
+     *         time of the index files of a local directory repository or
+     *         <code>null</code> for remote repositories
+     */
+    private String fingerprintRepository(String repo) throws IOException {
+        if (repo.startsWith("jar:file:") && repo.endsWith("!/")) {
+            File zip = new File(repo.substring("jar:file:".length(), repo.length() - 2));
+            String digest = downloadCache.digestOf(zip);
+            return digest != null ? digest : digests.get(zip);
+        } else if (repo.startsWith("file:")) {
+            File[] files = new File(URI.create(repo)).listFiles();
+            if (files == null) {
+                return null;
+            }
+            Arrays.sort(files);
+            List<String> rv = new ArrayList<String>();
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith("content.") || name.startsWith("artifacts.")
+                        || name.startsWith("compositeContent.") || name.startsWith("compositeArtifacts.")) {
+                    rv.add(name + ":" + f.length() + ":" + f.lastModified());
                 }
-                in.close();
-                out.closeEntry();
             }
+            return join(rv, ";");
+        }
+        return null;
+    }
 
-            out.close();
-        } else {
-            targetFile.getParentFile().mkdirs();
-            TarOutputStream out = new TarOutputStream(new GZIPOutputStream(new FileOutputStream(targetFile)));
-            out.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+    private void report(String message) {
+        System.out.println(message);
+        buildReport.add(message);
+    }
 
-            for (String f : fileList) {
-                TarEntry e = new TarEntry(sourceDir.getName() + "/" + f);
-                File tarFile = new File(sourceDir, f);
-                if (tarFile.canExecute()) {
-                    e.setMode(0755);
-                }
-                e.setSize(tarFile.length());
-                out.putNextEntry(e);
+    /**
+     * @param downloaded
+     *            receives the number and size of the remote repositories
+     */
+    private List<String> makeLocalRepos(List<String> repositories, ArchiveIO.Counts downloaded) throws IOException {
+        List<String> rv = new ArrayList<String>();
+        for (String repo : repositories) {
+            if (RepositoryDownloader.isRemote(repo)) {
+                File f = downloader.get(repo);
+                downloaded.files++;
+                downloaded.bytes += f.length();
+                repo = f.getAbsolutePath();
+            }
 
-                FileInputStream in = new FileInputStream(tarFile);
-                byte[] buf = new byte[1024];
-                int l;
+            rv.add(BuildPlan.toZipString(new File(repo)));
+        }
 
-                while ((l = in.read(buf)) != -1) {
-                    out.write(buf, 0, l);
+        return rv;
+    }
+
+    static boolean deleteDirectory(File path) {
+        if (path.exists()) {
+            File[] files = path.listFiles();
+            for (File f : files) {
+                // do not descend into symbolic links, they may point
+                // outside of the tree
+                if (f.isDirectory() && !Files.isSymbolicLink(f.toPath())) {
+                    deleteDirectory(f);
+                } else {
+                    f.delete();
                 }
-                in.close();
-                out.closeEntry();
             }
+        }
+        return (path.delete());
+    }
 
-            out.close();
+    private static String join(List<String> entries, String sep) {
+        StringBuilder b = new StringBuilder();
+        for (String entry : entries) {
+            if (b.length() > 0) {
+                b.append(sep);
+            }
+            b.append(entry);
         }
+        return b.toString();
     }
 
-    private static void collectFiles(List<String> files, File dir, String prefix) {
-        for (String f : dir.list()) {
-            File fd = new File(dir, f);
-            if (fd.isDirectory()) {
-                collectFiles(files, fd, prefix.isEmpty() ? f : prefix + "/" + f);
+    public void buildDistros() throws DistroBuildException {
+        File targetDir = new File(targetDirectory);
+        if (targetDir.exists() && targetDir.isDirectory()) {
+            digests = new FileDigests(new File(buildDirectory, "digests.properties"));
+            BuildPlan plan;
+            try {
+                plan = BuildPlan.create(targetDir, staticReposDirectory, new File(distDirectory), appDefinition,
+                        overlayOutput, digests, iuList, siteList, repoList, formatList);
+            } catch (IOException e) {
+                throw new DistroBuildException("Failed to create build plan", e);
+            }
+            if (dryRun) {
+                plan.print(System.out);
+                return;
+            }
+            if (coordinatorPort > 0) {
+                buildDistributed(plan);
             } else {
-                files.add(prefix.isEmpty() ? f : prefix + "/" + f);
+                build(plan);
             }
         }
     }
 
-    private static String constructFilename(String sourceName, String appDefinition) {
-        String suffix;
-        if (sourceName.endsWith(".zip")) {
-            suffix = ".zip";
-        } else {
-            suffix = ".tar.gz";
+    /**
+     * Builds the units of <code>plan</code> on this machine.
+     */
+    void build(BuildPlan plan) throws DistroBuildException {
+        if (digests == null) {
+            digests = new FileDigests(new File(buildDirectory, "digests.properties"));
         }
-        if (appDefinition == null) {
-            appDefinition = "distro";
+        consoleLevel = DirectorLog.ConsoleLevel.parse(directorConsole);
+        try {
+            toolLog = new DirectorLog("p2", new File(new File(buildDirectory, "logs"), "p2.log"),
+                    directorLogTail, consoleLevel);
+        } catch (IOException e) {
+            throw new DistroBuildException("Failed to create log", e);
         }
-        return sourceName.substring(0, sourceName.length() - suffix.length()) + "-" + appDefinition + suffix;
-    }
-
-    private static List<String> makeLocalRepos(File cacheDirectory, List<String> repositories) throws IOException {
-        List<String> rv = new ArrayList<String>();
-        for (String repo : repositories) {
-            if (repo.startsWith("http://")) {
-                repo = downloadFile(new URL(repo), cacheDirectory).getAbsolutePath();
+        metrics = new BuildMetrics(listeners);
+        metrics.buildStarted(plan.getUnits().size());
+        boolean success = false;
+
+        extractedSdks = sdkCache ? new SdkCache(new File(buildDirectory, "sdk-cache"), digests,
+                new ArchiveExtractor(extractionThreads)) : null;
+        buildReport = Collections.synchronizedList(new ArrayList<String>());
+        downloadCache = new DownloadCache(new File(buildDirectory, "cache"), downloadCacheSize * 1024 * 1024);
+        Map<String, List<String>> mirrors = getMirrorUrls();
+        mirrorSelector = new MirrorSelector(new File(buildDirectory, "mirror-stats.properties"));
+        downloader = new RepositoryDownloader(downloadCache, downloadThreads, mirrorSelector, mirrors,
+                mirrorMinThroughput * 1024L, mirrorSplit);
+        staging = new StagingArea(new File(buildDirectory, "tmp"), stagingDirectory != null ? StagingArea
+                .getFastRoot(new File(stagingDirectory), new File(buildDirectory)) : null, stagingLimit * 1024 * 1024);
+        try {
+            // start downloading the repositories of all targets up front,
+            // so they are fetched concurrently and only once per run
+            downloader.prefetch(plan.getRepositories());
+            siteMirror = null;
+            if (mirrorUpdateSites) {
+                BuildMetrics.Timer timer = metrics.start(null, BuildPhase.MIRROR);
+                mirrorUpdateSites(plan);
+                timer.finish(0, plan.getUpdateSites().size());
+            }
+            aggregator = aggregateRepositories ? new RepositoryAggregator(new File(buildDirectory, "aggregated"),
+                    p2DirectorExecutable, toolLog) : null;
+            directorPool = null;
+            if (directorWorkers > 0 && directorWorkerCommand == null) {
+                System.err.println("No directorWorkerCommand given, starting a director for every target");
+            } else if (directorWorkers > 0 && p2DirectorExecutable != null) {
+                directorPool = new DirectorWorkerPool(Arrays.asList(directorWorkerCommand.trim().split("\\s+")),
+                        directorWorkers, toolLog);
+            }
+            bundlePool = sharedBundlePool ? new BundlePool(new File(buildDirectory, "bundle-pool"),
+                    p2DirectorExecutable, toolLog) : null;
+            entryCache = null;
+            if (compressedEntryCache) {
+                File dir = new File(buildDirectory, "entry-cache");
+                if (!keepCompressedEntryCache) {
+                    staging.discard(dir);
+                }
+                entryCache = new EntryCache(dir);
+            }
+            if (pipeline) {
+                buildDistrosPipelined(plan);
+            } else if (threads > 1) {
+                buildDistrosParallel(plan);
+            } else {
+                for (BuildPlan.WorkUnit unit : plan.getUnits()) {
+                    buildUnit(unit);
+                }
+            }
+            if (aggregator != null) {
+                aggregator.cleanup();
+            }
+            if (bundlePool != null) {
+                bundlePool.cleanup(plan.getVersions());
+            }
+            if (entryCache != null) {
+                metrics.putCache("entry", entryCache.getHits(), entryCache.getMisses());
+                buildReport.add("compressed entry cache: " + entryCache.getHits() + " hits, "
+                        + entryCache.getMisses() + " misses");
+                if (keepCompressedEntryCache) {
+                    entryCache.cleanup();
+                } else {
+                    staging.discard(new File(buildDirectory, "entry-cache"));
+                }
+            }
+            success = true;
+        } finally {
+            downloader.shutdown();
+            try {
+                mirrorSelector.save();
+            } catch (IOException e) {
+                System.err.println("Failed to store mirror statistics: " + e.getMessage());
+            }
+            if (directorPool != null) {
+                directorPool.shutdown();
+            }
+            try {
+                toolLog.close();
+            } catch (IOException e) {
+                System.err.println("Failed to write " + toolLog.getFile() + ": " + e.getMessage());
+            }
+            try {
+                downloadCache.close();
+            } catch (IOException e) {
+                System.err.println("Failed to clean up download cache: " + e.getMessage());
+            }
+            if (stagingDirectory != null) {
+                buildReport.add(staging.getSummary());
+            }
+            try {
+                staging.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (downloadCache.getHits() + downloadCache.getMisses() > 0) {
+                buildReport.add("download cache: " + downloadCache.getHits() + " hits, "
+                        + downloadCache.getMisses() + " misses");
+            }
+            metrics.putCache("download", downloadCache.getHits(), downloadCache.getMisses());
+            if (extractedSdks != null) {
+                metrics.putCache("sdk", extractedSdks.getHits(), extractedSdks.getMisses());
+            }
+            metrics.buildFinished(success);
+            writeReport();
+            if (!buildReport.isEmpty()) {
+                System.out.println("Build summary:");
+                for (String line : buildReport) {
+                    System.out.println("  " + line);
+                }
             }
-
-            rv.add(toZipString(new File(repo)));
         }
+    }
 
-        return rv;
+    /**
+     * Builds the units of <code>plan</code> on the {@link DistroWorkerNode}s
+     * connecting to {@link #getCoordinatorPort()}.
+     */
+    private void buildDistributed(BuildPlan plan) throws DistroBuildException {
+        metrics = new BuildMetrics(listeners);
+        metrics.buildStarted(plan.getUnits().size());
+        boolean success = false;
+        try {
+            new BuildCoordinator(coordinatorAddress, coordinatorPort, coordinatorSecret,
+                    BuildCoordinator.getSettings(this), digests, metrics).run(plan);
+            success = true;
+        } finally {
+            metrics.buildFinished(success);
+            writeReport();
+        }
     }
 
-    private static File downloadFile(URL url, File cacheDirectory) throws IOException {
-        boolean download = true;
-        MessageDigest d;
+    private void writeReport() {
         try {
-            d = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IOException("Unable to verify downloaded file", e);
+            metrics.write(new File(distDirectory, BuildMetrics.REPORT_FILE));
+        } catch (IOException e) {
+            System.err.println("Failed to write build report: " + e.getMessage());
         }
-        d.update(url.toString().getBytes());
-        String fileName = new BigInteger(1, d.digest()).toString(16) + ".zip";
-        cacheDirectory.mkdirs();
-        File f = new File(cacheDirectory, fileName);
+    }
 
-        if (f.exists()) {
-            HttpURLConnection.setFollowRedirects(false);
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("HEAD");
-            if (con.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                long lastmodified = con.getLastModified();
-                download = f.lastModified() < lastmodified;
+    /**
+     * @return the local mirror of every site or, for remote sites, the best
+     *         of its mirrors
+     */
+    private List<String> resolveSites(List<String> sites) {
+        List<String> rv = new ArrayList<String>(sites.size());
+        Map<String, List<String>> mirrors = getMirrorUrls();
+        for (String site : sites) {
+            String resolved = siteMirror != null ? siteMirror.resolve(site) : site;
+            if (resolved.equals(site) && mirrors.containsKey(site)) {
+                resolved = mirrorSelector.rank(mirrors.get(site)).get(0);
             }
+            rv.add(resolved);
         }
+        return rv;
+    }
 
-        if (download) {
-            slurp(f, url);
+    /**
+     * @return all URLs of the repositories and update sites with mirrors by
+     *         their configured URL
+     */
+    Map<String, List<String>> getMirrorUrls() {
+        Map<String, List<String>> rv = new HashMap<String, List<String>>(mirrorUrls);
+        for (P2Repository r : repoList) {
+            if (r.getUrls().size() > 1) {
+                rv.put(r.getUrl(), r.getUrls());
+            }
+        }
+        for (UpdateSite u : siteList) {
+            if (u.getUrls().size() > 1) {
+                rv.put(u.getUrl(), u.getUrls());
+            }
         }
-        return f;
+        return rv;
     }
 
-    private static boolean slurp(File targetFile, URL url) throws IOException {
-        targetFile.delete();
-        File f = new File(targetFile.getAbsolutePath() + ".part");
-        FileOutputStream out = new FileOutputStream(f);
+    /**
+     * Adds the mirrors of a repository or update site.
+     *
+     * @param urls
+     *            the configured URL followed by its mirrors
+     */
+    void addMirrors(List<String> urls) {
+        mirrorUrls.put(urls.get(0), urls);
+    }
 
-        InputStream in = url.openStream();
-        byte[] buf = new byte[1024];
-        int l;
-        while ((l = in.read(buf)) != -1) {
-            out.write(buf, 0, l);
+    /**
+     * Mirrors the update sites of all targets into
+     * <code>&lt;buildDirectory&gt;/mirrors</code>.
+     */
+    private void mirrorUpdateSites(BuildPlan plan) throws DistroBuildException {
+        if (p2DirectorExecutable == null || !new File(p2DirectorExecutable).exists()) {
+            // reported by buildUnit
+            return;
+        }
+        siteMirror = new UpdateSiteMirror(new File(buildDirectory, "mirrors"), p2DirectorExecutable, toolLog,
+                mirrorSelector, getMirrorUrls());
+        try {
+            siteMirror.mirror(plan.getUpdateSites(), downloadThreads);
+        } catch (InterruptedException e) {
+            throw new DistroBuildException("Interrupted while mirroring update sites", e);
         }
-        out.close();
-        return f.renameTo(targetFile);
     }
 
-    private static List<String> filterList(List<? extends FilteredElement> list, String version, String os, String arch) {
-        List<String> rv = new ArrayList<String>();
-
-        for (FilteredElement u : list) {
-            if (u.getVersion() != null && !u.getVersion().equals(version)) {
-                continue;
+    /**
+     * Builds the work units of the plan on a pool of {@link #threads}
+     * workers. Each unit gets its own workspace below
+     * <code>&lt;buildDirectory&gt;/tmp</code>; a failing unit does not stop
+     * the others, all failures are reported together once every unit has
+     * finished.
+     */
+    private void buildDistrosParallel(BuildPlan plan) throws DistroBuildException {
+        List<String> names = new ArrayList<String>();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (BuildPlan.WorkUnit unit : plan.getUnits()) {
+                names.add(unit.getPrimary().toString());
+                futures.add(executor.submit(new UnitBuild(unit)));
             }
 
-            if (u.getOs() != null && !u.getOs().equals(os)) {
-                continue;
+            List<String> failures = new ArrayList<String>();
+            Throwable firstFailure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failures.add(names.get(i) + ": " + cause.getMessage());
+                    if (firstFailure == null) {
+                        firstFailure = cause;
+                    }
+                }
             }
 
-            if (u.getArch() != null && !u.getArch().equals(arch)) {
-                continue;
+            if (!failures.isEmpty()) {
+                throw failed(failures, futures.size(), firstFailure);
             }
-
-            rv.add(u.getValue());
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new DistroBuildException("Interrupted while waiting for distros to finish", e);
+        } finally {
+            executor.shutdown();
         }
-
-        return rv;
     }
 
-    private static File uncompress(File compressedFile, File targetDirectory) throws IOException {
-        File targetDir = null;
-        if (compressedFile.getName().endsWith(".tar.gz")) {
-
-            TarInputStream in = new TarInputStream(new GZIPInputStream(new FileInputStream(compressedFile)));
-            TarEntry e;
-            while ((e = in.getNextEntry()) != null) {
-                if (e.isDirectory()) {
-                    File f = new File(targetDirectory, e.getName());
-                    f.mkdirs();
-                    if (targetDir == null) {
-                        targetDir = f;
-                    }
-                } else {
-                    File f = new File(targetDirectory, e.getName());
-                    in.copyEntryContents(new FileOutputStream(f));
-
-                    int m = e.getMode();
-                    if ((m & OWNER_EXEC) == OWNER_EXEC || (m & GROUP_EXEC) == GROUP_EXEC
-                            || (m & OTHER_EXEC) == OTHER_EXEC) {
-                        f.setExecutable(true, false);
-                    } else if (e.getLinkName() != null && e.getLinkName().trim().length() > 0) {
-                        throw new IOException("TODO: handle sym links");
-                    }
+    /**
+     * Builds the work units of the plan in a {@link BuildPipeline} with the
+     * stages download, extract, install and compress, so e.g. one distro is
+     * compressed while the director installs the next one. The
+     * {@link WorkingTreeBudget} limits the extracted trees in use; a failing
+     * unit does not stop the others, all failures are reported together once
+     * every unit has finished.
+     */
+    private void buildDistrosPipelined(BuildPlan plan) throws DistroBuildException {
+        final WorkingTreeBudget budget = new WorkingTreeBudget(maxWorkingTrees,
+                workingTreeDiskLimit * 1024 * 1024);
+        BuildPipeline<UnitJob> stages = new BuildPipeline<UnitJob>();
+        stages.addStage("download", downloadThreads, new BuildPipeline.Step<UnitJob>() {
+            @Override
+            public boolean run(UnitJob job) throws DistroBuildException {
+                metrics.unitStarted(job.target);
+                if (!prepareUnit(job)) {
+                    job.success = true;
+                    return false;
                 }
+                return true;
             }
-            in.close();
-
-        } else if (compressedFile.getName().endsWith(".zip")) {
+        });
+        stages.addStage("extract", extractStageThreads, new BuildPipeline.Step<UnitJob>() {
+            @Override
+            public boolean run(UnitJob job) throws DistroBuildException, InterruptedException {
+                budget.acquire();
+                job.hasTree = true;
+                extractUnit(job);
+                budget.resize(job.treeSize);
+                return true;
+            }
+        });
+        stages.addStage("install", installStageThreads, new BuildPipeline.Step<UnitJob>() {
+            @Override
+            public boolean run(UnitJob job) throws DistroBuildException, IOException {
+                if (!installUnit(job)) {
+                    return false;
+                }
+                if (budget.isSizeLimited()) {
+                    long size = ArchiveIO.count(job.rootDir).bytes;
+                    budget.resize(size - job.treeSize);
+                    job.treeSize = size;
+                    staging.resize(job.workDir, size);
+                }
+                return true;
+            }
+        });
+        stages.addStage("compress", compressStageThreads, new BuildPipeline.Step<UnitJob>() {
+            @Override
+            public boolean run(UnitJob job) throws DistroBuildException {
+                compressUnit(job);
+                job.success = true;
+                return true;
+            }
+        });
 
-            ZipInputStream in = new ZipInputStream(new FileInputStream(compressedFile));
-            ZipEntry e;
-            while ((e = in.getNextEntry()) != null) {
-                if (e.isDirectory()) {
-                    File f = new File(targetDirectory, e.getName());
-                    f.mkdirs();
-                    if (targetDir == null) {
-                        targetDir = f;
+        List<UnitJob> jobs = new ArrayList<UnitJob>();
+        for (BuildPlan.WorkUnit unit : plan.getUnits()) {
+            jobs.add(new UnitJob(unit, unit.getPrimary().toString()));
+        }
+        try {
+            stages.run(jobs, new BuildPipeline.Completion<UnitJob>() {
+                @Override
+                public void finished(UnitJob job, Throwable failure) {
+                    job.failure = failure;
+                    if (job.workDir != null) {
+                        staging.release(job.workDir);
                     }
-                } else {
-                    FileOutputStream out = new FileOutputStream(new File(targetDirectory, e.getName()));
-                    byte[] buf = new byte[1024];
-                    int l;
-                    while ((l = in.read(buf, 0, 1024)) != -1) {
-                        out.write(buf, 0, l);
+                    if (job.hasTree) {
+                        budget.release(job.treeSize);
                     }
-                    out.close();
+                    metrics.unitFinished(job.target, job.success);
                 }
-                in.closeEntry();
-            }
-            in.close();
-
+            });
+        } catch (InterruptedException e) {
+            throw new DistroBuildException("Interrupted while waiting for distros to finish", e);
         }
-        return targetDir;
-    }
 
-    private static boolean deleteDirectory(File path) {
-        if (path.exists()) {
-            File[] files = path.listFiles();
-            for (File f : files) {
-                if (f.isDirectory()) {
-                    deleteDirectory(f);
-                } else {
-                    f.delete();
+        List<String> failures = new ArrayList<String>();
+        Throwable firstFailure = null;
+        for (UnitJob job : jobs) {
+            if (job.failure != null) {
+                failures.add(job.target + ": " + job.failure.getMessage());
+                if (firstFailure == null) {
+                    firstFailure = job.failure;
                 }
             }
         }
-        return (path.delete());
+        if (!failures.isEmpty()) {
+            throw failed(failures, jobs.size(), firstFailure);
+        }
     }
 
-    private static String join(List<String> entries, String sep) {
+    static DistroBuildException failed(List<String> failures, int units, Throwable firstFailure) {
         StringBuilder b = new StringBuilder();
-        for (String entry : entries) {
-            if (b.length() > 0) {
-                b.append(sep);
-            }
-            b.append(entry);
+        b.append(failures.size()).append(" of ").append(units).append(" distros failed:");
+        for (String failure : failures) {
+            b.append("\n  ").append(failure);
         }
-        return b.toString();
+        return new DistroBuildException(b.toString(), firstFailure);
     }
 
-    private static void collectZipFiles(List<String> collectedZips,
-            String rootDir,
-            String version,
-            String os,
-            String arch) {
-        File versionDir = new File(rootDir, version);
-        if (versionDir.exists() && versionDir.isDirectory()) {
-            for (File f : versionDir.listFiles()) {
-                if (f.getName().equals(os)) {
-                    for (File fOs : f.listFiles()) {
-                        if (fOs.isDirectory()) {
-                            if (fOs.getName().equals(arch)) {
-                                for (File fArch : fOs.listFiles()) {
-                                    if (fArch.isFile() && fArch.getName().endsWith(".zip")) {
-                                        collectedZips.add(toZipString(fArch));
-                                    }
-                                }
-                            }
-                        } else if (fOs.isFile() && fOs.getName().endsWith(".zip")) {
-                            collectedZips.add(toZipString(fOs));
-                        }
-                    }
-                }
-                if (f.isFile() && f.getName().endsWith(".zip")) {
-                    collectedZips.add(toZipString(f));
-                }
-            }
-        }
-    }
+    class UnitBuild implements Callable<Void> {
+        private final BuildPlan.WorkUnit unit;
 
-    private static String toZipString(File zipFile) {
-        String dir = zipFile.getParentFile().getAbsolutePath();
-        String name = zipFile.getName();
-        return String.format("jar:file:%s/%s!/", dir, name);
-    }
+        UnitBuild(BuildPlan.WorkUnit unit) {
+            this.unit = unit;
+        }
 
-    public void buildDistros() throws DistroBuildException {
-        File targetDir = new File(targetDirectory);
-        if (targetDir.exists() && targetDir.isDirectory()) {
-            for (File versionDir : targetDir.listFiles(DIRS)) {
-                for (File osDir : versionDir.listFiles(DIRS)) {
-                    for (File archDir : osDir.listFiles(DIRS)) {
-                        buildDistro(archDir, versionDir.getName(), osDir.getName(), archDir.getName());
-                    }
-                }
-            }
+        @Override
+        public Void call() throws DistroBuildException {
+            buildUnit(unit);
+            return null;
         }
     }
 
@@ -495,6 +1041,28 @@ public class DistroBuilder {
         this.siteList.add(site);
     }
 
+    public void addOutputFormat(OutputFormat format) {
+        this.formatList.add(format);
+    }
+
+    public void addBuildListener(DistroBuildListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeBuildListener(DistroBuildListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * @return the totals of the last build, e.g. <code>millis</code>,
+     *         <code>director.millis</code> or <code>downloadCache.hits</code>;
+     *         the full report is written to
+     *         <code>&lt;distDirectory&gt;/build-report.json</code>
+     */
+    public Map<String, String> getBuildTotals() {
+        return metrics != null ? metrics.getTotals() : Collections.<String, String> emptyMap();
+    }
+
     public String getDistDirectory() {
         return distDirectory;
     }
@@ -511,6 +1079,499 @@ public class DistroBuilder {
         this.profile = profile;
     }
 
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads
+     *            number of targets built concurrently; values greater than 1
+     *            enable the parallel mode
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * @param compressionThreads
+     *            number of threads used to compress a single distro; values
+     *            greater than 1 enable block-parallel gzip for .tar.gz,
+     *            per-entry parallel deflate for .zip and multi-threaded
+     *            compression for .tar.xz and .tar.zst distros
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    /**
+     * @param compressionBlockSize
+     *            size in bytes of the blocks compressed independently when
+     *            gzipping with multiple threads (at least 32 KB)
+     */
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        this.compressionBlockSize = compressionBlockSize;
+    }
+
+    public boolean isReuseSdkEntries() {
+        return reuseSdkEntries;
+    }
+
+    /**
+     * @param reuseSdkEntries
+     *            if <code>true</code> files the director left untouched are
+     *            copied into .zip distros straight from the compressed data
+     *            of the target SDK zip instead of being deflated again
+     */
+    public void setReuseSdkEntries(boolean reuseSdkEntries) {
+        this.reuseSdkEntries = reuseSdkEntries;
+    }
+
+    public boolean isSdkCache() {
+        return sdkCache;
+    }
+
+    /**
+     * @param sdkCache
+     *            if <code>true</code> target SDKs are extracted only once
+     *            into <code>&lt;buildDirectory&gt;/sdk-cache</code> and every
+     *            build workspace is cloned from there
+     */
+    public void setSdkCache(boolean sdkCache) {
+        this.sdkCache = sdkCache;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental
+     *            if <code>true</code> a manifest of the inputs is stored next
+     *            to every distro and targets whose inputs did not change are
+     *            skipped on later runs
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    /**
+     * @param downloadThreads
+     *            number of repositories downloaded concurrently
+     */
+    public void setDownloadThreads(int downloadThreads) {
+        this.downloadThreads = downloadThreads;
+    }
+
+    public long getDownloadCacheSize() {
+        return downloadCacheSize;
+    }
+
+    /**
+     * @param downloadCacheSize
+     *            size limit of the download cache in megabytes, least
+     *            recently used repositories are removed once it is exceeded;
+     *            <code>0</code> for no limit
+     */
+    public void setDownloadCacheSize(long downloadCacheSize) {
+        this.downloadCacheSize = downloadCacheSize;
+    }
+
+    public boolean isMirrorUpdateSites() {
+        return mirrorUpdateSites;
+    }
+
+    /**
+     * @param mirrorUpdateSites
+     *            if <code>true</code> the update sites are mirrored into local
+     *            p2 repositories before the targets are built and the
+     *            director installs from the mirrors; mirrors are refreshed
+     *            incrementally on later runs
+     */
+    public void setMirrorUpdateSites(boolean mirrorUpdateSites) {
+        this.mirrorUpdateSites = mirrorUpdateSites;
+    }
+
+    public boolean isSharedBundlePool() {
+        return sharedBundlePool;
+    }
+
+    /**
+     * @param sharedBundlePool
+     *            if <code>true</code> the bundles installed for one platform
+     *            are kept in a local repository per version, the director
+     *            runs of the other platforms copy them from there instead of
+     *            downloading them again
+     */
+    public void setSharedBundlePool(boolean sharedBundlePool) {
+        this.sharedBundlePool = sharedBundlePool;
+    }
+
+    public boolean isAggregateRepositories() {
+        return aggregateRepositories;
+    }
+
+    /**
+     * @param aggregateRepositories
+     *            if <code>true</code> the local repositories of a target are
+     *            merged into one repository, kept until its inputs change,
+     *            and the director loads that instead of every single zip;
+     *            off by default, as the time saved has not been measured
+     *            against the cost of mirroring the repositories yet
+     */
+    public void setAggregateRepositories(boolean aggregateRepositories) {
+        this.aggregateRepositories = aggregateRepositories;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * @param dryRun
+     *            if <code>true</code> the build plan with an estimate of the
+     *            work is printed and nothing is built
+     */
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public int getDirectorWorkers() {
+        return directorWorkers;
+    }
+
+    /**
+     * @param directorWorkers
+     *            number of long running director workers installing the
+     *            targets, <code>0</code> to start a new director process for
+     *            every target; requires a
+     *            {@link #setDirectorWorkerCommand(String) worker command}
+     */
+    public void setDirectorWorkers(int directorWorkers) {
+        this.directorWorkers = directorWorkers;
+    }
+
+    public String getDirectorWorkerCommand() {
+        return directorWorkerCommand;
+    }
+
+    /**
+     * @param directorWorkerCommand
+     *            command line starting a director worker, see
+     *            {@link DirectorWorkerPool} for the protocol
+     */
+    public void setDirectorWorkerCommand(String directorWorkerCommand) {
+        this.directorWorkerCommand = directorWorkerCommand;
+    }
+
+    public int getExtractionThreads() {
+        return extractionThreads;
+    }
+
+    /**
+     * @param extractionThreads
+     *            number of threads used to extract a single target SDK; zip
+     *            entries are inflated concurrently, tar.gz files are written
+     *            while the archive is decompressed
+     */
+    public void setExtractionThreads(int extractionThreads) {
+        this.extractionThreads = extractionThreads;
+    }
+
+    public boolean isOverlayOutput() {
+        return overlayOutput;
+    }
+
+    /**
+     * @param overlayOutput
+     *            if <code>true</code> the distros are written as overlay
+     *            archives named <code>*-overlay.zip</code> or
+     *            <code>*-overlay.tar.gz</code>, holding only the files added
+     *            or changed by the director and a manifest of the deleted
+     *            ones; {@link OverlayArchive#apply(File, File, File, File)}
+     *            rebuilds the full distro from the SDK and the overlay
+     */
+    public void setOverlayOutput(boolean overlayOutput) {
+        this.overlayOutput = overlayOutput;
+    }
+
+    public boolean isCompressedEntryCache() {
+        return compressedEntryCache;
+    }
+
+    /**
+     * @param compressedEntryCache
+     *            if <code>true</code> files of at least 16 KB are deflated
+     *            once per build and the compressed data is reused by every
+     *            zip and tar.gz distro containing the same content
+     */
+    public void setCompressedEntryCache(boolean compressedEntryCache) {
+        this.compressedEntryCache = compressedEntryCache;
+    }
+
+    public boolean isKeepCompressedEntryCache() {
+        return keepCompressedEntryCache;
+    }
+
+    /**
+     * @param keepCompressedEntryCache
+     *            if <code>true</code> the compressed entry cache is kept in
+     *            <code>&lt;buildDirectory&gt;/entry-cache</code> for the next
+     *            build, entries not used by this build are removed
+     */
+    public void setKeepCompressedEntryCache(boolean keepCompressedEntryCache) {
+        this.keepCompressedEntryCache = keepCompressedEntryCache;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel
+     *            compression level of the distros whose output format does
+     *            not set one, in the range of the format (0-9 for zip, gzip
+     *            and xz, 1-19 for zstd); -1 uses the default of the format
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public boolean isStoreIncompressible() {
+        return storeIncompressible;
+    }
+
+    /**
+     * @param storeIncompressible
+     *            if <code>true</code> files which are compressed already,
+     *            like jars and images, and zip entries deflate shrinks by
+     *            less than 2% are stored without compression in zip and
+     *            tar.gz distros
+     */
+    public void setStoreIncompressible(boolean storeIncompressible) {
+        this.storeIncompressible = storeIncompressible;
+    }
+
+    public boolean isPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @param pipeline
+     *            if <code>true</code> downloading, extracting, installing
+     *            and compressing run as pipeline stages with their own
+     *            threads, so the stages of different targets overlap; takes
+     *            precedence over {@link #setThreads(int)}
+     */
+    public void setPipeline(boolean pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    public int getExtractStageThreads() {
+        return extractStageThreads;
+    }
+
+    /**
+     * @param extractStageThreads
+     *            number of target SDKs extracted concurrently in pipeline
+     *            mode; the download stage uses
+     *            {@link #setDownloadThreads(int)} threads
+     */
+    public void setExtractStageThreads(int extractStageThreads) {
+        this.extractStageThreads = extractStageThreads;
+    }
+
+    public int getInstallStageThreads() {
+        return installStageThreads;
+    }
+
+    /**
+     * @param installStageThreads
+     *            number of director runs in parallel in pipeline mode
+     */
+    public void setInstallStageThreads(int installStageThreads) {
+        this.installStageThreads = installStageThreads;
+    }
+
+    public int getCompressStageThreads() {
+        return compressStageThreads;
+    }
+
+    /**
+     * @param compressStageThreads
+     *            number of distros compressed concurrently in pipeline mode,
+     *            each with {@link #setCompressionThreads(int)} threads
+     */
+    public void setCompressStageThreads(int compressStageThreads) {
+        this.compressStageThreads = compressStageThreads;
+    }
+
+    public int getMaxWorkingTrees() {
+        return maxWorkingTrees;
+    }
+
+    /**
+     * @param maxWorkingTrees
+     *            maximum number of extracted SDKs on disk at the same time
+     *            in pipeline mode, <code>0</code> to only limit them by the
+     *            stage queues
+     */
+    public void setMaxWorkingTrees(int maxWorkingTrees) {
+        this.maxWorkingTrees = maxWorkingTrees;
+    }
+
+    public long getWorkingTreeDiskLimit() {
+        return workingTreeDiskLimit;
+    }
+
+    /**
+     * @param workingTreeDiskLimit
+     *            size in MB of the extracted and installed trees from which
+     *            on no further SDK is extracted in pipeline mode until a
+     *            distro is finished, <code>0</code> for no limit
+     */
+    public void setWorkingTreeDiskLimit(long workingTreeDiskLimit) {
+        this.workingTreeDiskLimit = workingTreeDiskLimit;
+    }
+
+    public String getDirectorConsole() {
+        return directorConsole;
+    }
+
+    /**
+     * @param directorConsole
+     *            director output printed to the console, the complete output
+     *            of every target is written to
+     *            <code>&lt;buildDirectory&gt;/logs</code>: <code>summary</code>
+     *            for a line per target, <code>errors</code> to add stderr and
+     *            logged errors or <code>all</code>
+     */
+    public void setDirectorConsole(String directorConsole) {
+        this.directorConsole = directorConsole;
+    }
+
+    public int getDirectorLogTail() {
+        return directorLogTail;
+    }
+
+    /**
+     * @param directorLogTail
+     *            number of the last lines of director output printed when the
+     *            director fails
+     */
+    public void setDirectorLogTail(int directorLogTail) {
+        this.directorLogTail = directorLogTail;
+    }
+
+    public int getCoordinatorPort() {
+        return coordinatorPort;
+    }
+
+    /**
+     * @param coordinatorPort
+     *            port to listen on for {@link DistroWorkerNode}s, if set the
+     *            distros are built by the nodes connecting instead of on this
+     *            machine; incremental mode does not apply then
+     */
+    public void setCoordinatorPort(int coordinatorPort) {
+        this.coordinatorPort = coordinatorPort;
+    }
+
+    public String getCoordinatorAddress() {
+        return coordinatorAddress;
+    }
+
+    /**
+     * @param coordinatorAddress
+     *            address to listen on for worker nodes, e.g.
+     *            <code>0.0.0.0</code> for all interfaces; defaults to the
+     *            loopback interface, other addresses require a
+     *            {@link #setCoordinatorSecret(String) secret}
+     */
+    public void setCoordinatorAddress(String coordinatorAddress) {
+        this.coordinatorAddress = coordinatorAddress;
+    }
+
+    public String getCoordinatorSecret() {
+        return coordinatorSecret;
+    }
+
+    /**
+     * @param coordinatorSecret
+     *            secret the worker nodes have to know, they read it from the
+     *            <code>DISTROBUILDER_SECRET</code> environment variable
+     */
+    public void setCoordinatorSecret(String coordinatorSecret) {
+        this.coordinatorSecret = coordinatorSecret;
+    }
+
+    public int getMirrorMinThroughput() {
+        return mirrorMinThroughput;
+    }
+
+    /**
+     * @param mirrorMinThroughput
+     *            throughput in KB/s below which a download moves to the next
+     *            mirror of its repository, <code>0</code> to move only if the
+     *            mirror fails
+     */
+    public void setMirrorMinThroughput(int mirrorMinThroughput) {
+        this.mirrorMinThroughput = mirrorMinThroughput;
+    }
+
+    public int getMirrorSplit() {
+        return mirrorSplit;
+    }
+
+    /**
+     * @param mirrorSplit
+     *            number of mirrors a large repository download is split
+     *            across in range requests, <code>0</code> to download it from
+     *            one mirror at a time
+     */
+    public void setMirrorSplit(int mirrorSplit) {
+        this.mirrorSplit = mirrorSplit;
+    }
+
+    public String getStagingDirectory() {
+        return stagingDirectory;
+    }
+
+    /**
+     * @param stagingDirectory
+     *            directory on a fast file system, e.g. <code>/dev/shm</code>,
+     *            the SDKs are extracted and installed in while they fit,
+     *            otherwise <code>&lt;buildDirectory&gt;/tmp</code> is used
+     */
+    public void setStagingDirectory(String stagingDirectory) {
+        this.stagingDirectory = stagingDirectory;
+    }
+
+    public long getStagingLimit() {
+        return stagingLimit;
+    }
+
+    /**
+     * @param stagingLimit
+     *            size in MB the working trees may take up in the
+     *            {@link #setStagingDirectory(String) staging directory},
+     *            <code>0</code> to use its free space
+     */
+    public void setStagingLimit(long stagingLimit) {
+        this.stagingLimit = stagingLimit;
+    }
+
     public String getAppDefinition() {
         return appDefinition;
     }
@@ -0,0 +1,348 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Worker node of a distributed build, see {@link BuildCoordinator}.
+ * <p>
+ * The node connects to the coordinator, builds the work units it receives
+ * with its own director below its build directory and sends the distros
+ * back. SDKs and repositories received are kept in
+ * <code>&lt;build directory&gt;/node-inputs</code> for later units. When the
+ * coordinator is not reachable or the build is over the node tries again
+ * every few seconds, so it can be left running as build agent. A node builds
+ * one unit at a time, start several nodes to use more of a machine. Every
+ * node needs a build directory of its own, as a build clears the working
+ * directories below it; a node refuses to start on a build directory used by
+ * another node.
+ * </p>
+ * <p>
+ * The secret of the coordinator is read from the
+ * <code>DISTROBUILDER_SECRET</code> environment variable, so it does not show
+ * up in the process list.
+ * </p>
+ */
+public class DistroWorkerNode {
+    private static final int RECONNECT = 5 * 1000;
+
+    private final String host;
+    private final int port;
+    private final String name;
+    private final String secret;
+    private final String director;
+    private final File buildDirectory;
+    private final File inputs;
+
+    /**
+     * @param secret
+     *            secret of the coordinator or <code>null</code>
+     */
+    public DistroWorkerNode(String host, int port, String name, String secret, String director,
+            File buildDirectory) {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.secret = secret;
+        this.director = director;
+        this.buildDirectory = buildDirectory.getAbsoluteFile();
+        this.inputs = new File(this.buildDirectory, "node-inputs");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3 || args[0].indexOf(':') == -1) {
+            System.err.println("Usage: DistroWorkerNode <coordinator host:port> <director executable> "
+                    + "<build directory, one per node> [name]");
+            System.exit(1);
+        }
+        String address = args[0];
+        int i = address.lastIndexOf(':');
+        String name = args.length > 3 ? args[3] : InetAddress.getLocalHost().getHostName();
+        new DistroWorkerNode(address.substring(0, i), Integer.parseInt(address.substring(i + 1)), name,
+                System.getenv("DISTROBUILDER_SECRET"), args[1], new File(args[2])).run();
+    }
+
+    /**
+     * Serves coordinators until the thread is interrupted.
+     *
+     * @throws IOException
+     *             if the build directory is used by another node
+     */
+    public void run() throws IOException, InterruptedException {
+        buildDirectory.mkdirs();
+        FileChannel ch = new RandomAccessFile(new File(buildDirectory, "node.lock"), "rw").getChannel();
+        try {
+            FileLock lock;
+            try {
+                lock = ch.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("Build directory " + buildDirectory + " is used by another worker node");
+            }
+            serveCoordinators();
+        } finally {
+            ch.close();
+        }
+    }
+
+    private void serveCoordinators() throws InterruptedException {
+        boolean waiting = false;
+        while (!Thread.currentThread().isInterrupted()) {
+            Socket socket;
+            try {
+                socket = new Socket(host, port);
+            } catch (IOException e) {
+                if (!waiting) {
+                    System.out.println("Waiting for coordinator " + host + ":" + port);
+                    waiting = true;
+                }
+                Thread.sleep(RECONNECT);
+                continue;
+            }
+            waiting = false;
+            try {
+                serve(socket);
+            } catch (IOException e) {
+                System.err.println("Connection to coordinator lost: " + e.getMessage());
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            Thread.sleep(RECONNECT);
+        }
+    }
+
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        String challenge = in.readUTF();
+        out.writeUTF(BuildCoordinator.HELLO);
+        out.writeUTF(name);
+        out.writeUTF(BuildCoordinator.respond(secret, challenge));
+        out.flush();
+        System.out.println("Connected to coordinator " + host + ":" + port);
+
+        String msg;
+        while (BuildCoordinator.JOB.equals(msg = in.readUTF())) {
+            String id = in.readUTF();
+            Properties job = BuildCoordinator.readProperties(in);
+            receiveInputs(job, in, out);
+
+            Thread heartbeat = new Thread("node-heartbeat") {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Thread.sleep(BuildCoordinator.HEARTBEAT);
+                            synchronized (out) {
+                                out.writeUTF(BuildCoordinator.ALIVE);
+                                out.flush();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // the unit is done
+                    } catch (IOException e) {
+                        // reported when the result is sent
+                    }
+                }
+            };
+            heartbeat.setDaemon(true);
+            heartbeat.start();
+            File dist = new File(new File(buildDirectory, "node-dist"), id);
+            List<File> distros = new ArrayList<File>();
+            String failure;
+            try {
+                failure = build(id, job, dist, distros);
+            } finally {
+                heartbeat.interrupt();
+                heartbeat.join();
+            }
+
+            if (failure != null) {
+                out.writeUTF(BuildCoordinator.FAILED);
+                BuildCoordinator.writeText(out, failure);
+            } else {
+                out.writeUTF(BuildCoordinator.DONE);
+                out.writeInt(distros.size());
+                for (File f : distros) {
+                    out.writeUTF(f.getName());
+                    out.writeLong(f.length());
+                    InputStream fin = new FileInputStream(f);
+                    try {
+                        BuildCoordinator.copy(fin, out, f.length());
+                    } finally {
+                        fin.close();
+                    }
+                }
+            }
+            out.flush();
+            DistroBuilder.deleteDirectory(dist);
+        }
+        if (BuildCoordinator.DENIED.equals(msg)) {
+            throw new IOException("Rejected by the coordinator, check DISTROBUILDER_SECRET");
+        }
+        if (!BuildCoordinator.BYE.equals(msg)) {
+            throw new IOException("Protocol error, unexpected " + msg);
+        }
+        System.out.println("Build finished, disconnected from coordinator");
+    }
+
+    /**
+     * Requests the inputs of <code>job</code> which are not available
+     * locally.
+     */
+    private void receiveInputs(Properties job, DataInputStream in, DataOutputStream out) throws IOException {
+        List<String> missing = new ArrayList<String>();
+        for (String key : job.stringPropertyNames()) {
+            if (key.startsWith("input.")) {
+                String digest = key.substring("input.".length());
+                if (!getInput(job, digest).exists()) {
+                    missing.add(digest);
+                }
+            }
+        }
+        out.writeUTF(BuildCoordinator.NEED);
+        out.writeInt(missing.size());
+        for (String digest : missing) {
+            out.writeUTF(digest);
+        }
+        out.flush();
+
+        for (String digest : missing) {
+            File f = getInput(job, digest);
+            f.getParentFile().mkdirs();
+            File tmp = new File(f.getPath() + ".part");
+            OutputStream fout = new FileOutputStream(tmp);
+            try {
+                BuildCoordinator.copy(in, fout, in.readLong());
+            } finally {
+                fout.close();
+            }
+            if (!digest.equals(FileDigests.sha256(tmp))) {
+                tmp.delete();
+                throw new IOException("Received damaged copy of " + f.getName());
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private File getInput(Properties job, String digest) {
+        return new File(new File(inputs, digest), job.getProperty("input." + digest));
+    }
+
+    /**
+     * Builds the unit described by <code>job</code> into <code>dist</code>.
+     *
+     * @param distros
+     *            receives the distros built
+     * @return <code>null</code> or why the unit failed
+     */
+    private String build(String id, Properties job, File dist, List<File> distros) {
+        File sdk = getInput(job, job.getProperty("sdk"));
+        List<String> repos = new ArrayList<String>();
+        for (String repo : BuildCoordinator.getList(job, "repository")) {
+            repos.add(repo.startsWith(BuildCoordinator.INPUT) ? getInput(job,
+                    repo.substring(BuildCoordinator.INPUT.length())).getPath() : repo);
+        }
+        List<String> staticRepos = new ArrayList<String>();
+        for (String digest : BuildCoordinator.getList(job, "staticRepository")) {
+            staticRepos.add(BuildPlan.toZipString(getInput(job, digest)));
+        }
+        BuildPlan.WorkUnit unit = new BuildPlan.WorkUnit(id, job.getProperty("sdkDigest"), BuildCoordinator.getList(
+                job, "installUnit"), BuildCoordinator.getList(job, "updateSite"), repos, staticRepos);
+        try {
+            for (int i = 0; job.getProperty("target." + i + ".out") != null; i++) {
+                String prefix = "target." + i + ".";
+                unit.targets.add(new BuildPlan.Target(job.getProperty(prefix + "version"), job.getProperty(prefix
+                        + "os"), job.getProperty(prefix + "arch"), sdk, new File(dist, job.getProperty(prefix
+                        + "out")), ArchiveCodecs.get(job.getProperty(prefix + "codec")), Integer.parseInt(job
+                        .getProperty(prefix + "level"))));
+            }
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+        System.out.println("Building " + unit.getPrimary());
+
+        DistroBuilder builder = new DistroBuilder();
+        BuildCoordinator.applySettings(job, builder);
+        builder.setP2DirectorExecutable(director);
+        builder.setBuildDirectory(buildDirectory.getPath());
+        builder.setDistDirectory(dist.getPath());
+        DistroBuilder.deleteDirectory(dist);
+        try {
+            builder.build(BuildPlan.of(unit));
+        } catch (DistroBuildException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                // the node is being stopped
+                Thread.currentThread().interrupt();
+            }
+            return e.getCause() != null ? e.getMessage() + ": " + e.getCause().getMessage() : e.getMessage();
+        }
+        for (BuildPlan.Target t : unit.targets) {
+            if (!t.out.exists()) {
+                File log = new File(new File(buildDirectory, "logs"), unit.getPrimary().out.getName() + ".log");
+                return "Director failed on " + name + ", last lines of its output:\n"
+                        + tail(log, builder.getDirectorLogTail());
+            }
+            distros.add(t.out);
+        }
+        return null;
+    }
+
+    private static String tail(File log, int lines) {
+        LinkedList<String> rv = new LinkedList<String>();
+        try {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(log),
+                    Charset.forName("UTF-8")));
+            try {
+                String l;
+                while ((l = r.readLine()) != null) {
+                    rv.add("  " + l);
+                    if (rv.size() > lines) {
+                        rv.removeFirst();
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            return "  " + log + " not readable: " + e.getMessage();
+        }
+        StringBuilder b = new StringBuilder();
+        for (String l : rv) {
+            if (b.length() > 0) {
+                b.append('\n');
+            }
+            b.append(l);
+        }
+        return b.toString();
+    }
+}
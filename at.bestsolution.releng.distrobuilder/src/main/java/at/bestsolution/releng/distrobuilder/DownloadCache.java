@@ -0,0 +1,414 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Content addressed store for downloaded repositories.
+ * <p>
+ * Files are kept as <code>objects/&lt;sha256&gt;.zip</code>, so the same
+ * archive served from several URLs is stored once. The index below
+ * <code>urls/</code> maps every URL to the digest and HTTP validators of its
+ * last download. The modification time of an object is its last use, when
+ * the store grows beyond its limit the least recently used objects are
+ * removed.
+ * </p>
+ * <p>
+ * Several builds may share one store. Objects handed out are held with a
+ * shared lock on <code>locks/&lt;sha256&gt;.lock</code> until
+ * {@link #close()}, eviction only removes objects whose lock it can acquire
+ * exclusively. The lock is not taken on the object itself: closing any
+ * descriptor of a file drops all locks the process holds on it, and the
+ * objects are read by other parts of the build. Downloads of the same URL are
+ * serialized with a lock file and changes to the store with
+ * <code>store.lock</code>.
+ * </p>
+ */
+class DownloadCache {
+    /**
+     * The object locks held by this process, shared by all instances, as
+     * closing a lock file to test it would drop the lock of another instance
+     */
+    private static final Map<File, Pin> PINS = new HashMap<File, Pin>();
+    private static final Pattern LEGACY_FILE = Pattern.compile("[0-9a-f]{1,32}\\.(zip|properties|zip\\.part|part\\.properties)");
+
+    private final File objects;
+    private final File urls;
+    private final File tmp;
+    private final File locks;
+    private final File storeLock;
+    private final long maxSize;
+
+    private final ReentrantLock storeMutex = new ReentrantLock();
+    private final Set<String> pinned = new HashSet<String>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private static class Pin {
+        final FileLock lock;
+        int users;
+
+        Pin(FileLock lock) {
+            this.lock = lock;
+        }
+    }
+
+    /**
+     * @param maxSize
+     *            maximum size of all objects in bytes, <code>0</code> for no
+     *            limit
+     */
+    DownloadCache(File directory, long maxSize) {
+        this.objects = new File(directory, "objects").getAbsoluteFile();
+        this.urls = new File(directory, "urls");
+        this.tmp = new File(directory, "tmp");
+        this.locks = new File(directory, "locks").getAbsoluteFile();
+        this.storeLock = new File(directory, "store.lock");
+        this.maxSize = maxSize;
+        objects.mkdirs();
+        urls.mkdirs();
+        tmp.mkdirs();
+        locks.mkdirs();
+
+        // files of the old url named cache are never used again
+        File[] legacy = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && LEGACY_FILE.matcher(f.getName()).matches();
+            }
+        });
+        for (File f : legacy) {
+            f.delete();
+        }
+    }
+
+    /**
+     * @return the index entry of <code>url</code> with the keys
+     *         <code>digest</code>, <code>etag</code> and
+     *         <code>lastModified</code>, or <code>null</code> if the URL has
+     *         not been downloaded yet or its object has been evicted
+     */
+    public Properties lookup(String url) throws IOException {
+        File f = indexFile(url);
+        if (!f.exists()) {
+            return null;
+        }
+        Properties p = FileDigests.load(f);
+        String digest = p.getProperty("digest");
+        if (digest == null) {
+            return null;
+        }
+        FileLock lock = lockStore();
+        try {
+            return pin(digest) ? p : null;
+        } finally {
+            unlockStore(lock);
+        }
+    }
+
+    /**
+     * Hands out the object of <code>url</code> after a download confirmed the
+     * cached copy is still current. The content is verified against its
+     * digest first, a damaged object is removed and <code>null</code> is
+     * returned.
+     */
+    public File hit(String url, Properties entry) throws IOException {
+        String digest = entry.getProperty("digest");
+        File f = objectFile(digest);
+        if (!digest.equals(FileDigests.sha256(f))) {
+            System.err.println("Cached copy of " + url + " is damaged, downloading it again");
+            release(digest);
+            f.delete();
+            indexFile(url).delete();
+            return null;
+        }
+        touch(f);
+        hits.incrementAndGet();
+        return f;
+    }
+
+    /**
+     * @return the file to download <code>url</code> to; the file is kept
+     *         until the download is {@link #commit(String, File, Properties)
+     *         committed}, so an interrupted transfer can be resumed
+     */
+    public File partFile(String url) {
+        return new File(tmp, FileDigests.sha256(url) + ".part");
+    }
+
+    /**
+     * Acquires the lock which serializes downloads of <code>url</code> across
+     * builds sharing this store.
+     */
+    public FileLock lockUrl(String url) throws IOException {
+        @SuppressWarnings("resource")
+        FileChannel ch = new RandomAccessFile(new File(tmp, FileDigests.sha256(url) + ".lock"), "rw").getChannel();
+        try {
+            return ch.lock();
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    public static void unlock(FileLock lock) throws IOException {
+        try {
+            lock.release();
+        } finally {
+            lock.channel().close();
+        }
+    }
+
+    /**
+     * Moves a completed download into the store under its digest and points
+     * the index entry of <code>url</code> to it.
+     *
+     * @param info
+     *            HTTP validators of the download
+     */
+    public File commit(String url, File part, Properties info) throws IOException {
+        String digest = FileDigests.sha256(part);
+        File f = objectFile(digest);
+        FileLock lock = lockStore();
+        try {
+            if (f.exists()) {
+                part.delete();
+            } else {
+                Files.move(part.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            touch(f);
+            pin(digest);
+            Properties p = new Properties();
+            p.putAll(info);
+            p.setProperty("url", url);
+            p.setProperty("digest", digest);
+            FileDigests.store(p, indexFile(url));
+        } finally {
+            unlockStore(lock);
+        }
+        misses.incrementAndGet();
+        evict();
+        return f;
+    }
+
+    /**
+     * @return the digest of <code>file</code> if it is an object of this
+     *         store, <code>null</code> otherwise
+     */
+    public synchronized String digestOf(File file) {
+        String name = file.getName();
+        if (name.endsWith(".zip") && file.getParentFile().equals(objects)) {
+            String digest = name.substring(0, name.length() - 4);
+            if (pinned.contains(digest)) {
+                return digest;
+            }
+        }
+        return null;
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Removes the least recently used objects until the store fits into its
+     * size limit. Objects in use by this or any other build are kept.
+     */
+    public void evict() throws IOException {
+        if (maxSize <= 0) {
+            return;
+        }
+        FileLock lock = lockStore();
+        try {
+            File[] files = objects.listFiles();
+            long size = 0;
+            for (File f : files) {
+                size += f.length();
+            }
+            if (size <= maxSize) {
+                return;
+            }
+            List<File> candidates = new ArrayList<File>(Arrays.asList(files));
+            Collections.sort(candidates, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+            for (File f : candidates) {
+                if (size <= maxSize) {
+                    break;
+                }
+                long length = f.length();
+                String name = f.getName();
+                if (name.endsWith(".zip") && delete(name.substring(0, name.length() - 4))) {
+                    size -= length;
+                    System.out.println("Evicted " + f.getName() + " from download cache");
+                }
+            }
+        } finally {
+            unlockStore(lock);
+        }
+    }
+
+    /**
+     * Releases all objects handed out by this instance and shrinks the store
+     * to its size limit.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            for (String digest : new ArrayList<String>(pinned)) {
+                release(digest);
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Must be called with the store lock held.
+     */
+    private synchronized boolean pin(String digest) throws IOException {
+        if (pinned.contains(digest)) {
+            return true;
+        }
+        if (!objectFile(digest).exists()) {
+            return false;
+        }
+        File lockFile = lockFile(digest);
+        synchronized (PINS) {
+            Pin pin = PINS.get(lockFile);
+            if (pin == null) {
+                @SuppressWarnings("resource")
+                FileChannel ch = new RandomAccessFile(lockFile, "rw").getChannel();
+                try {
+                    pin = new Pin(ch.lock(0, Long.MAX_VALUE, true));
+                } catch (IOException e) {
+                    ch.close();
+                    throw e;
+                }
+                PINS.put(lockFile, pin);
+            }
+            pin.users++;
+        }
+        pinned.add(digest);
+        return true;
+    }
+
+    private synchronized void release(String digest) {
+        if (!pinned.remove(digest)) {
+            return;
+        }
+        File lockFile = lockFile(digest);
+        synchronized (PINS) {
+            Pin pin = PINS.get(lockFile);
+            if (--pin.users == 0) {
+                PINS.remove(lockFile);
+                try {
+                    unlock(pin.lock);
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes an object unless a build uses it. Must be called with the store
+     * lock held, so the object cannot be pinned meanwhile.
+     */
+    private boolean delete(String digest) throws IOException {
+        File lockFile = lockFile(digest);
+        synchronized (PINS) {
+            // opening and closing the lock file would drop our own pin
+            if (PINS.containsKey(lockFile)) {
+                return false;
+            }
+            RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+            try {
+                FileLock lock = raf.getChannel().tryLock();
+                if (lock == null) {
+                    return false;
+                }
+                try {
+                    if (!objectFile(digest).delete()) {
+                        return false;
+                    }
+                    lockFile.delete();
+                    return true;
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Serializes changes to the store between the threads of this build and
+     * between builds.
+     */
+    private FileLock lockStore() throws IOException {
+        storeMutex.lock();
+        try {
+            @SuppressWarnings("resource")
+            FileChannel ch = new RandomAccessFile(storeLock, "rw").getChannel();
+            try {
+                return ch.lock();
+            } catch (IOException e) {
+                ch.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            storeMutex.unlock();
+            throw e;
+        }
+    }
+
+    private void unlockStore(FileLock lock) throws IOException {
+        try {
+            unlock(lock);
+        } finally {
+            storeMutex.unlock();
+        }
+    }
+
+    private static void touch(File f) {
+        f.setLastModified(System.currentTimeMillis());
+    }
+
+    private File objectFile(String digest) {
+        return new File(objects, digest + ".zip");
+    }
+
+    private File lockFile(String digest) {
+        return new File(locks, digest + ".lock");
+    }
+
+    private File indexFile(String url) {
+        return new File(urls, FileDigests.sha256(url) + ".properties");
+    }
+}
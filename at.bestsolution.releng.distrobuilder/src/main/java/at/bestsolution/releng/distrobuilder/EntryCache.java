@@ -0,0 +1,141 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of deflated file content shared by all archives of a build.
+ * <p>
+ * Most bundles end up unchanged in the distros of all platforms, the cache
+ * deflates them once: entries are keyed by the SHA-256 of the content and
+ * the compression level and stored as {@link DeflateSegment}s in
+ * <code>&lt;directory&gt;/&lt;xx&gt;/&lt;key&gt;</code>, so they can be used
+ * as zip entry data as well as spliced into a gzip stream. Only files of at
+ * least {@link #MIN_SIZE} bytes are cached, and none larger than
+ * {@link ParallelZipWriter#LARGE_ENTRY}: segments are held in memory while
+ * they are written, larger files are compressed as they are streamed.
+ * </p>
+ */
+class EntryCache {
+    static final int MIN_SIZE = 16 * 1024;
+
+    private static final int MAGIC = 0x44534547;
+
+    private final File directory;
+    private final Set<String> used = Collections.synchronizedSet(new HashSet<String>());
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    EntryCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return <code>true</code> if <code>file</code> should be compressed
+     *         through the cache
+     */
+    public static boolean accepts(File file) {
+        long length = file.length();
+        return length >= MIN_SIZE && length <= ParallelZipWriter.LARGE_ENTRY;
+    }
+
+    /**
+     * @return the deflated content of <code>file</code>, compressing and
+     *         storing it if it is not cached yet
+     */
+    public DeflateSegment get(File file, int level) throws IOException {
+        String key = FileDigests.sha256(file) + "-" + (level < 0 ? "d" : String.valueOf(level));
+        used.add(key);
+        File entry = new File(new File(directory, key.substring(0, 2)), key);
+        if (entry.exists()) {
+            try {
+                DeflateSegment s = read(entry);
+                hits.incrementAndGet();
+                return s;
+            } catch (IOException e) {
+                // damaged, compressed again below
+            }
+        }
+
+        DeflateSegment s = DeflateSegment.deflate(file, level);
+        entry.getParentFile().mkdirs();
+        File tmp = File.createTempFile(key, ".tmp", entry.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),
+                    ArchiveIO.BUFFER_SIZE));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(s.crc);
+                out.writeLong(s.length);
+                out.writeInt(s.data.length);
+                out.write(s.data);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        misses.incrementAndGet();
+        return s;
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Removes all entries not used in this run.
+     */
+    public void cleanup() {
+        File[] dirs = directory.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            File[] entries = dir.listFiles();
+            if (entries != null) {
+                for (File entry : entries) {
+                    if (!used.contains(entry.getName())) {
+                        entry.delete();
+                    }
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private static DeflateSegment read(File entry) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry),
+                ArchiveIO.BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Invalid cache entry " + entry);
+            }
+            long crc = in.readLong();
+            long length = in.readLong();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new DeflateSegment(data, crc, length);
+        } finally {
+            in.close();
+        }
+    }
+}
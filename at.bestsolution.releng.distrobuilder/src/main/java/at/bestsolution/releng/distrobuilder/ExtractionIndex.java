@@ -0,0 +1,86 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the size and modification time of every file extracted from a
+ * target SDK archive, so files which are still untouched after the director
+ * run can be recognized again.
+ */
+class ExtractionIndex {
+    private final File sourceArchive;
+    private final ZipDirectory zipDirectory;
+    private final Map<String, Record> records = new ConcurrentHashMap<String, Record>();
+
+    static class Record {
+        final long size;
+        final long lastModified;
+
+        Record(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * @param zipDirectory
+     *            central directory of the source archive or <code>null</code>
+     *            if it is not a zip file
+     */
+    ExtractionIndex(File sourceArchive, ZipDirectory zipDirectory) {
+        this.sourceArchive = sourceArchive;
+        this.zipDirectory = zipDirectory;
+    }
+
+    public File getSourceArchive() {
+        return sourceArchive;
+    }
+
+    public ZipDirectory getZipDirectory() {
+        return zipDirectory;
+    }
+
+    /**
+     * Records the current state of a freshly extracted file.
+     */
+    public void add(String name, File file) {
+        add(name, file.length(), file.lastModified());
+    }
+
+    public void add(String name, long size, long lastModified) {
+        records.put(name, new Record(size, lastModified));
+    }
+
+    public Map<String, Record> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return <code>true</code> if <code>file</code> still has the size and
+     *         modification time it had when it was extracted as
+     *         <code>name</code>
+     */
+    public boolean isUnchanged(String name, File file) {
+        Record r = records.get(name);
+        return r != null && r.size == file.length() && r.lastModified == file.lastModified();
+    }
+
+    /**
+     * @return the source zip entry if <code>file</code> is unchanged and its
+     *         compressed bytes can be copied verbatim, <code>null</code>
+     *         otherwise
+     */
+    public ZipDirectory.Entry getReusableEntry(String name, File file) {
+        if (zipDirectory == null || !isUnchanged(name, file)) {
+            return null;
+        }
+        ZipDirectory.Entry e = zipDirectory.getEntry(name);
+        // encrypted entries can not be copied
+        if (e == null || (e.flags & 0x1) != 0) {
+            return null;
+        }
+        return e;
+    }
+}
@@ -0,0 +1,104 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * SHA-256 digests of files. Hashing large archives on every run is not for
+ * free, so digests are remembered per path, size and modification time in a
+ * properties file.
+ */
+class FileDigests {
+    private final File store;
+    private Properties digests;
+
+    FileDigests(File store) {
+        this.store = store;
+    }
+
+    public synchronized String get(File file) throws IOException {
+        if (digests == null) {
+            digests = store.exists() ? load(store) : new Properties();
+        }
+        String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        String digest = digests.getProperty(key);
+        if (digest == null) {
+            digest = sha256(file);
+            digests.setProperty(key, digest);
+            store.getParentFile().mkdirs();
+            store(digests, store);
+        }
+        return digest;
+    }
+
+    static String sha256(File file) throws IOException {
+        MessageDigest d;
+        try {
+            d = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to compute digest", e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[ArchiveIO.BUFFER_SIZE];
+            int l;
+            while ((l = in.read(buf)) != -1) {
+                d.update(buf, 0, l);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(d.digest());
+    }
+
+    static String sha256(String value) {
+        MessageDigest d;
+        try {
+            d = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return toHex(d.digest(value.getBytes(Charset.forName("UTF-8"))));
+    }
+
+    static String toHex(byte[] digest) {
+        return String.format("%0" + digest.length * 2 + "x", new BigInteger(1, digest));
+    }
+
+    static Properties load(File f) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(f);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        return p;
+    }
+
+    /**
+     * Writes <code>p</code> to a temporary file first and moves it in place,
+     * readers never see a partially written file.
+     */
+    static void store(Properties p, File f) throws IOException {
+        File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            p.store(out, null);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,222 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Ranks the mirrors of a repository or update site by the latency and
+ * throughput measured for their hosts.
+ * <p>
+ * The statistics are kept per host, smoothed over the transfers, and stored
+ * in a properties file between runs. Hosts not measured in the current run
+ * are probed with a <code>HEAD</code> request before they are ranked. A host
+ * is ranked by the time it would take to transfer
+ * {@link #REFERENCE_SIZE} bytes; hosts whose throughput is still unknown are
+ * ranked as if they were as fast as the fastest known one, so they get a
+ * chance to be measured. Hosts which failed are ranked last.
+ * </p>
+ */
+class MirrorSelector {
+    private static final double WEIGHT = 0.3;
+    private static final long REFERENCE_SIZE = 32 * 1024 * 1024;
+    /** transfers shorter than this say little about the throughput */
+    private static final long MIN_SAMPLE = 256 * 1024;
+    private static final int PROBE_TIMEOUT = 10 * 1000;
+
+    private final File file;
+    private final Map<String, Stats> stats = new HashMap<String, Stats>();
+    private final Set<String> probed = new HashSet<String>();
+
+    static class Stats {
+        /** milliseconds until the response headers arrived */
+        double latency = -1;
+        /** bytes per second */
+        double throughput = -1;
+        /** failures since the last successful transfer */
+        int failures;
+    }
+
+    MirrorSelector(File file) {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            Properties p = FileDigests.load(file);
+            for (String key : p.stringPropertyNames()) {
+                int i = key.lastIndexOf('.');
+                Stats s = getStats(key.substring(0, i));
+                String value = p.getProperty(key);
+                if (key.endsWith(".latency")) {
+                    s.latency = Double.parseDouble(value);
+                } else if (key.endsWith(".throughput")) {
+                    s.throughput = Double.parseDouble(value);
+                } else if (key.endsWith(".failures")) {
+                    s.failures = Integer.parseInt(value);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read mirror statistics: " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("Ignoring damaged mirror statistics " + file);
+            stats.clear();
+        }
+    }
+
+    static String host(String url) {
+        try {
+            URL u = new URL(url);
+            return u.getProtocol() + "://" + u.getHost() + (u.getPort() != -1 ? ":" + u.getPort() : "");
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    private Stats getStats(String host) {
+        Stats s = stats.get(host);
+        if (s == null) {
+            s = new Stats();
+            stats.put(host, s);
+        }
+        return s;
+    }
+
+    /**
+     * @return <code>urls</code> from the best to the worst mirror
+     */
+    public List<String> rank(List<String> urls) {
+        if (urls.size() < 2) {
+            return urls;
+        }
+        probe(urls);
+        final Map<String, Double> scores = new HashMap<String, Double>();
+        synchronized (this) {
+            double fastest = 0;
+            for (String url : urls) {
+                fastest = Math.max(fastest, getStats(host(url)).throughput);
+            }
+            for (String url : urls) {
+                Stats s = getStats(host(url));
+                double score = Math.max(0, s.latency);
+                double throughput = s.throughput > 0 ? s.throughput : fastest;
+                if (throughput > 0) {
+                    score += REFERENCE_SIZE * 1000 / throughput;
+                }
+                if (s.failures > 0) {
+                    score = Double.MAX_VALUE / 2 + s.failures;
+                }
+                scores.put(url, score);
+            }
+        }
+        List<String> rv = new ArrayList<String>(urls);
+        // stable, so equally ranked mirrors keep the configured order
+        Collections.sort(rv, new Comparator<String>() {
+            @Override
+            public int compare(String u1, String u2) {
+                return Double.compare(scores.get(u1), scores.get(u2));
+            }
+        });
+        return rv;
+    }
+
+    /**
+     * Measures the latency of the hosts of <code>urls</code> not yet
+     * measured in this run, all of them at the same time.
+     */
+    private void probe(List<String> urls) {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final String url : urls) {
+            synchronized (this) {
+                if (!probed.add(host(url))) {
+                    continue;
+                }
+            }
+            Thread t = new Thread("mirror-probe") {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+                        con.setRequestMethod("HEAD");
+                        con.setConnectTimeout(PROBE_TIMEOUT);
+                        con.setReadTimeout(PROBE_TIMEOUT);
+                        // any answer tells the latency, a missing file shows
+                        // up when it is downloaded
+                        con.getResponseCode();
+                        con.disconnect();
+                        latency(url, System.currentTimeMillis() - start);
+                    } catch (IOException e) {
+                        failed(url);
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the time until the response of <code>url</code> arrived; the
+     * host answering again makes it a candidate again after failures.
+     */
+    public synchronized void latency(String url, long millis) {
+        Stats s = getStats(host(url));
+        s.failures = 0;
+        s.latency = s.latency < 0 ? millis : (1 - WEIGHT) * s.latency + WEIGHT * millis;
+    }
+
+    /**
+     * Records a transfer of <code>bytes</code> in <code>millis</code> from
+     * <code>url</code>.
+     */
+    public synchronized void transferred(String url, long bytes, long millis) {
+        Stats s = getStats(host(url));
+        s.failures = 0;
+        if (bytes < MIN_SAMPLE) {
+            return;
+        }
+        double throughput = bytes * 1000.0 / Math.max(1, millis);
+        s.throughput = s.throughput < 0 ? throughput : (1 - WEIGHT) * s.throughput + WEIGHT * throughput;
+    }
+
+    public synchronized void failed(String url) {
+        getStats(host(url)).failures++;
+    }
+
+    public synchronized void save() throws IOException {
+        Properties p = new Properties();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            Stats s = e.getValue();
+            if (s.latency >= 0) {
+                p.setProperty(e.getKey() + ".latency", String.valueOf(Math.round(s.latency)));
+            }
+            if (s.throughput >= 0) {
+                p.setProperty(e.getKey() + ".throughput", String.valueOf(Math.round(s.throughput)));
+            }
+            p.setProperty(e.getKey() + ".failures", String.valueOf(s.failures));
+        }
+        file.getParentFile().mkdirs();
+        FileDigests.store(p, file);
+    }
+}
@@ -0,0 +1,76 @@
+package at.bestsolution.releng.distrobuilder;
+
+/**
+ * Selects the archive format of the distros of the matching targets, e.g.
+ * <code>tar.xz</code> at the highest level for releases. The first matching
+ * format wins, targets without one keep the format of their SDK.
+ */
+public class OutputFormat implements FilteredElement {
+	private String name;
+	private int level = CodecSettings.DEFAULT_LEVEL;
+	private String version;
+	private String os;
+	private String arch;
+
+	public OutputFormat() {
+	}
+
+	public OutputFormat(String name, String version, String os, String arch) {
+		this.name = name;
+		this.version = version;
+		this.os = os;
+		this.arch = arch;
+	}
+
+	/**
+	 * @return the name of the {@link ArchiveCodec}
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the compression level, {@link CodecSettings#DEFAULT_LEVEL} to
+	 *         use the global one
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	public String getOs() {
+		return os;
+	}
+
+	public void setOs(String os) {
+		this.os = os;
+	}
+
+	public String getArch() {
+		return arch;
+	}
+
+	public void setArch(String arch) {
+		this.arch = arch;
+	}
+
+	@Override
+	public String getValue() {
+		return getName();
+	}
+}
@@ -0,0 +1,167 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Overlay archives hold only what the director changed in a target SDK.
+ * <p>
+ * An overlay contains the new and modified files of the distro and the
+ * manifest <code>&lt;root&gt;/overlay.properties</code>, which names the base
+ * SDK archive, its SHA-256 and the files and directories the director
+ * deleted. Extracting the base SDK, extracting the overlay on top of it and
+ * deleting the listed paths gives the full distro again, see
+ * {@link #apply(File, File, File, File)}.
+ * </p>
+ */
+public class OverlayArchive {
+    public static final int DEFAULT_BLOCK_SIZE = ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE;
+
+    static final String MANIFEST = "overlay.properties";
+
+    private final ArchiveExtractor extractor;
+    private final ArchiveIO archiveIO;
+
+    /**
+     * @param extractionThreads
+     *            number of threads used to extract the base SDK and the
+     *            overlay
+     * @param compressionThreads
+     *            number of threads used to compress the result
+     * @param compressionBlockSize
+     *            block size used for parallel gzip compression
+     */
+    public OverlayArchive(int extractionThreads, int compressionThreads, int compressionBlockSize) {
+        this.extractor = new ArchiveExtractor(extractionThreads);
+        this.archiveIO = new ArchiveIO(compressionThreads, compressionBlockSize);
+    }
+
+    /**
+     * @param settings
+     *            the settings the overlay and the rebuilt distro are written
+     *            with
+     */
+    public OverlayArchive(int extractionThreads, CodecSettings settings) {
+        this.extractor = new ArchiveExtractor(extractionThreads);
+        this.archiveIO = new ArchiveIO(settings);
+    }
+
+    /**
+     * Writes the overlay of <code>rootDir</code> to <code>targetFile</code>.
+     *
+     * @param index
+     *            the files extracted from <code>baseSdk</code>
+     * @param baseDigest
+     *            SHA-256 of <code>baseSdk</code>
+     * @return the files written
+     */
+    ArchiveIO.Counts write(File rootDir, File targetFile, ExtractionIndex index, File baseSdk, String baseDigest)
+            throws IOException {
+        File extractDir = rootDir.getParentFile();
+        Set<String> deleted = new TreeSet<String>();
+        for (String name : index.getRecords().keySet()) {
+            if (exists(new File(extractDir, name))) {
+                continue;
+            }
+            // list a removed directory instead of all its files
+            String path = name;
+            int i;
+            while ((i = path.lastIndexOf('/')) > 0 && !exists(new File(extractDir, path.substring(0, i)))) {
+                path = path.substring(0, i);
+            }
+            deleted.add(path);
+        }
+
+        Properties p = new Properties();
+        p.setProperty("base", baseSdk.getName());
+        p.setProperty("base.sha256", baseDigest);
+        p.setProperty("root", rootDir.getName());
+        int i = 0;
+        for (String path : deleted) {
+            p.setProperty("deleted." + i++, path);
+        }
+        FileDigests.store(p, new File(rootDir, MANIFEST));
+        return archiveIO.compressOverlay(rootDir, targetFile, index);
+    }
+
+    /**
+     * Rebuilds the full distro from the base SDK and an overlay.
+     *
+     * @param workDir
+     *            directory the archives are extracted to, it is deleted
+     *            afterwards
+     * @throws IOException
+     *             if the overlay was not built for <code>baseSdk</code>
+     */
+    public void apply(File baseSdk, File overlay, File targetFile, File workDir) throws IOException {
+        DistroBuilder.deleteDirectory(workDir);
+        workDir.mkdirs();
+        try {
+            extractor.extract(baseSdk, workDir, new ExtractionIndex(baseSdk, null));
+            File root = extractor.extract(overlay, workDir, new ExtractionIndex(overlay, null));
+            if (root == null) {
+                throw new IOException(overlay + " is not an overlay archive");
+            }
+            File manifest = new File(root, MANIFEST);
+            if (!manifest.exists()) {
+                throw new IOException(overlay + " is not an overlay archive, " + MANIFEST + " is missing");
+            }
+            Properties p = FileDigests.load(manifest);
+            if (!FileDigests.sha256(baseSdk).equals(p.getProperty("base.sha256"))) {
+                throw new IOException(overlay + " was built for " + p.getProperty("base") + ", not for "
+                        + baseSdk.getName());
+            }
+            // the overlay is applied to its own directory only
+            String rootName = p.getProperty("root");
+            if (rootName == null || !root.equals(ArchiveExtractor.resolve(workDir, rootName))) {
+                throw new IOException(overlay + " is not an overlay of the directory " + rootName);
+            }
+
+            for (Map.Entry<Object, Object> e : p.entrySet()) {
+                if (((String) e.getKey()).startsWith("deleted.")) {
+                    File f = resolveDeleted(root, workDir, (String) e.getValue());
+                    if (f.isDirectory() && !Files.isSymbolicLink(f.toPath())) {
+                        DistroBuilder.deleteDirectory(f);
+                    } else {
+                        Files.deleteIfExists(f.toPath());
+                    }
+                }
+            }
+            Files.delete(manifest.toPath());
+            archiveIO.compress(root, targetFile, null);
+        } finally {
+            DistroBuilder.deleteDirectory(workDir);
+        }
+    }
+
+    /**
+     * @return the file of the deleted path <code>name</code>
+     * @throws IOException
+     *             if the path is not below <code>root</code> or is below a
+     *             symbolic link
+     */
+    private static File resolveDeleted(File root, File workDir, String name) throws IOException {
+        File f = ArchiveExtractor.resolve(workDir, name);
+        Path rootPath = root.toPath();
+        Path path = f.toPath();
+        if (!path.startsWith(rootPath) || path.equals(rootPath)) {
+            throw new IOException("Deleted path " + name + " is outside of " + root.getName());
+        }
+        for (Path p = path.getParent(); !p.equals(rootPath); p = p.getParent()) {
+            if (Files.isSymbolicLink(p)) {
+                throw new IOException("Deleted path " + name + " is below the symbolic link " + p);
+            }
+        }
+        return f;
+    }
+
+    private static boolean exists(File f) {
+        return f.exists() || Files.isSymbolicLink(f.toPath());
+    }
+}
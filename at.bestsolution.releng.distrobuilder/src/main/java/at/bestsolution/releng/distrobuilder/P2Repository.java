@@ -1,7 +1,11 @@
 package at.bestsolution.releng.distrobuilder;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class P2Repository implements FilteredElement {
 	private String url;
+	private String mirrors;
 	private String version;
 	private String os;
 	private String arch;
@@ -24,6 +28,35 @@ public class P2Repository implements FilteredElement {
 		this.url = url;
 	}
 
+	public String getMirrors() {
+		return mirrors;
+	}
+
+	/**
+	 * @param mirrors
+	 *            URLs serving the same content as {@link #getUrl()},
+	 *            separated by commas or whitespace
+	 */
+	public void setMirrors(String mirrors) {
+		this.mirrors = mirrors;
+	}
+
+	/**
+	 * @return the URL followed by its mirrors
+	 */
+	public List<String> getUrls() {
+		List<String> rv = new ArrayList<String>();
+		rv.add(url);
+		if (mirrors != null) {
+			for (String m : mirrors.trim().split("[,\\s]+")) {
+				if (m.length() > 0 && !rv.contains(m)) {
+					rv.add(m);
+				}
+			}
+		}
+		return rv;
+	}
+
 	public String getVersion() {
 		return version;
 	}
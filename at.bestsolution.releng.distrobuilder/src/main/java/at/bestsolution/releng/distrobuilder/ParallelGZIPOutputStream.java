@@ -0,0 +1,251 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream which deflates fixed size blocks of its input
+ * concurrently, similar to pigz. Each block is primed with the last 32 KB of
+ * its predecessor as dictionary and terminated with a sync flush, so the
+ * compressed blocks concatenate to one standard gzip member. Precompressed
+ * {@link DeflateSegment}s can be spliced in between the blocks, see
+ * {@link #splice(Callable, long)}.
+ */
+class ParallelGZIPOutputStream extends FilterOutputStream {
+    static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = { (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int blockSize;
+    private final int level;
+    private final int maxPending;
+    private final LinkedList<Future<DeflateSegment>> pending = new LinkedList<Future<DeflateSegment>>();
+    private long crc;
+
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private int previousLength;
+    private long totalIn;
+    private boolean finished;
+
+    /**
+     * Creates a stream which compresses on its own pool of
+     * <code>threads</code> workers using the default compression level.
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int threads, int blockSize) throws IOException {
+        this(out, threads, blockSize, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a stream which compresses on its own pool of
+     * <code>threads</code> workers using the given compression level.
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int threads, int blockSize, int level) throws IOException {
+        this(out, Executors.newFixedThreadPool(threads), true, threads, blockSize, level);
+    }
+
+    /**
+     * Creates a stream which compresses on the given executor; the executor
+     * is not shut down when the stream is closed.
+     */
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int threads, int blockSize, int level)
+            throws IOException {
+        this(out, executor, false, threads, blockSize, level);
+    }
+
+    private ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, boolean ownsExecutor, int threads,
+            int blockSize, int level) throws IOException {
+        super(out);
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE + " bytes");
+        }
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.maxPending = Math.max(2, threads * 2);
+        this.block = new byte[blockSize];
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream already finished");
+        }
+        totalIn += len;
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Appends precompressed data of <code>length</code> uncompressed bytes
+     * after the data written so far. The segment is computed on the worker
+     * pool.
+     */
+    public void splice(Callable<DeflateSegment> segment, long length) throws IOException {
+        if (finished) {
+            throw new IOException("Stream already finished");
+        }
+        if (blockLength > 0) {
+            submitBlock(false);
+        }
+        // the decompressor's window now holds the segment, not the
+        // previous block
+        previousBlock = null;
+        previousLength = 0;
+        totalIn += length;
+        enqueue(executor.submit(segment));
+    }
+
+    /**
+     * Only flushes the underlying stream, data of the current block is kept
+     * until the block is full to not degrade the compression ratio.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Compresses the remaining data and writes the gzip trailer without
+     * closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        submitBlock(true);
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+        finished = true;
+
+        int c = (int) crc;
+        int s = (int) totalIn;
+        out.write(new byte[] { (byte) c, (byte) (c >> 8), (byte) (c >> 16), (byte) (c >> 24), (byte) s,
+                (byte) (s >> 8), (byte) (s >> 16), (byte) (s >> 24) });
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+            out.close();
+        } finally {
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        Future<DeflateSegment> f = executor.submit(new BlockDeflater(block, blockLength, previousBlock,
+                previousLength, level, last));
+        previousBlock = block;
+        previousLength = blockLength;
+        block = last ? null : new byte[blockSize];
+        blockLength = 0;
+        enqueue(f);
+    }
+
+    private void enqueue(Future<DeflateSegment> f) throws IOException {
+        pending.add(f);
+        while (pending.size() >= maxPending) {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException {
+        Future<DeflateSegment> f = pending.removeFirst();
+        try {
+            DeflateSegment segment = f.get();
+            out.write(segment.data);
+            crc = DeflateSegment.combine(crc, segment.crc, segment.length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block: " + e.getCause(), e.getCause());
+        }
+    }
+
+    static class BlockDeflater implements Callable<DeflateSegment> {
+        private final byte[] data;
+        private final int length;
+        private final byte[] dictionary;
+        private final int dictionaryLength;
+        private final int level;
+        private final boolean last;
+
+        BlockDeflater(byte[] data, int length, byte[] dictionary, int dictionaryLength, int level, boolean last) {
+            this.data = data;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.dictionaryLength = dictionaryLength;
+            this.level = level;
+            this.last = last;
+        }
+
+        @Override
+        public DeflateSegment call() {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, length);
+                if (dictionary != null) {
+                    int n = Math.min(DICTIONARY_SIZE, dictionaryLength);
+                    deflater.setDictionary(dictionary, dictionaryLength - n, n);
+                }
+                deflater.setInput(data, 0, length);
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buf = new byte[64 * 1024];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        out.write(buf, 0, deflater.deflate(buf));
+                    }
+                } else {
+                    int n;
+                    do {
+                        n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                        out.write(buf, 0, n);
+                    } while (n == buf.length);
+                }
+                return new DeflateSegment(out.toByteArray(), crc.getValue(), length);
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
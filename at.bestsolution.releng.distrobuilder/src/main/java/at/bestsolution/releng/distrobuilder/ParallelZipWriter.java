@@ -0,0 +1,693 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes zip archives whose entries are deflated concurrently on a worker
+ * pool. The precompressed entries are written in the order they have been
+ * added, so the result does not depend on scheduling.
+ * <p>
+ * Files larger than {@link #LARGE_ENTRY} are not held in memory, they are
+ * compressed while they are written, followed by a data descriptor like
+ * {@link java.util.zip.ZipOutputStream} does. Zip64 records are written for
+ * entries and offsets beyond 4 GB and for more than 65535 entries.
+ * </p>
+ */
+class ParallelZipWriter implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final long LIMIT = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+    /** files up to this size are compressed in memory on the worker pool */
+    static final long LARGE_ENTRY = 16 * 1024 * 1024;
+
+    private static final int FLAG_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int MADE_BY_UNIX = 3 << 8;
+
+    private static final int UNIX_FILE = 0100000;
+    private static final int UNIX_DIRECTORY = 0040000;
+    private static final int UNIX_SYMLINK = 0120000;
+    private static final int MSDOS_DIRECTORY = 0x10;
+
+    private final CountingOutputStream out;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int level;
+    private final int maxPending;
+    private final LinkedList<Future<Entry>> pending = new LinkedList<Future<Entry>>();
+    private final List<Entry> written = new ArrayList<Entry>();
+    private final Map<File, RandomAccessFile> rawSources = new HashMap<File, RandomAccessFile>();
+    private boolean storeIncompressible;
+    private boolean closed;
+
+    /**
+     * Creates a writer for <code>targetFile</code> which deflates on its own
+     * pool of <code>threads</code> workers.
+     */
+    public ParallelZipWriter(File targetFile, int threads) throws IOException {
+        this(targetFile, threads, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a writer for <code>targetFile</code> which deflates with the
+     * given level on its own pool of <code>threads</code> workers.
+     */
+    public ParallelZipWriter(File targetFile, int threads, int level) throws IOException {
+        this(new FileOutputStream(targetFile), Executors.newFixedThreadPool(threads), true, threads, level);
+    }
+
+    /**
+     * Creates a writer which deflates on the given executor; the executor is
+     * not shut down when the writer is closed.
+     */
+    public ParallelZipWriter(OutputStream out, ExecutorService executor, int threads, int level) {
+        this(out, executor, false, threads, level);
+    }
+
+    private ParallelZipWriter(OutputStream out, ExecutorService executor, boolean ownsExecutor, int threads,
+            int level) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, ArchiveIO.BUFFER_SIZE));
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.level = level;
+        this.maxPending = Math.max(4, threads * 4);
+    }
+
+    /**
+     * @param storeIncompressible
+     *            if <code>true</code> files which deflate shrinks by less
+     *            than 2% are stored instead
+     */
+    public void setStoreIncompressible(boolean storeIncompressible) {
+        this.storeIncompressible = storeIncompressible;
+    }
+
+    /**
+     * Adds a directory entry, <code>name</code> has to end with a slash.
+     */
+    public void addDirectory(String name, long time) throws IOException {
+        Entry e = new Entry(name, time, UNIX_DIRECTORY | 0755, MSDOS_DIRECTORY);
+        e.method = ZipEntry.STORED;
+        e.data = new byte[0];
+        enqueue(new Done(e));
+    }
+
+    /**
+     * Adds a symbolic link entry, the link target is stored as the content
+     * of the entry.
+     */
+    public void addSymlink(String name, String target, long time) throws IOException {
+        Entry e = new Entry(name, time, UNIX_SYMLINK | 0777, 0);
+        e.method = ZipEntry.STORED;
+        e.data = target.getBytes(UTF8);
+        CRC32 crc = new CRC32();
+        crc.update(e.data);
+        e.crc = crc.getValue();
+        e.size = e.data.length;
+        e.compressedSize = e.data.length;
+        enqueue(new Done(e));
+    }
+
+    /**
+     * Queues <code>file</code> for compression, the entry is written once
+     * all previously added entries have been written.
+     */
+    public void addFile(String name, File file) throws IOException {
+        Entry e = new Entry(name, file.lastModified(), UNIX_FILE | (file.canExecute() ? 0755 : 0644), 0);
+        if (file.length() > LARGE_ENTRY) {
+            addLarge(e, file, ZipEntry.DEFLATED);
+            return;
+        }
+        enqueue(executor.submit(new FileDeflater(e, file, level, storeIncompressible)));
+    }
+
+    /**
+     * Queues a file to be read by the writing thread instead of a worker.
+     */
+    private void addLarge(Entry e, File file, int method) throws IOException {
+        e.source = file;
+        e.method = method;
+        e.size = file.length();
+        e.compressedSize = method == ZipEntry.STORED ? e.size : -1;
+        enqueue(new Done(e));
+    }
+
+    /**
+     * Queues <code>file</code> to be stored without compression, for content
+     * known to be compressed already.
+     */
+    public void addStoredFile(String name, File file) throws IOException {
+        final Entry e = new Entry(name, file.lastModified(), UNIX_FILE | (file.canExecute() ? 0755 : 0644), 0);
+        if (file.length() > LARGE_ENTRY) {
+            addLarge(e, file, ZipEntry.STORED);
+            return;
+        }
+        final File f = file;
+        enqueue(executor.submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException {
+                store(e, f);
+                return e;
+            }
+        }));
+    }
+
+    /**
+     * Queues <code>file</code> like {@link #addFile(String, File)}, the
+     * deflated data is taken from <code>cache</code> if it has been
+     * compressed before.
+     */
+    public void addFile(String name, File file, final EntryCache cache) throws IOException {
+        final Entry e = new Entry(name, file.lastModified(), UNIX_FILE | (file.canExecute() ? 0755 : 0644), 0);
+        if (file.length() > LARGE_ENTRY) {
+            addLarge(e, file, ZipEntry.DEFLATED);
+            return;
+        }
+        final File f = file;
+        enqueue(executor.submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException {
+                DeflateSegment s = cache.get(f, level);
+                if (storeIncompressible && ArchiveCodecs.isIncompressible(s.length, s.data.length)) {
+                    store(e, f);
+                    return e;
+                }
+                e.crc = s.crc;
+                e.size = s.length;
+                e.data = s.toFinishedStream();
+                e.compressedSize = e.data.length;
+                return e;
+            }
+        }));
+    }
+
+    /**
+     * Adds an entry whose compressed data is copied verbatim from the zip
+     * file described by <code>source</code>, without inflating and deflating
+     * it again.
+     */
+    public void addRawEntry(String name, File file, ZipDirectory source, ZipDirectory.Entry sourceEntry)
+            throws IOException {
+        Entry e = new Entry(name, file.lastModified(), UNIX_FILE | (file.canExecute() ? 0755 : 0644), 0);
+        e.dosTime = sourceEntry.dosTime;
+        e.method = sourceEntry.method;
+        e.crc = sourceEntry.crc;
+        e.size = sourceEntry.size;
+        e.compressedSize = sourceEntry.compressedSize;
+        e.rawSource = source.getFile();
+        e.rawEntry = sourceEntry;
+        enqueue(new Done(e));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            writeCentralDirectory();
+            out.close();
+        } finally {
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+            for (RandomAccessFile raf : rawSources.values()) {
+                raf.close();
+            }
+        }
+    }
+
+    private void enqueue(Future<Entry> f) throws IOException {
+        if (closed) {
+            throw new IOException("Writer already closed");
+        }
+        pending.add(f);
+        while (pending.size() >= maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Entry e;
+        try {
+            e = pending.removeFirst().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to compress entry", ex.getCause());
+        }
+        writeLocalEntry(e);
+    }
+
+    private void writeLocalEntry(Entry e) throws IOException {
+        boolean descriptor = e.source != null && e.method == ZipEntry.DEFLATED;
+        if (descriptor) {
+            e.flags |= FLAG_DESCRIPTOR;
+            // deflate may expand incompressible data slightly
+            e.zip64 = e.size >= LIMIT - (LIMIT >> 8);
+        } else {
+            if (e.source != null) {
+                e.crc = crc(e.source, e.size);
+            }
+            e.zip64 = e.size >= LIMIT || e.compressedSize >= LIMIT;
+        }
+
+        e.offset = out.count;
+        writeInt(0x04034b50);
+        writeShort(e.versionNeeded());
+        writeShort(e.flags);
+        writeShort(e.method);
+        writeInt(e.dosTime);
+        writeInt(descriptor ? 0 : e.crc);
+        writeInt(e.zip64 ? LIMIT : descriptor ? 0 : e.compressedSize);
+        writeInt(e.zip64 ? LIMIT : descriptor ? 0 : e.size);
+        writeShort(e.nameBytes.length);
+        writeShort(e.zip64 ? 20 : 0);
+        out.write(e.nameBytes);
+        if (e.zip64) {
+            writeShort(1);
+            writeShort(16);
+            writeLong(descriptor ? 0 : e.size);
+            writeLong(descriptor ? 0 : e.compressedSize);
+        }
+
+        if (e.rawSource != null) {
+            copyRawData(e);
+        } else if (descriptor) {
+            deflate(e);
+            writeInt(0x08074b50);
+            writeInt(e.crc);
+            if (e.zip64) {
+                writeLong(e.compressedSize);
+                writeLong(e.size);
+            } else {
+                writeInt(e.compressedSize);
+                writeInt(e.size);
+            }
+        } else if (e.source != null) {
+            copy(e.source, e.size);
+        } else {
+            out.write(e.data, 0, (int) e.compressedSize);
+        }
+
+        e.data = null;
+        written.add(e);
+    }
+
+    /**
+     * Deflates the source of <code>e</code> into the archive.
+     */
+    private void deflate(Entry e) throws IOException {
+        Deflater deflater = new Deflater(level, true);
+        CRC32 crc = new CRC32();
+        FileInputStream in = new FileInputStream(e.source);
+        long start = out.count;
+        try {
+            byte[] buf = new byte[64 * 1024];
+            byte[] outBuf = new byte[64 * 1024];
+            long size = 0;
+            int l;
+            while ((l = in.read(buf)) != -1) {
+                crc.update(buf, 0, l);
+                size += l;
+                deflater.setInput(buf, 0, l);
+                while (!deflater.needsInput()) {
+                    out.write(outBuf, 0, deflater.deflate(outBuf));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(outBuf, 0, deflater.deflate(outBuf));
+            }
+            e.crc = crc.getValue();
+            e.size = size;
+            e.compressedSize = out.count - start;
+        } finally {
+            in.close();
+            deflater.end();
+        }
+        if (!e.zip64 && (e.size >= LIMIT || e.compressedSize >= LIMIT)) {
+            throw new IOException("Entry " + e.name + " grew beyond 4 GB while it was written");
+        }
+    }
+
+    private static long crc(File file, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[ArchiveIO.BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int l = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (l == -1) {
+                    throw new IOException(file + " changed while it was written");
+                }
+                crc.update(buf, 0, l);
+                remaining -= l;
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private void copy(File file, long length) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[ArchiveIO.BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int l = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (l == -1) {
+                    throw new IOException(file + " changed while it was written");
+                }
+                out.write(buf, 0, l);
+                remaining -= l;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void copyRawData(Entry e) throws IOException {
+        RandomAccessFile raf = rawSources.get(e.rawSource);
+        if (raf == null) {
+            raf = new RandomAccessFile(e.rawSource, "r");
+            rawSources.put(e.rawSource, raf);
+        }
+        raf.seek(ZipDirectory.getDataOffset(raf, e.rawEntry));
+
+        byte[] buf = new byte[ArchiveIO.BUFFER_SIZE];
+        long remaining = e.compressedSize;
+        while (remaining > 0) {
+            int l = (int) Math.min(buf.length, remaining);
+            raf.readFully(buf, 0, l);
+            out.write(buf, 0, l);
+            remaining -= l;
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = out.count;
+        List<Long> extra = new ArrayList<Long>();
+        for (Entry e : written) {
+            // the zip64 extra field holds the values which do not fit, in
+            // this order
+            extra.clear();
+            for (long v : new long[] { e.size, e.compressedSize, e.offset }) {
+                if (v >= LIMIT) {
+                    extra.add(v);
+                }
+            }
+            e.zip64 |= !extra.isEmpty();
+            writeInt(0x02014b50);
+            writeShort(MADE_BY_UNIX | Math.max(20, e.versionNeeded()));
+            writeShort(e.versionNeeded());
+            writeShort(e.flags);
+            writeShort(e.method);
+            writeInt(e.dosTime);
+            writeInt(e.crc);
+            writeInt(Math.min(e.compressedSize, LIMIT));
+            writeInt(Math.min(e.size, LIMIT));
+            writeShort(e.nameBytes.length);
+            writeShort(extra.isEmpty() ? 0 : 4 + 8 * extra.size());
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt((long) e.unixMode << 16 | e.dosAttributes);
+            writeInt(Math.min(e.offset, LIMIT));
+            out.write(e.nameBytes);
+            if (!extra.isEmpty()) {
+                writeShort(1);
+                writeShort(8 * extra.size());
+                for (long v : extra) {
+                    writeLong(v);
+                }
+            }
+        }
+        long end = out.count;
+        long size = end - start;
+
+        if (written.size() >= MAX_ENTRIES || start >= LIMIT || size >= LIMIT) {
+            writeInt(0x06064b50);
+            writeLong(44);
+            writeShort(MADE_BY_UNIX | VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(written.size());
+            writeLong(written.size());
+            writeLong(size);
+            writeLong(start);
+            writeInt(0x07064b50);
+            writeInt(0);
+            writeLong(end);
+            writeInt(1);
+        }
+        writeInt(0x06054b50);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(written.size(), MAX_ENTRIES));
+        writeShort(Math.min(written.size(), MAX_ENTRIES));
+        writeInt(Math.min(size, LIMIT));
+        writeInt(Math.min(start, LIMIT));
+        writeShort(0);
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+    }
+
+    private void writeInt(long v) throws IOException {
+        writeShort((int) (v & 0xffff));
+        writeShort((int) ((v >>> 16) & 0xffff));
+    }
+
+    private void writeLong(long v) throws IOException {
+        writeInt(v & LIMIT);
+        writeInt(v >>> 32);
+    }
+
+    static long toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (long) (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Converts a MS-DOS date and time in the local time zone back to
+     * milliseconds.
+     */
+    static long fromDosTime(long dosTime) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set((int) ((dosTime >> 25) & 0x7f) + 1980, (int) ((dosTime >> 21) & 0x0f) - 1,
+                (int) ((dosTime >> 16) & 0x1f), (int) ((dosTime >> 11) & 0x1f), (int) ((dosTime >> 5) & 0x3f),
+                (int) ((dosTime << 1) & 0x3e));
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Reads the content of <code>file</code> into <code>e</code> as stored
+     * entry.
+     *
+     * @param file
+     *            at most {@link #LARGE_ENTRY} bytes, larger files are streamed
+     *            instead
+     */
+    static void store(Entry e, File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        e.method = ZipEntry.STORED;
+        e.crc = crc.getValue();
+        e.size = data.length;
+        e.compressedSize = data.length;
+        e.data = data;
+    }
+
+    static class Entry {
+        final String name;
+        final byte[] nameBytes;
+        int flags;
+        long dosTime;
+        final int unixMode;
+        final int dosAttributes;
+        int method = ZipEntry.DEFLATED;
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+        byte[] data;
+        File rawSource;
+        ZipDirectory.Entry rawEntry;
+        /** file read while the entry is written */
+        File source;
+        boolean zip64;
+
+        Entry(String name, long time, int unixMode, int dosAttributes) {
+            this.name = name;
+            this.nameBytes = name.getBytes(UTF8);
+            this.flags = nameBytes.length != name.length() ? FLAG_UTF8 : 0;
+            this.dosTime = toDosTime(time);
+            this.unixMode = unixMode;
+            this.dosAttributes = dosAttributes;
+        }
+
+        int versionNeeded() {
+            return zip64 ? VERSION_ZIP64 : method == ZipEntry.STORED ? 10 : 20;
+        }
+    }
+
+    static class FileDeflater implements Callable<Entry> {
+        private final Entry entry;
+        private final File file;
+        private final int level;
+        private final boolean storeIncompressible;
+
+        FileDeflater(Entry entry, File file, int level, boolean storeIncompressible) {
+            this.entry = entry;
+            this.file = file;
+            this.level = level;
+            this.storeIncompressible = storeIncompressible;
+        }
+
+        @Override
+        public Entry call() throws IOException {
+            Deflater deflater = new Deflater(level, true);
+            CRC32 crc = new CRC32();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                ByteArrayOutputStream data = new ByteArrayOutputStream((int) Math.min(file.length() / 2 + 64,
+                        Integer.MAX_VALUE));
+                byte[] buf = new byte[64 * 1024];
+                byte[] outBuf = new byte[64 * 1024];
+                long size = 0;
+                int l;
+                while ((l = in.read(buf)) != -1) {
+                    crc.update(buf, 0, l);
+                    size += l;
+                    deflater.setInput(buf, 0, l);
+                    while (!deflater.needsInput()) {
+                        data.write(outBuf, 0, deflater.deflate(outBuf));
+                    }
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    data.write(outBuf, 0, deflater.deflate(outBuf));
+                }
+
+                if (storeIncompressible && ArchiveCodecs.isIncompressible(size, data.size())) {
+                    store(entry, file);
+                    return entry;
+                }
+                entry.crc = crc.getValue();
+                entry.size = size;
+                entry.compressedSize = data.size();
+                entry.data = data.toByteArray();
+                return entry;
+            } finally {
+                in.close();
+                deflater.end();
+            }
+        }
+    }
+
+    static class Done implements Future<Entry> {
+        private final Entry entry;
+
+        Done(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public Entry get() {
+            return entry;
+        }
+
+        @Override
+        public Entry get(long timeout, TimeUnit unit) {
+            return entry;
+        }
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
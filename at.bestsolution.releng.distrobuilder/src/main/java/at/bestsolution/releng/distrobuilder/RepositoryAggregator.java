@@ -0,0 +1,143 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Merges the local repositories of a target into one flat p2 repository.
+ * <p>
+ * p2 opens and indexes every repository given to the director, for a long
+ * list of zipped repositories this dominates the time to load the metadata.
+ * The local inputs of a target, zip files and directories, are therefore
+ * mirrored into a single repository below
+ * <code>&lt;directory&gt;/&lt;key&gt;</code> once; the key is computed from
+ * the locations and fingerprints of the inputs, so targets with the same
+ * inputs share the repository and it is rebuilt as soon as one of them
+ * changes. Remote repositories can not be fingerprinted and are passed to the
+ * director as they are.
+ * </p>
+ * <p>
+ * Whether loading one aggregated repository beats loading the zips one by
+ * one, once the mirroring is paid for, has not been measured with a real
+ * director yet; the aggregation is therefore only used if enabled with
+ * {@link DistroBuilder#setAggregateRepositories(boolean)}.
+ * </p>
+ */
+class RepositoryAggregator {
+    private final File directory;
+    private final String director;
+    private final DirectorLog log;
+
+    private final Map<String, Object> locks = new HashMap<String, Object>();
+    private final Set<String> used = new HashSet<String>();
+
+    RepositoryAggregator(File directory, String director, DirectorLog log) {
+        this.directory = directory;
+        this.director = director;
+        this.log = log;
+    }
+
+    /**
+     * @param repositories
+     *            the repositories of a target mapped to a fingerprint of
+     *            their content, <code>null</code> for remote repositories
+     * @return the aggregated repository followed by the remote repositories
+     */
+    public List<String> aggregate(Map<String, String> repositories) throws IOException, InterruptedException {
+        List<String> local = new ArrayList<String>();
+        List<String> remote = new ArrayList<String>();
+        for (Map.Entry<String, String> e : repositories.entrySet()) {
+            if (e.getValue() == null) {
+                remote.add(e.getKey());
+            } else {
+                local.add(e.getKey());
+            }
+        }
+        if (local.size() < 2) {
+            return new ArrayList<String>(repositories.keySet());
+        }
+
+        String name = retain(repositories);
+        File dir = new File(directory, name).getAbsoluteFile();
+        synchronized (lock(name)) {
+            if (!new File(dir, "aggregate.properties").exists()) {
+                long start = System.currentTimeMillis();
+                File tmp = new File(directory, name + ".tmp").getAbsoluteFile();
+                DistroBuilder.deleteDirectory(tmp);
+                tmp.mkdirs();
+                String destination = tmp.toURI().toString();
+                for (String repo : local) {
+                    UpdateSiteMirror.run(director, UpdateSiteMirror.METADATA_MIRROR, repo, destination, log);
+                    UpdateSiteMirror.run(director, UpdateSiteMirror.ARTIFACT_MIRROR, repo, destination, log);
+                }
+                Properties p = new Properties();
+                for (int i = 0; i < local.size(); i++) {
+                    p.setProperty("input." + i, local.get(i));
+                }
+                FileDigests.store(p, new File(tmp, "aggregate.properties"));
+                DistroBuilder.deleteDirectory(dir);
+                Files.move(tmp.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                System.out.println("Aggregated " + local.size() + " repositories in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+
+        List<String> rv = new ArrayList<String>();
+        rv.add(dir.toURI().toString());
+        rv.addAll(remote);
+        return rv;
+    }
+
+    /**
+     * Keeps the aggregated repository of <code>repositories</code> on
+     * {@link #cleanup()} even if it is not needed in this run.
+     *
+     * @return the key of the aggregated repository
+     */
+    public String retain(Map<String, String> repositories) {
+        StringBuilder key = new StringBuilder();
+        for (Map.Entry<String, String> e : repositories.entrySet()) {
+            if (e.getValue() != null) {
+                key.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+            }
+        }
+        String name = FileDigests.sha256(key.toString());
+        synchronized (this) {
+            used.add(name);
+        }
+        return name;
+    }
+
+    /**
+     * Removes all aggregated repositories not used in this run.
+     */
+    public synchronized void cleanup() {
+        File[] dirs = directory.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (!used.contains(dir.getName())) {
+                DistroBuilder.deleteDirectory(dir);
+            }
+        }
+    }
+
+    private synchronized Object lock(String name) {
+        Object l = locks.get(name);
+        if (l == null) {
+            l = new Object();
+            locks.put(name, l);
+        }
+        return l;
+    }
+}
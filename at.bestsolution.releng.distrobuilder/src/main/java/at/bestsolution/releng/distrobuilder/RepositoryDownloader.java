@@ -0,0 +1,632 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Downloads repository archives into the {@link DownloadCache}. Every URL is
+ * fetched at most once per run, no matter how many targets need it.
+ * Transfers use conditional GETs with the ETag and Last-Modified validators
+ * of the cached copy and resume an interrupted <code>.part</code> file with
+ * a range request.
+ * <p>
+ * A URL may have mirrors, they are tried in the order of the
+ * {@link MirrorSelector}. A transfer moves on to the next mirror when the
+ * current one fails or its throughput stays below the minimum for
+ * {@link #WINDOW} ms, resuming the <code>.part</code> file if the next mirror
+ * has the same validator. Large files can be split into ranges fetched from
+ * several mirrors at the same time, faster mirrors take more ranges.
+ * </p>
+ */
+class RepositoryDownloader {
+    private static final int CONNECT_TIMEOUT = 30 * 1000;
+    private static final int READ_TIMEOUT = 5 * 60 * 1000;
+    /** read timeout if another mirror can take over */
+    private static final int STALL_TIMEOUT = 30 * 1000;
+    private static final int ATTEMPTS = 3;
+    /** period over which the throughput of a transfer is checked */
+    private static final long WINDOW = 10 * 1000;
+    /** smallest file split into ranges and smallest range */
+    private static final long MIN_RANGE = 4 * 1024 * 1024;
+    /** ranges per mirror, so a fast mirror can take over from a slow one */
+    private static final int RANGES_PER_MIRROR = 4;
+
+    private final DownloadCache cache;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Future<File>> downloads = new ConcurrentHashMap<String, Future<File>>();
+    private final MirrorSelector selector;
+    private final Map<String, List<String>> mirrors;
+    private final long minThroughput;
+    private final int rangeMirrors;
+
+    RepositoryDownloader(DownloadCache cache, int threads) {
+        this(cache, threads, null, Collections.<String, List<String>> emptyMap(), 0, 0);
+    }
+
+    /**
+     * @param mirrors
+     *            all URLs of a repository by its configured URL
+     * @param minThroughput
+     *            bytes per second below which a transfer moves to the next
+     *            mirror, <code>0</code> to only move on failures
+     * @param rangeMirrors
+     *            number of mirrors a large file is split across,
+     *            <code>0</code> or <code>1</code> to fetch it from one
+     */
+    RepositoryDownloader(DownloadCache cache, int threads, MirrorSelector selector,
+            Map<String, List<String>> mirrors, long minThroughput, int rangeMirrors) {
+        this.cache = cache;
+        this.selector = selector;
+        this.mirrors = mirrors;
+        this.minThroughput = minThroughput;
+        this.rangeMirrors = rangeMirrors;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "repository-download");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    static boolean isRemote(String repo) {
+        return repo.startsWith("http://") || repo.startsWith("https://");
+    }
+
+    /**
+     * Starts downloading all remote repositories in the background.
+     */
+    public void prefetch(Collection<String> repositories) {
+        for (String repo : repositories) {
+            if (isRemote(repo)) {
+                start(repo, true);
+            }
+        }
+    }
+
+    /**
+     * @return the local copy of <code>url</code>, waiting for a running
+     *         download or starting one if needed
+     */
+    public File get(String url) throws IOException {
+        Future<File> f = start(url, false);
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + url);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to download " + url, e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Future<File> start(final String url, boolean background) {
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                for (int attempt = 1;; attempt++) {
+                    try {
+                        return download(url);
+                    } catch (IOException e) {
+                        if (attempt == ATTEMPTS) {
+                            throw e;
+                        }
+                        System.err.println("Download of " + url + " failed (" + e.getMessage() + "), retrying");
+                    }
+                }
+            }
+        });
+        Future<File> existing = downloads.putIfAbsent(url, task);
+        if (existing != null) {
+            return existing;
+        }
+        if (background) {
+            executor.execute(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    private File download(String url) throws IOException {
+        FileLock lock = cache.lockUrl(url);
+        try {
+            Properties cached = cache.lookup(url);
+            File f = download(url, cached);
+            if (f == null) {
+                // the cached copy is damaged
+                f = download(url, null);
+            }
+            return f;
+        } finally {
+            DownloadCache.unlock(lock);
+        }
+    }
+
+    /**
+     * @return the URLs of <code>url</code> from the best to the worst mirror
+     */
+    private List<String> getUrls(String url) {
+        List<String> urls = mirrors.get(url);
+        if (urls == null || urls.size() < 2) {
+            return Collections.singletonList(url);
+        }
+        return selector != null ? selector.rank(urls) : urls;
+    }
+
+    private File download(String url, Properties cached) throws IOException {
+        List<String> urls = getUrls(url);
+        if (rangeMirrors > 1 && urls.size() > 1) {
+            RangePlan plan = planRanges(url, urls.subList(0, Math.min(rangeMirrors, urls.size())), cached);
+            if (plan != null && plan.notModified) {
+                System.out.println("Repository not modified: " + url);
+                return cache.hit(url, cached);
+            }
+            if (plan != null) {
+                try {
+                    return downloadRanges(url, plan);
+                } catch (IOException e) {
+                    System.err.println("Split download of " + url + " failed (" + e.getMessage()
+                            + "), downloading it from one mirror");
+                }
+            }
+        }
+        for (int i = 0;; i++) {
+            String mirror = urls.get(i);
+            boolean last = i + 1 == urls.size();
+            try {
+                return download(url, new URL(mirror), cached, !last);
+            } catch (IOException e) {
+                if (selector != null) {
+                    selector.failed(mirror);
+                }
+                if (last) {
+                    throw e;
+                }
+                System.err.println("Mirror " + mirror + " failed (" + e.getMessage() + "), trying "
+                        + urls.get(i + 1));
+            }
+        }
+    }
+
+    /**
+     * Downloads <code>key</code> from <code>url</code>, one of its mirrors.
+     *
+     * @param failover
+     *            whether another mirror can take over if this one is too slow
+     */
+    private File download(String key, URL url, Properties cached, boolean failover) throws IOException {
+        File part = cache.partFile(key);
+        File partInfo = new File(part.getPath() + ".properties");
+
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setInstanceFollowRedirects(true);
+        con.setConnectTimeout(CONNECT_TIMEOUT);
+        con.setReadTimeout(failover ? STALL_TIMEOUT : READ_TIMEOUT);
+
+        if (cached != null) {
+            setIfPresent(con, "If-None-Match", cached.getProperty("etag"));
+            setIfPresent(con, "If-Modified-Since", cached.getProperty("lastModified"));
+        }
+
+        long offset = 0;
+        Properties partial = part.exists() && partInfo.exists() ? FileDigests.load(partInfo) : null;
+        String partValidator = partial == null ? null : validator(partial);
+        if (partial != null && !url.toString().equals(partial.getProperty("url", url.toString()))) {
+            // started on another mirror, the entity tags of mirrors differ
+            partValidator = partial.getProperty("lastModified");
+        }
+        if (partValidator != null && part.length() > 0) {
+            offset = part.length();
+            con.setRequestProperty("Range", "bytes=" + offset + "-");
+            con.setRequestProperty("If-Range", partValidator);
+        }
+
+        long start = System.currentTimeMillis();
+        int code = con.getResponseCode();
+        if (selector != null) {
+            selector.latency(url.toString(), System.currentTimeMillis() - start);
+        }
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            System.out.println("Repository not modified: " + url);
+            con.disconnect();
+            return cache.hit(key, cached);
+        }
+        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+            con.disconnect();
+            throw new IOException("Failed to download " + url + ": HTTP " + code);
+        }
+
+        boolean resume = code == HttpURLConnection.HTTP_PARTIAL && offset > 0
+                && con.getHeaderField("Content-Range") != null
+                && con.getHeaderField("Content-Range").startsWith("bytes " + offset + "-");
+        if (code == HttpURLConnection.HTTP_PARTIAL && !resume) {
+            con.disconnect();
+            part.delete();
+            throw new IOException("Unexpected partial response for " + url);
+        }
+        String from = key.equals(url.toString()) ? "" : " from " + url;
+        if (resume) {
+            System.out.println("Resuming " + key + from + " at " + offset + " bytes");
+        } else {
+            System.out.println("Downloading " + key + from);
+        }
+
+        Properties info = new Properties();
+        setIfPresent(info, "etag", con.getHeaderField("ETag"));
+        setIfPresent(info, "lastModified", con.getHeaderField("Last-Modified"));
+        if (!resume) {
+            offset = 0;
+            if (validator(info) != null) {
+                Properties p = new Properties();
+                p.putAll(info);
+                p.setProperty("url", url.toString());
+                FileDigests.store(p, partInfo);
+            } else {
+                partInfo.delete();
+            }
+        }
+
+        InputStream in = con.getInputStream();
+        RandomAccessFile out = new RandomAccessFile(part, "rw");
+        try {
+            out.setLength(offset);
+            copy(in, out.getChannel(), offset, -1, url.toString(), failover);
+        } finally {
+            out.close();
+            in.close();
+        }
+
+        long expected = con.getContentLengthLong();
+        if (expected != -1 && part.length() != offset + expected) {
+            throw new IOException("Incomplete download of " + url + ", retry to resume");
+        }
+
+        File f = cache.commit(key, part, info);
+        partInfo.delete();
+        return f;
+    }
+
+    /**
+     * Copies <code>in</code> to <code>out</code> starting at
+     * <code>position</code>.
+     *
+     * @param length
+     *            number of bytes to copy or <code>-1</code> to copy all
+     * @param failover
+     *            whether to give up if the throughput stays below the
+     *            minimum
+     */
+    private long copy(InputStream in, FileChannel out, long position, long length, String url, boolean failover)
+            throws IOException {
+        byte[] buf = new byte[ArchiveIO.BUFFER_SIZE];
+        long start = System.currentTimeMillis();
+        long windowStart = start;
+        long windowBytes = 0;
+        long total = 0;
+        while (length < 0 || total < length) {
+            int n = in.read(buf, 0, length < 0 ? buf.length : (int) Math.min(buf.length, length - total));
+            if (n == -1) {
+                break;
+            }
+            ByteBuffer b = ByteBuffer.wrap(buf, 0, n);
+            while (b.hasRemaining()) {
+                position += out.write(b, position);
+            }
+            total += n;
+            windowBytes += n;
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= WINDOW) {
+                long throughput = windowBytes * 1000 / (now - windowStart);
+                if (failover && minThroughput > 0 && throughput < minThroughput) {
+                    if (selector != null) {
+                        selector.transferred(url, total, now - start);
+                    }
+                    throw new IOException("throughput of " + throughput / 1024 + " KB/s is too low");
+                }
+                windowStart = now;
+                windowBytes = 0;
+            }
+        }
+        if (selector != null) {
+            selector.transferred(url, total, System.currentTimeMillis() - start);
+        }
+        return total;
+    }
+
+    /**
+     * The mirrors serving the same content a file is split across.
+     */
+    private static class RangePlan {
+        boolean notModified;
+        long length;
+        Properties info;
+        /** the mirrors with the validator for their If-Range header */
+        final Map<String, String> mirrors = new LinkedHashMap<String, String>();
+    }
+
+    /**
+     * Asks the <code>urls</code> for the size and validators of the file.
+     *
+     * @return <code>null</code> if the file is too small or less than two of
+     *         the mirrors support range requests for the same content
+     */
+    private RangePlan planRanges(String key, List<String> urls, Properties cached) throws IOException {
+        RangePlan plan = new RangePlan();
+        for (int i = 0; i < urls.size(); i++) {
+            String url = urls.get(i);
+            HttpURLConnection con;
+            int code;
+            try {
+                con = (HttpURLConnection) new URL(url).openConnection();
+                con.setRequestMethod("HEAD");
+                con.setConnectTimeout(CONNECT_TIMEOUT);
+                con.setReadTimeout(STALL_TIMEOUT);
+                if (i == 0 && cached != null) {
+                    setIfPresent(con, "If-None-Match", cached.getProperty("etag"));
+                    setIfPresent(con, "If-Modified-Since", cached.getProperty("lastModified"));
+                }
+                code = con.getResponseCode();
+                con.disconnect();
+            } catch (IOException e) {
+                if (selector != null) {
+                    selector.failed(url);
+                }
+                if (i == 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (i == 0 && code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                plan.notModified = true;
+                return plan;
+            }
+            Properties info = new Properties();
+            setIfPresent(info, "etag", con.getHeaderField("ETag"));
+            setIfPresent(info, "lastModified", con.getHeaderField("Last-Modified"));
+            if (code != HttpURLConnection.HTTP_OK || !"bytes".equals(con.getHeaderField("Accept-Ranges"))
+                    || validator(info) == null) {
+                if (i == 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (i == 0) {
+                plan.length = con.getContentLengthLong();
+                plan.info = info;
+                if (plan.length < 2 * MIN_RANGE) {
+                    return null;
+                }
+            } else if (con.getContentLengthLong() != plan.length || !sameContent(plan.info, info)) {
+                continue;
+            }
+            plan.mirrors.put(url, validator(info));
+        }
+        return plan.mirrors.size() > 1 ? plan : null;
+    }
+
+    /**
+     * Mirrors usually keep the modification time but not the entity tag of
+     * a file, so the times are compared if both have one.
+     */
+    private static boolean sameContent(Properties info1, Properties info2) {
+        String lm1 = info1.getProperty("lastModified");
+        String lm2 = info2.getProperty("lastModified");
+        if (lm1 != null && lm2 != null) {
+            return lm1.equals(lm2);
+        }
+        String etag = info1.getProperty("etag");
+        return etag != null && !etag.startsWith("W/") && etag.equals(info2.getProperty("etag"));
+    }
+
+    /**
+     * Downloads the ranges of a file from all mirrors of the plan at the
+     * same time. Every mirror takes the next range once it has finished one,
+     * a mirror failing or falling below the minimum throughput gives its
+     * range back and drops out.
+     */
+    private File downloadRanges(String key, RangePlan plan) throws IOException {
+        System.out.println("Downloading " + key + " from " + plan.mirrors.size() + " mirrors");
+        final RangeQueue queue = new RangeQueue(plan.mirrors.size());
+        long size = Math.max(MIN_RANGE, plan.length / (plan.mirrors.size() * RANGES_PER_MIRROR));
+        for (long start = 0; start < plan.length; start += size) {
+            queue.add(new long[] { start, Math.min(plan.length, start + size) - 1 });
+        }
+
+        File part = cache.partFile(key);
+        new File(part.getPath() + ".properties").delete();
+        final long length = plan.length;
+        final RandomAccessFile out = new RandomAccessFile(part, "rw");
+        try {
+            out.setLength(length);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (final Map.Entry<String, String> mirror : plan.mirrors.entrySet()) {
+                Thread t = new Thread("range-download") {
+                    @Override
+                    public void run() {
+                        long[] range;
+                        while ((range = queue.take()) != null) {
+                            try {
+                                downloadRange(mirror.getKey(), mirror.getValue(), range, length, out.getChannel(),
+                                        queue.getMirrors() > 1);
+                                queue.done();
+                            } catch (IOException e) {
+                                queue.failed(range, e);
+                                if (selector != null) {
+                                    selector.failed(mirror.getKey());
+                                }
+                                System.err.println("Mirror " + mirror.getKey() + " dropped: " + e.getMessage());
+                                return;
+                            }
+                        }
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+                threads.add(t);
+            }
+            for (Thread t : threads) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while downloading " + key);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (queue.getFailure() != null) {
+            part.delete();
+            throw queue.getFailure();
+        }
+        return cache.commit(key, part, plan.info);
+    }
+
+    /**
+     * The ranges of a file not downloaded yet.
+     */
+    private static class RangeQueue {
+        private final LinkedList<long[]> ranges = new LinkedList<long[]>();
+        private int unfinished;
+        private int mirrors;
+        private IOException failure;
+
+        RangeQueue(int mirrors) {
+            this.mirrors = mirrors;
+        }
+
+        synchronized void add(long[] range) {
+            ranges.add(range);
+            unfinished++;
+        }
+
+        /**
+         * @return the next range or <code>null</code> if all are done, waits
+         *         while the remaining ones are in progress on other mirrors
+         */
+        synchronized long[] take() {
+            while (ranges.isEmpty() && unfinished > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return ranges.poll();
+        }
+
+        synchronized void done() {
+            unfinished--;
+            notifyAll();
+        }
+
+        synchronized void failed(long[] range, IOException e) {
+            ranges.addFirst(range);
+            failure = e;
+            mirrors--;
+            if (mirrors == 0) {
+                // nobody left to take the ranges
+                unfinished = 0;
+            }
+            notifyAll();
+        }
+
+        synchronized int getMirrors() {
+            return mirrors;
+        }
+
+        /**
+         * @return why the download failed or <code>null</code> if all ranges
+         *         are done
+         */
+        synchronized IOException getFailure() {
+            return ranges.isEmpty() ? null : failure;
+        }
+    }
+
+    private void downloadRange(String url, String validator, long[] range, long length, FileChannel out,
+            boolean failover) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        con.setConnectTimeout(CONNECT_TIMEOUT);
+        con.setReadTimeout(failover ? STALL_TIMEOUT : READ_TIMEOUT);
+        con.setRequestProperty("Range", "bytes=" + range[0] + "-" + range[1]);
+        con.setRequestProperty("If-Range", validator);
+        long start = System.currentTimeMillis();
+        int code = con.getResponseCode();
+        if (selector != null) {
+            selector.latency(url, System.currentTimeMillis() - start);
+        }
+        String contentRange = con.getHeaderField("Content-Range");
+        if (code != HttpURLConnection.HTTP_PARTIAL
+                || !("bytes " + range[0] + "-" + range[1] + "/" + length).equals(contentRange)) {
+            con.disconnect();
+            throw new IOException("Unexpected response HTTP " + code + " for range " + range[0] + "-" + range[1]);
+        }
+        InputStream in = con.getInputStream();
+        try {
+            long n = copy(in, out, range[0], range[1] - range[0] + 1, url, failover);
+            if (n != range[1] - range[0] + 1) {
+                throw new IOException("Incomplete range " + range[0] + "-" + range[1]);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String validator(Properties info) {
+        String etag = info.getProperty("etag");
+        // weak entity tags can not be used to resume transfers
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return info.getProperty("lastModified");
+    }
+
+    private static void setIfPresent(URLConnection con, String header, String value) {
+        if (value != null) {
+            con.setRequestProperty(header, value);
+        }
+    }
+
+    private static void setIfPresent(Properties p, String key, String value) {
+        if (value != null) {
+            p.setProperty(key, value);
+        }
+    }
+}
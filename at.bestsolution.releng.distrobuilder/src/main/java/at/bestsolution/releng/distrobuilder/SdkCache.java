@@ -0,0 +1,279 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of extracted target SDKs, keyed by the SHA-256 of the SDK archive.
+ * Workspaces are cloned from the cached tree: the bundle jars in
+ * <code>plugins</code> and the files of <code>features</code> are
+ * hardlinked, everything else (configuration, p2 profile, ini files,
+ * executables and unpacked bundles, which touchpoints may change in place) is
+ * copied so the director can not modify the cache. Before an entry is used
+ * its files are checked against the recorded sizes, modification times and
+ * permissions, a tampered entry is extracted again.
+ */
+class SdkCache {
+    private static final String TREE = "tree";
+    private static final String INFO = "cache.properties";
+    private static final String INDEX = "index.properties";
+
+    private final File cacheDirectory;
+    private final FileDigests digests;
+    private final ArchiveExtractor extractor;
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+    private volatile boolean linksSupported = true;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    static class Entry {
+        final File archive;
+        final File directory;
+        final String rootName;
+        final Properties records;
+
+        Entry(File archive, File directory, String rootName, Properties records) {
+            this.archive = archive;
+            this.directory = directory;
+            this.rootName = rootName;
+            this.records = records;
+        }
+
+        File getTree() {
+            return new File(directory, TREE);
+        }
+    }
+
+    SdkCache(File cacheDirectory, FileDigests digests, ArchiveExtractor extractor) {
+        this.cacheDirectory = cacheDirectory;
+        this.digests = digests;
+        this.extractor = extractor;
+    }
+
+    /**
+     * Clones the extracted content of <code>archive</code> into
+     * <code>workDir</code>, extracting the archive into the cache first if
+     * needed.
+     *
+     * @param index
+     *            if not <code>null</code> it is filled with the state of the
+     *            cloned files
+     * @return the root directory of the cloned SDK
+     */
+    public File materialize(File archive, File workDir, ExtractionIndex index) throws IOException {
+        Entry e = get(archive);
+        workDir.mkdirs();
+        cloneTree(e.getTree().toPath(), workDir.toPath());
+        if (index != null) {
+            for (Map.Entry<Object, Object> r : e.records.entrySet()) {
+                String[] v = ((String) r.getValue()).split(",");
+                index.add((String) r.getKey(), Long.parseLong(v[0]), Long.parseLong(v[1]));
+            }
+        }
+        return e.rootName == null ? null : new File(workDir, e.rootName);
+    }
+
+    /**
+     * @return the valid cache entry for <code>archive</code>, extracting it
+     *         if it is not cached yet
+     */
+    public Entry get(File archive) throws IOException {
+        String digest = digests.get(archive);
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(digest, lock);
+        if (existing != null) {
+            lock = existing;
+        }
+
+        synchronized (lock) {
+            File dir = new File(cacheDirectory, digest);
+            Entry e = load(archive, dir);
+            if (e != null && isIntact(e)) {
+                hits.incrementAndGet();
+                return e;
+            }
+            if (dir.exists()) {
+                System.out.println("Cached SDK for " + archive.getName() + " was modified, extracting again");
+                delete(dir);
+            }
+            misses.incrementAndGet();
+            return extract(archive, dir);
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    private Entry extract(File archive, File dir) throws IOException {
+        cacheDirectory.mkdirs();
+        File tmp = new File(cacheDirectory, dir.getName() + ".tmp-" + UUID.randomUUID());
+        try {
+            File tree = new File(tmp, TREE);
+            tree.mkdirs();
+            ExtractionIndex index = new ExtractionIndex(archive, null);
+            File root = extractor.extract(archive, tree, index);
+
+            Properties records = new Properties();
+            for (Map.Entry<String, ExtractionIndex.Record> r : index.getRecords().entrySet()) {
+                records.setProperty(r.getKey(), r.getValue().size + "," + r.getValue().lastModified + ","
+                        + permissions(new File(tree, r.getKey()).toPath()));
+            }
+            FileDigests.store(records, new File(tmp, INDEX));
+
+            Properties info = new Properties();
+            info.setProperty("archive", archive.getName());
+            if (root != null) {
+                info.setProperty("root", root.getName());
+            }
+            FileDigests.store(info, new File(tmp, INFO));
+
+            Files.move(tmp.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return new Entry(archive, dir, info.getProperty("root"), records);
+        } finally {
+            if (tmp.exists()) {
+                delete(tmp);
+            }
+        }
+    }
+
+    private static Entry load(File archive, File dir) throws IOException {
+        File info = new File(dir, INFO);
+        File index = new File(dir, INDEX);
+        if (!info.exists() || !index.exists()) {
+            return null;
+        }
+        return new Entry(archive, dir, FileDigests.load(info).getProperty("root"), FileDigests.load(index));
+    }
+
+    private static boolean isIntact(Entry e) {
+        File tree = e.getTree();
+        try {
+            for (Map.Entry<Object, Object> r : e.records.entrySet()) {
+                File f = new File(tree, (String) r.getKey());
+                String[] v = ((String) r.getValue()).split(",", -1);
+                if (f.length() != Long.parseLong(v[0]) || f.lastModified() != Long.parseLong(v[1])) {
+                    return false;
+                }
+                // entries of older versions have no permissions recorded
+                if (v.length > 2 && !v[2].equals(permissions(f.toPath()))) {
+                    return false;
+                }
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the POSIX permissions of <code>file</code>, an empty string if
+     *         the file system does not support them
+     */
+    private static String permissions(Path file) throws IOException {
+        try {
+            return PosixFilePermissions.toString(Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS));
+        } catch (UnsupportedOperationException e) {
+            return "";
+        }
+    }
+
+    private void cloneTree(final Path source, final Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            // the target may be on another file system than the cache, e.g.
+            // a RAM disk, which only rules out links for this clone
+            private boolean links = linksSupported;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path rel = source.relativize(file);
+                Path t = target.resolve(rel.toString());
+                if (attrs.isSymbolicLink()) {
+                    Files.copy(file, t, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+                } else if (links && isImmutable(rel, file)) {
+                    try {
+                        Files.deleteIfExists(t);
+                        Files.createLink(t, file);
+                    } catch (FileSystemException e) {
+                        links = false;
+                        copy(file, t);
+                    } catch (UnsupportedOperationException e) {
+                        linksSupported = false;
+                        links = false;
+                        copy(file, t);
+                    }
+                } else {
+                    copy(file, t);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void copy(Path source, Path target) throws IOException {
+        Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Bundle jars and features are never rewritten by the director, it only
+     * adds or removes them. Executables and the content of unpacked bundles,
+     * e.g. launcher fragments with native code, may be changed in place by
+     * touchpoints like <code>chmod</code>.
+     */
+    private static boolean isImmutable(Path rel, Path file) throws IOException {
+        if (permissions(file).indexOf('x') != -1) {
+            return false;
+        }
+        int count = rel.getNameCount();
+        for (int i = 0; i < count - 1; i++) {
+            String n = rel.getName(i).toString();
+            if (n.equals("features")) {
+                return true;
+            } else if (n.equals("plugins")) {
+                return i == count - 2;
+            }
+        }
+        return false;
+    }
+
+    private static void delete(File f) throws IOException {
+        Files.walkFileTree(f.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,275 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the working directories the SDKs are extracted and installed in.
+ * <p>
+ * A directory is put below the fast location, e.g. a RAM disk like
+ * <code>/dev/shm</code>, if its estimated size fits into the space left
+ * there, otherwise below the disk location. Directories no longer needed are
+ * renamed into a <code>.trash</code> directory next to them and deleted by a
+ * background thread, so the build does not wait for tens of thousands of
+ * files to be deleted. Whatever is left in both locations by a crashed run is
+ * moved to the trash when the area is created.
+ * </p>
+ */
+class StagingArea {
+    private static final String TRASH = ".trash";
+    /** size of a working tree relative to its SDK archive until one is known */
+    private static final double EXPANSION = 3;
+    /** space left free on the fast location if it is not limited */
+    private static final long FAST_RESERVE = 256 * 1024 * 1024;
+
+    private final File diskRoot;
+    private final File fastRoot;
+    /** bytes the trees may take up on the fast location */
+    private final long fastLimit;
+    private final ExecutorService deleter;
+    private final Map<File, Reservation> reservations = new HashMap<File, Reservation>();
+    private long fastUsed;
+    private double expansion = EXPANSION;
+    private int fastTrees;
+    private int diskTrees;
+
+    private static class Reservation {
+        final long archiveSize;
+        long size;
+
+        Reservation(long archiveSize, long size) {
+            this.archiveSize = archiveSize;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @param diskRoot
+     *            directory the working trees are put in if they do not fit
+     *            into the fast location
+     * @param fastRoot
+     *            directory on a fast file system or <code>null</code>
+     * @param fastLimit
+     *            bytes the trees may take up in <code>fastRoot</code>,
+     *            <code>0</code> to use its free space
+     */
+    StagingArea(File diskRoot, File fastRoot, long fastLimit) {
+        this.deleter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "staging-delete");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        this.diskRoot = diskRoot;
+        diskRoot.mkdirs();
+        reclaim(diskRoot);
+        if (fastRoot != null && (fastRoot.mkdirs() || fastRoot.isDirectory()) && fastRoot.canWrite()) {
+            this.fastRoot = fastRoot;
+            reclaim(fastRoot);
+            if (fastLimit <= 0) {
+                fastLimit = Math.max(0, fastRoot.getUsableSpace() - FAST_RESERVE);
+            }
+        } else {
+            if (fastRoot != null) {
+                System.err.println("Staging directory " + fastRoot + " is not writable, using "
+                        + diskRoot);
+            }
+            this.fastRoot = null;
+        }
+        this.fastLimit = fastLimit;
+    }
+
+    /**
+     * @return the directory below <code>stagingDirectory</code> used by the
+     *         build in <code>buildDirectory</code>
+     */
+    static File getFastRoot(File stagingDirectory, File buildDirectory) {
+        String key = String.format("%08x", buildDirectory.getAbsolutePath().hashCode());
+        return new File(stagingDirectory, "distrobuilder-" + key);
+    }
+
+    /**
+     * Moves the leftovers of earlier runs to the trash.
+     */
+    private void reclaim(File root) {
+        int count = 0;
+        File[] trashed = new File(root, TRASH).listFiles();
+        if (trashed != null) {
+            for (File f : trashed) {
+                schedule(f);
+                count++;
+            }
+        }
+        for (File f : root.listFiles()) {
+            if (!f.getName().equals(TRASH)) {
+                discard(f);
+                count++;
+            }
+        }
+        if (count > 0) {
+            System.out.println("Reclaiming " + count + " working directories left in " + root);
+        }
+    }
+
+    /**
+     * Creates an empty working directory, on the fast location if it fits.
+     *
+     * @param archiveSize
+     *            size of the SDK archive extracted into the directory, used to
+     *            estimate the space it takes up
+     */
+    File allocate(String name, long archiveSize) throws IOException {
+        long estimate = (long) (archiveSize * getExpansion());
+        synchronized (this) {
+            if (fastRoot == null || fastUsed + estimate > fastLimit) {
+                return allocateOnDisk(name);
+            }
+            fastUsed += estimate;
+        }
+        File dir = new File(fastRoot, name);
+        if (create(dir)) {
+            synchronized (this) {
+                fastTrees++;
+                reservations.put(dir, new Reservation(archiveSize, estimate));
+            }
+            return dir;
+        }
+        synchronized (this) {
+            fastUsed -= estimate;
+        }
+        return allocateOnDisk(name);
+    }
+
+    /**
+     * Creates an empty working directory on the disk location, e.g. after
+     * the one on the fast location ran out of space.
+     */
+    File allocateOnDisk(String name) throws IOException {
+        File dir = new File(diskRoot, name);
+        if (!create(dir)) {
+            throw new IOException("Failed to create working directory " + dir);
+        }
+        synchronized (this) {
+            diskTrees++;
+        }
+        return dir;
+    }
+
+    private boolean create(File dir) {
+        if (dir.exists()) {
+            discard(dir);
+        }
+        return dir.mkdirs();
+    }
+
+    /**
+     * @return <code>true</code> if <code>dir</code> is on the fast location
+     */
+    boolean isFast(File dir) {
+        return fastRoot != null && fastRoot.equals(dir.getParentFile());
+    }
+
+    private synchronized double getExpansion() {
+        return expansion;
+    }
+
+    /**
+     * Records the actual size of a working directory, it improves the
+     * estimate for the following ones.
+     */
+    synchronized void resize(File dir, long size) {
+        Reservation r = reservations.get(dir);
+        if (r == null) {
+            return;
+        }
+        if (r.archiveSize > 0) {
+            expansion = Math.max(expansion, (double) size / r.archiveSize);
+        }
+        if (size > r.size) {
+            if (isFast(dir)) {
+                fastUsed += size - r.size;
+            }
+            r.size = size;
+        }
+    }
+
+    /**
+     * Gives back a directory from {@link #allocate(String, long)} and deletes
+     * it in the background.
+     */
+    void release(File dir) {
+        synchronized (this) {
+            Reservation r = reservations.remove(dir);
+            if (r != null && isFast(dir)) {
+                fastUsed -= r.size;
+            }
+        }
+        discard(dir);
+    }
+
+    /**
+     * Deletes <code>dir</code> in the background if it can be renamed into
+     * the trash, otherwise right away.
+     */
+    void discard(File dir) {
+        if (!dir.exists()) {
+            return;
+        }
+        File trash = new File(isFast(dir) ? fastRoot : diskRoot, TRASH);
+        trash.mkdirs();
+        File target = new File(trash, dir.getName() + "-" + UUID.randomUUID());
+        try {
+            Files.move(dir.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // e.g. a directory on another file system
+            delete(dir);
+            return;
+        }
+        schedule(target);
+    }
+
+    private void schedule(final File f) {
+        deleter.execute(new Runnable() {
+            @Override
+            public void run() {
+                delete(f);
+            }
+        });
+    }
+
+    private static void delete(File f) {
+        if (f.isDirectory() && !Files.isSymbolicLink(f.toPath())) {
+            DistroBuilder.deleteDirectory(f);
+        } else {
+            f.delete();
+        }
+    }
+
+    /**
+     * @return a line describing where the working directories have been put
+     */
+    synchronized String getSummary() {
+        return "staging: " + fastTrees + " working directories in " + (fastRoot != null ? fastRoot : "-")
+                + ", " + diskTrees + " in " + diskRoot;
+    }
+
+    /**
+     * Waits until the directories discarded have been deleted.
+     */
+    void shutdown() throws InterruptedException {
+        deleter.shutdown();
+        deleter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+}
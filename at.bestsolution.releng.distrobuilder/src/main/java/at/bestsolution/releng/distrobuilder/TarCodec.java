@@ -0,0 +1,34 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Base class of codecs writing tar archives through a compression stream.
+ * Archives of these codecs can also be extracted, e.g. when they are used as
+ * target SDKs.
+ */
+public abstract class TarCodec implements ArchiveCodec {
+    @Override
+    public String getSuffix() {
+        return "." + getName();
+    }
+
+    @Override
+    public ArchiveWriter createWriter(File targetFile, CodecSettings settings) throws IOException {
+        return new ArchiveIO.TarEntryWriter(compress(targetFile, settings));
+    }
+
+    /**
+     * @return a stream compressing the tar data written to it into
+     *         <code>targetFile</code>; closing it completes the file
+     */
+    protected abstract OutputStream compress(File targetFile, CodecSettings settings) throws IOException;
+
+    /**
+     * @return the decompressed tar data of <code>archive</code>
+     */
+    protected abstract InputStream decompress(File archive) throws IOException;
+}
@@ -0,0 +1,157 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Mirrors remote update sites into local p2 repositories before the targets
+ * are built, so the director runs of all targets read metadata and artifacts
+ * from disk instead of fetching them from the network again and again.
+ * <p>
+ * The mirrors are created with the p2 metadata and artifact mirror
+ * applications of the director executable and are kept in
+ * <code>&lt;directory&gt;/&lt;sha256 of the url&gt;</code>. The artifact
+ * mirror only transfers artifacts missing in the local repository, so later
+ * runs refresh a mirror incrementally.
+ * </p>
+ * <p>
+ * A site with mirrors is copied from the best of them according to the
+ * {@link MirrorSelector}; if that fails the next one is tried.
+ * </p>
+ */
+class UpdateSiteMirror {
+    static final String METADATA_MIRROR = "org.eclipse.equinox.p2.metadata.repository.mirrorApplication";
+    static final String ARTIFACT_MIRROR = "org.eclipse.equinox.p2.artifact.repository.mirrorApplication";
+
+    private final File directory;
+    private final String director;
+    private final DirectorLog log;
+    private final MirrorSelector selector;
+    private final Map<String, List<String>> siteUrls;
+    private final Map<String, String> mirrors = new ConcurrentHashMap<String, String>();
+
+    /**
+     * @param siteUrls
+     *            all URLs of a site by its configured URL
+     */
+    UpdateSiteMirror(File directory, String director, DirectorLog log, MirrorSelector selector,
+            Map<String, List<String>> siteUrls) {
+        this.directory = directory;
+        this.director = director;
+        this.log = log;
+        this.selector = selector;
+        this.siteUrls = siteUrls;
+    }
+
+    /**
+     * Creates or refreshes the mirrors of all remote <code>sites</code> on
+     * <code>threads</code> concurrent director processes. Sites which fail
+     * to mirror are used remotely.
+     */
+    public void mirror(Collection<String> sites, int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final String site : sites) {
+                if (!RepositoryDownloader.isRemote(site)) {
+                    continue;
+                }
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        mirror(site);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Failed to mirror update site, using it remotely: " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the location of the local mirror of <code>site</code> or
+     *         <code>site</code> itself if it has not been mirrored
+     */
+    public String resolve(String site) {
+        String mirror = mirrors.get(site);
+        return mirror != null ? mirror : site;
+    }
+
+    public List<String> resolve(List<String> sites) {
+        List<String> rv = new ArrayList<String>(sites.size());
+        for (String site : sites) {
+            rv.add(resolve(site));
+        }
+        return rv;
+    }
+
+    private void mirror(String site) throws IOException, InterruptedException {
+        File dir = new File(directory, FileDigests.sha256(site)).getAbsoluteFile();
+        File info = new File(dir, "mirror.properties");
+        boolean refresh = info.exists();
+        System.out.println((refresh ? "Refreshing mirror of " : "Mirroring ") + site);
+
+        dir.mkdirs();
+        String destination = dir.toURI().toString();
+        List<String> urls = siteUrls.containsKey(site) ? selector.rank(siteUrls.get(site)) : Collections
+                .singletonList(site);
+        for (int i = 0;; i++) {
+            String url = urls.get(i);
+            try {
+                run(director, METADATA_MIRROR, url, destination, log);
+                run(director, ARTIFACT_MIRROR, url, destination, log);
+                break;
+            } catch (IOException e) {
+                if (urls.size() > 1) {
+                    selector.failed(url);
+                }
+                if (i + 1 == urls.size()) {
+                    throw e;
+                }
+                System.err.println("Mirroring from " + url + " failed, trying " + urls.get(i + 1));
+            }
+        }
+
+        Properties p = new Properties();
+        p.setProperty("site", site);
+        p.setProperty("refreshed", String.valueOf(System.currentTimeMillis()));
+        FileDigests.store(p, info);
+        mirrors.put(site, destination);
+    }
+
+    /**
+     * Runs a p2 repository application of <code>director</code> copying
+     * <code>source</code> to <code>destination</code>, its output goes to
+     * <code>log</code>.
+     */
+    static void run(String director, String application, String source, String destination, DirectorLog log)
+            throws IOException, InterruptedException {
+        int rv = log.run(Arrays.asList(director, "-nosplash", "-consoleLog", "-application", application, "-source",
+                source, "-destination", destination));
+        if (rv != 0) {
+            throw new IOException(application + " failed for " + source + " with exit code " + rv + ", see "
+                    + log.getFile());
+        }
+    }
+}
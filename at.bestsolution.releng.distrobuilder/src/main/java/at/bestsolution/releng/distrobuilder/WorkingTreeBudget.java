@@ -0,0 +1,70 @@
+package at.bestsolution.releng.distrobuilder;
+
+/**
+ * Limits the number and the total size of the working trees extracted at
+ * the same time.
+ * <p>
+ * The size of a tree is only known once it has been extracted, so the size
+ * limit is enforced when a tree is started: a new one has to wait while the
+ * trees in use take up the limit or more. One tree is always allowed, so a
+ * single tree larger than the limit does not stop the build.
+ * </p>
+ */
+class WorkingTreeBudget {
+    private final int maxTrees;
+    private final long maxBytes;
+    private int trees;
+    private long bytes;
+
+    /**
+     * @param maxTrees
+     *            maximum number of trees, <code>0</code> for no limit
+     * @param maxBytes
+     *            size of all trees in bytes from which on no new tree is
+     *            started, <code>0</code> for no limit
+     */
+    WorkingTreeBudget(int maxTrees, long maxBytes) {
+        this.maxTrees = maxTrees;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return <code>true</code> if the size of the trees is limited and has
+     *         to be reported with {@link #resize(long)}
+     */
+    boolean isSizeLimited() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Waits until a new tree may be started.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (trees > 0 && ((maxTrees > 0 && trees >= maxTrees) || (maxBytes > 0 && bytes >= maxBytes))) {
+            wait();
+        }
+        trees++;
+    }
+
+    /**
+     * Records a tree having grown by <code>delta</code> bytes.
+     */
+    synchronized void resize(long delta) {
+        bytes += delta;
+        if (delta < 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Frees the place of a tree which has been deleted.
+     *
+     * @param size
+     *            the size last reported for the tree
+     */
+    synchronized void release(long size) {
+        trees--;
+        bytes -= size;
+        notifyAll();
+    }
+}
@@ -0,0 +1,154 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the central directory of a zip file, giving access to the raw entry
+ * metadata (offsets, compressed sizes, attributes) which
+ * {@link java.util.zip.ZipFile} does not expose.
+ */
+class ZipDirectory {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int END_SIZE = 22;
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    static class Entry {
+        String name;
+        int versionMadeBy;
+        int flags;
+        int method;
+        long dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long externalAttributes;
+        long localHeaderOffset;
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * @return the unix mode of the entry or 0 if the archive was not
+         *         created on a unix system
+         */
+        int getUnixMode() {
+            return (versionMadeBy >> 8) == 3 ? (int) (externalAttributes >> 16) & 0xFFFF : 0;
+        }
+    }
+
+    private ZipDirectory(File file) {
+        this.file = file;
+    }
+
+    public static ZipDirectory read(File file) throws IOException {
+        ZipDirectory d = new ZipDirectory(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            d.readEntries(raf);
+        } finally {
+            raf.close();
+        }
+        return d;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return the position of the compressed data of <code>e</code>
+     */
+    public static long getDataOffset(RandomAccessFile raf, Entry e) throws IOException {
+        byte[] header = new byte[30];
+        raf.seek(e.localHeaderOffset);
+        raf.readFully(header);
+        if (getInt(header, 0) != LOCAL_SIGNATURE) {
+            throw new IOException("Invalid local header for entry " + e.name);
+        }
+        return e.localHeaderOffset + 30 + getShort(header, 26) + getShort(header, 28);
+    }
+
+    private void readEntries(RandomAccessFile raf) throws IOException {
+        long length = raf.length();
+        int tail = (int) Math.min(length, END_SIZE + 0xFFFF);
+        byte[] buf = new byte[tail];
+        raf.seek(length - tail);
+        raf.readFully(buf);
+
+        int end = -1;
+        for (int i = tail - END_SIZE; i >= 0; i--) {
+            if (getInt(buf, i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new IOException("Not a zip file: " + file);
+        }
+
+        int count = getShort(buf, end + 10);
+        long size = getInt(buf, end + 12);
+        long offset = getInt(buf, end + 16);
+        if (count == 0xFFFF || offset == 0xFFFFFFFFL || size == 0xFFFFFFFFL) {
+            throw new IOException("Zip64 archives are not supported: " + file);
+        }
+
+        byte[] cd = new byte[(int) size];
+        raf.seek(offset);
+        raf.readFully(cd);
+
+        int p = 0;
+        for (int i = 0; i < count; i++) {
+            if (getInt(cd, p) != CENTRAL_SIGNATURE) {
+                throw new IOException("Invalid central directory in " + file);
+            }
+            Entry e = new Entry();
+            e.versionMadeBy = getShort(cd, p + 4);
+            e.flags = getShort(cd, p + 8);
+            e.method = getShort(cd, p + 10);
+            e.dosTime = getInt(cd, p + 12);
+            e.crc = getInt(cd, p + 16);
+            e.compressedSize = getInt(cd, p + 20);
+            e.size = getInt(cd, p + 24);
+            int nameLength = getShort(cd, p + 28);
+            int extraLength = getShort(cd, p + 30);
+            int commentLength = getShort(cd, p + 32);
+            e.externalAttributes = getInt(cd, p + 38);
+            e.localHeaderOffset = getInt(cd, p + 42);
+            e.name = new String(cd, p + 46, nameLength, UTF8);
+            if (e.size == 0xFFFFFFFFL || e.compressedSize == 0xFFFFFFFFL || e.localHeaderOffset == 0xFFFFFFFFL) {
+                throw new IOException("Zip64 archives are not supported: " + file);
+            }
+            entries.put(e.name, e);
+            p += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private static long getInt(byte[] b, int off) {
+        return (getShort(b, off) | (long) getShort(b, off + 2) << 16) & 0xFFFFFFFFL;
+    }
+}
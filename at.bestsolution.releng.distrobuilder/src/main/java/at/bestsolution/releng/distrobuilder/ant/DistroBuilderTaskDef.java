@@ -1,15 +1,22 @@
 package at.bestsolution.releng.distrobuilder.ant;
 
+import java.util.Map;
+
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
+import at.bestsolution.releng.distrobuilder.BuildPhase;
 import at.bestsolution.releng.distrobuilder.DistroBuildException;
+import at.bestsolution.releng.distrobuilder.DistroBuildListener;
 import at.bestsolution.releng.distrobuilder.DistroBuilder;
 import at.bestsolution.releng.distrobuilder.InstallUnit;
+import at.bestsolution.releng.distrobuilder.OutputFormat;
 import at.bestsolution.releng.distrobuilder.P2Repository;
 import at.bestsolution.releng.distrobuilder.UpdateSite;
 
 public class DistroBuilderTaskDef extends org.apache.tools.ant.Task {
     private DistroBuilder builder = new DistroBuilder();
+    private String reportPropertyPrefix = "distrobuilder";
 
     public InstallUnit createInstallUnit() {
         InstallUnit u = new InstallUnit();
@@ -29,6 +36,12 @@ public class DistroBuilderTaskDef extends org.apache.tools.ant.Task {
         return u;
     }
 
+    public OutputFormat createOutputFormat() {
+        OutputFormat f = new OutputFormat();
+        builder.addOutputFormat(f);
+        return f;
+    }
+
     public String getTargetDirectory() {
         return builder.getBuildDirectory();
     }
@@ -85,12 +98,351 @@ public class DistroBuilderTaskDef extends org.apache.tools.ant.Task {
         builder.setProfile(profile);
     }
 
+    public int getThreads() {
+        return builder.getThreads();
+    }
+
+    public void setThreads(int threads) {
+        builder.setThreads(threads);
+    }
+
+    public int getCompressionThreads() {
+        return builder.getCompressionThreads();
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        builder.setCompressionThreads(compressionThreads);
+    }
+
+    public int getCompressionBlockSize() {
+        return builder.getCompressionBlockSize();
+    }
+
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        builder.setCompressionBlockSize(compressionBlockSize);
+    }
+
+    public boolean isReuseSdkEntries() {
+        return builder.isReuseSdkEntries();
+    }
+
+    public void setReuseSdkEntries(boolean reuseSdkEntries) {
+        builder.setReuseSdkEntries(reuseSdkEntries);
+    }
+
+    public boolean isSdkCache() {
+        return builder.isSdkCache();
+    }
+
+    public void setSdkCache(boolean sdkCache) {
+        builder.setSdkCache(sdkCache);
+    }
+
+    public boolean isIncremental() {
+        return builder.isIncremental();
+    }
+
+    public void setIncremental(boolean incremental) {
+        builder.setIncremental(incremental);
+    }
+
+    public int getDownloadThreads() {
+        return builder.getDownloadThreads();
+    }
+
+    public void setDownloadThreads(int downloadThreads) {
+        builder.setDownloadThreads(downloadThreads);
+    }
+
+    public long getDownloadCacheSize() {
+        return builder.getDownloadCacheSize();
+    }
+
+    public void setDownloadCacheSize(long downloadCacheSize) {
+        builder.setDownloadCacheSize(downloadCacheSize);
+    }
+
+    public boolean isMirrorUpdateSites() {
+        return builder.isMirrorUpdateSites();
+    }
+
+    public void setMirrorUpdateSites(boolean mirrorUpdateSites) {
+        builder.setMirrorUpdateSites(mirrorUpdateSites);
+    }
+
+    public boolean isSharedBundlePool() {
+        return builder.isSharedBundlePool();
+    }
+
+    public void setSharedBundlePool(boolean sharedBundlePool) {
+        builder.setSharedBundlePool(sharedBundlePool);
+    }
+
+    public boolean isAggregateRepositories() {
+        return builder.isAggregateRepositories();
+    }
+
+    public void setAggregateRepositories(boolean aggregateRepositories) {
+        builder.setAggregateRepositories(aggregateRepositories);
+    }
+
+    public boolean isDryRun() {
+        return builder.isDryRun();
+    }
+
+    public void setDryRun(boolean dryRun) {
+        builder.setDryRun(dryRun);
+    }
+
+    public int getDirectorWorkers() {
+        return builder.getDirectorWorkers();
+    }
+
+    public void setDirectorWorkers(int directorWorkers) {
+        builder.setDirectorWorkers(directorWorkers);
+    }
+
+    public String getDirectorWorkerCommand() {
+        return builder.getDirectorWorkerCommand();
+    }
+
+    public void setDirectorWorkerCommand(String directorWorkerCommand) {
+        builder.setDirectorWorkerCommand(directorWorkerCommand);
+    }
+
+    public int getExtractionThreads() {
+        return builder.getExtractionThreads();
+    }
+
+    public void setExtractionThreads(int extractionThreads) {
+        builder.setExtractionThreads(extractionThreads);
+    }
+
+    public boolean isOverlayOutput() {
+        return builder.isOverlayOutput();
+    }
+
+    public void setOverlayOutput(boolean overlayOutput) {
+        builder.setOverlayOutput(overlayOutput);
+    }
+
+    public boolean isCompressedEntryCache() {
+        return builder.isCompressedEntryCache();
+    }
+
+    public void setCompressedEntryCache(boolean compressedEntryCache) {
+        builder.setCompressedEntryCache(compressedEntryCache);
+    }
+
+    public boolean isKeepCompressedEntryCache() {
+        return builder.isKeepCompressedEntryCache();
+    }
+
+    public void setKeepCompressedEntryCache(boolean keepCompressedEntryCache) {
+        builder.setKeepCompressedEntryCache(keepCompressedEntryCache);
+    }
+
+    public int getCompressionLevel() {
+        return builder.getCompressionLevel();
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        builder.setCompressionLevel(compressionLevel);
+    }
+
+    public boolean isStoreIncompressible() {
+        return builder.isStoreIncompressible();
+    }
+
+    public void setStoreIncompressible(boolean storeIncompressible) {
+        builder.setStoreIncompressible(storeIncompressible);
+    }
+
+    public boolean isPipeline() {
+        return builder.isPipeline();
+    }
+
+    public void setPipeline(boolean pipeline) {
+        builder.setPipeline(pipeline);
+    }
+
+    public int getExtractStageThreads() {
+        return builder.getExtractStageThreads();
+    }
+
+    public void setExtractStageThreads(int extractStageThreads) {
+        builder.setExtractStageThreads(extractStageThreads);
+    }
+
+    public int getInstallStageThreads() {
+        return builder.getInstallStageThreads();
+    }
+
+    public void setInstallStageThreads(int installStageThreads) {
+        builder.setInstallStageThreads(installStageThreads);
+    }
+
+    public int getCompressStageThreads() {
+        return builder.getCompressStageThreads();
+    }
+
+    public void setCompressStageThreads(int compressStageThreads) {
+        builder.setCompressStageThreads(compressStageThreads);
+    }
+
+    public int getMaxWorkingTrees() {
+        return builder.getMaxWorkingTrees();
+    }
+
+    public void setMaxWorkingTrees(int maxWorkingTrees) {
+        builder.setMaxWorkingTrees(maxWorkingTrees);
+    }
+
+    public long getWorkingTreeDiskLimit() {
+        return builder.getWorkingTreeDiskLimit();
+    }
+
+    public void setWorkingTreeDiskLimit(long workingTreeDiskLimit) {
+        builder.setWorkingTreeDiskLimit(workingTreeDiskLimit);
+    }
+
+    public String getDirectorConsole() {
+        return builder.getDirectorConsole();
+    }
+
+    public void setDirectorConsole(String directorConsole) {
+        builder.setDirectorConsole(directorConsole);
+    }
+
+    public int getDirectorLogTail() {
+        return builder.getDirectorLogTail();
+    }
+
+    public void setDirectorLogTail(int directorLogTail) {
+        builder.setDirectorLogTail(directorLogTail);
+    }
+
+    public int getCoordinatorPort() {
+        return builder.getCoordinatorPort();
+    }
+
+    public void setCoordinatorPort(int coordinatorPort) {
+        builder.setCoordinatorPort(coordinatorPort);
+    }
+
+    public String getCoordinatorAddress() {
+        return builder.getCoordinatorAddress();
+    }
+
+    public void setCoordinatorAddress(String coordinatorAddress) {
+        builder.setCoordinatorAddress(coordinatorAddress);
+    }
+
+    public String getCoordinatorSecret() {
+        return builder.getCoordinatorSecret();
+    }
+
+    public void setCoordinatorSecret(String coordinatorSecret) {
+        builder.setCoordinatorSecret(coordinatorSecret);
+    }
+
+    public int getMirrorMinThroughput() {
+        return builder.getMirrorMinThroughput();
+    }
+
+    public void setMirrorMinThroughput(int mirrorMinThroughput) {
+        builder.setMirrorMinThroughput(mirrorMinThroughput);
+    }
+
+    public int getMirrorSplit() {
+        return builder.getMirrorSplit();
+    }
+
+    public void setMirrorSplit(int mirrorSplit) {
+        builder.setMirrorSplit(mirrorSplit);
+    }
+
+    public String getStagingDirectory() {
+        return builder.getStagingDirectory();
+    }
+
+    public void setStagingDirectory(String stagingDirectory) {
+        builder.setStagingDirectory(stagingDirectory);
+    }
+
+    public long getStagingLimit() {
+        return builder.getStagingLimit();
+    }
+
+    public void setStagingLimit(long stagingLimit) {
+        builder.setStagingLimit(stagingLimit);
+    }
+
+    public String getReportPropertyPrefix() {
+        return reportPropertyPrefix;
+    }
+
+    /**
+     * @param reportPropertyPrefix
+     *            prefix of the properties the build totals are exposed as,
+     *            e.g. <code>distrobuilder.director.millis</code>; an empty
+     *            value disables them
+     */
+    public void setReportPropertyPrefix(String reportPropertyPrefix) {
+        this.reportPropertyPrefix = reportPropertyPrefix;
+    }
+
     @Override
     public void execute() throws BuildException {
+        DistroBuildListener listener = new LogListener();
+        builder.addBuildListener(listener);
         try {
             builder.buildDistros();
         } catch (DistroBuildException e) {
             throw new BuildException("Failed to build Eclipse distribution", e);
+        } finally {
+            builder.removeBuildListener(listener);
+            if (reportPropertyPrefix != null && reportPropertyPrefix.length() > 0) {
+                for (Map.Entry<String, String> e : builder.getBuildTotals().entrySet()) {
+                    getProject().setNewProperty(reportPropertyPrefix + "." + e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs the progress of the build in verbose mode.
+     */
+    class LogListener implements DistroBuildListener {
+        @Override
+        public void buildStarted(int units) {
+            log("Building " + units + " work units", Project.MSG_VERBOSE);
+        }
+
+        @Override
+        public void unitStarted(String target) {
+            log(target + ": started", Project.MSG_VERBOSE);
+        }
+
+        @Override
+        public void phaseStarted(String target, BuildPhase phase) {
+            log((target != null ? target : "build") + ": " + phase.getId() + " started", Project.MSG_DEBUG);
+        }
+
+        @Override
+        public void phaseFinished(String target, BuildPhase phase, long millis, long bytes, int files) {
+            log((target != null ? target : "build") + ": " + phase.getId() + " took " + millis + " ms, "
+                    + bytes / 1024 + " KB, " + files + " files", Project.MSG_VERBOSE);
+        }
+
+        @Override
+        public void unitFinished(String target, boolean success) {
+            log(target + ": " + (success ? "done" : "failed"), Project.MSG_VERBOSE);
+        }
+
+        @Override
+        public void buildFinished(boolean success, long millis) {
+            log("Build " + (success ? "finished" : "failed") + " after " + millis + " ms", Project.MSG_VERBOSE);
         }
     }
 }
@@ -0,0 +1,95 @@
+package at.bestsolution.releng.distrobuilder.ant;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildException;
+
+import at.bestsolution.releng.distrobuilder.OverlayArchive;
+
+/**
+ * Rebuilds a full distro from a target SDK and an overlay archive written
+ * with <code>overlayOutput</code> enabled.
+ */
+public class OverlayApplyTaskDef extends org.apache.tools.ant.Task {
+    private File sdk;
+    private File overlay;
+    private File destFile;
+    private File workDirectory;
+    private int extractionThreads = 1;
+    private int compressionThreads = 1;
+    private int compressionBlockSize = OverlayArchive.DEFAULT_BLOCK_SIZE;
+
+    public File getSdk() {
+        return sdk;
+    }
+
+    public void setSdk(File sdk) {
+        this.sdk = sdk;
+    }
+
+    public File getOverlay() {
+        return overlay;
+    }
+
+    public void setOverlay(File overlay) {
+        this.overlay = overlay;
+    }
+
+    public File getDestFile() {
+        return destFile;
+    }
+
+    public void setDestFile(File destFile) {
+        this.destFile = destFile;
+    }
+
+    public File getWorkDirectory() {
+        return workDirectory;
+    }
+
+    public void setWorkDirectory(File workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    public int getExtractionThreads() {
+        return extractionThreads;
+    }
+
+    public void setExtractionThreads(int extractionThreads) {
+        this.extractionThreads = extractionThreads;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        this.compressionBlockSize = compressionBlockSize;
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        if (sdk == null || overlay == null || destFile == null) {
+            throw new BuildException("sdk, overlay and destFile are required");
+        }
+        File workDir = workDirectory;
+        if (workDir == null) {
+            workDir = new File(destFile.getAbsoluteFile().getParentFile(), destFile.getName() + ".work");
+        }
+        try {
+            new OverlayArchive(extractionThreads, compressionThreads, compressionBlockSize).apply(sdk, overlay,
+                    destFile, workDir);
+        } catch (IOException e) {
+            throw new BuildException("Failed to apply overlay " + overlay, e);
+        }
+    }
+}
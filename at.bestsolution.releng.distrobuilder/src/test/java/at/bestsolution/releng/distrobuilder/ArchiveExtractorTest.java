@@ -0,0 +1,218 @@
+package at.bestsolution.releng.distrobuilder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArchiveExtractorTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] CONTENT = "content".getBytes(UTF8);
+    private static final int LINK_NAME_OFFSET = 157;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File target;
+    private File outside;
+
+    @Before
+    public void setUp() throws IOException {
+        target = tmp.newFolder("target");
+        outside = tmp.newFolder("outside");
+    }
+
+    private TarOutputStream createTar(File archive) throws IOException {
+        TarOutputStream out = new TarOutputStream(new GZIPOutputStream(new FileOutputStream(archive)));
+        out.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+        return out;
+    }
+
+    private static void putFile(TarOutputStream out, TarEntry e) throws IOException {
+        e.setSize(CONTENT.length);
+        out.putNextEntry(e);
+        out.write(CONTENT);
+        out.closeEntry();
+    }
+
+    /**
+     * Writes a link entry, its link name is patched into the header like
+     * {@link ArchiveIO} does.
+     */
+    private static void putLink(TarOutputStream out, String name, byte type, String linkName) throws IOException {
+        byte[] header = new byte[512];
+        new TarEntry(name, type).writeEntryHeader(header);
+        byte[] link = linkName.getBytes(UTF8);
+        System.arraycopy(link, 0, header, LINK_NAME_OFFSET, link.length);
+        out.putNextEntry(new TarEntry(header));
+        out.closeEntry();
+    }
+
+    /**
+     * Extracts <code>archive</code> and expects it to be rejected.
+     */
+    private void assertRejected(File archive) {
+        try {
+            new ArchiveExtractor(2).extract(archive, target, null);
+            fail("extracted " + archive.getName());
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, outside.list().length);
+    }
+
+    @Test(timeout = 30000)
+    public void rejectsEntryLeavingTarget() throws IOException {
+        File archive = new File(tmp.getRoot(), "parent.tar.gz");
+        TarOutputStream out = createTar(archive);
+        try {
+            putFile(out, new TarEntry("eclipse/../../outside/x"));
+        } finally {
+            out.close();
+        }
+        assertRejected(archive);
+    }
+
+    @Test(timeout = 30000)
+    public void rejectsAbsoluteEntry() throws IOException {
+        File archive = new File(tmp.getRoot(), "absolute.tar.gz");
+        TarOutputStream out = createTar(archive);
+        try {
+            putFile(out, new TarEntry(new File(outside, "x").getAbsolutePath(), true));
+        } finally {
+            out.close();
+        }
+        assertRejected(archive);
+    }
+
+    @Test(timeout = 30000)
+    public void rejectsZipEntryLeavingTarget() throws IOException {
+        File archive = new File(tmp.getRoot(), "parent.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+        try {
+            out.putNextEntry(new ZipEntry("../outside/x"));
+            out.write(CONTENT);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        assertRejected(archive);
+    }
+
+    /**
+     * A symbolic link of the archive must not be used to write outside the
+     * target directory.
+     */
+    @Test(timeout = 30000)
+    public void rejectsEntryBelowSymlink() throws IOException {
+        Assume.assumeFalse(TestTrees.isWindows());
+        File archive = new File(tmp.getRoot(), "symlink.tar.gz");
+        TarOutputStream out = createTar(archive);
+        try {
+            putLink(out, "eclipse/a", TarConstants.LF_SYMLINK, outside.getAbsolutePath());
+            putFile(out, new TarEntry("eclipse/a/x"));
+        } finally {
+            out.close();
+        }
+        assertRejected(archive);
+    }
+
+    /**
+     * A file written after a symbolic link of the same name would be written
+     * to the target of the link.
+     */
+    @Test(timeout = 30000)
+    public void rejectsFileReplacingSymlink() throws IOException {
+        Assume.assumeFalse(TestTrees.isWindows());
+        File archive = new File(tmp.getRoot(), "symlink.tar.gz");
+        TarOutputStream out = createTar(archive);
+        try {
+            putLink(out, "eclipse/a", TarConstants.LF_SYMLINK, new File(outside, "x").getAbsolutePath());
+            putFile(out, new TarEntry("eclipse/a"));
+        } finally {
+            out.close();
+        }
+        assertRejected(archive);
+    }
+
+    /**
+     * Links already in the target directory, like those of a base SDK below
+     * an overlay, are not written through either.
+     */
+    @Test(timeout = 30000)
+    public void rejectsEntryBelowExistingSymlink() throws IOException {
+        Assume.assumeFalse(TestTrees.isWindows());
+        File base = new File(tmp.getRoot(), "base.tar.gz");
+        TarOutputStream out = createTar(base);
+        try {
+            putLink(out, "eclipse/a", TarConstants.LF_SYMLINK, outside.getAbsolutePath());
+        } finally {
+            out.close();
+        }
+        new ArchiveExtractor(2).extract(base, target, null);
+
+        File archive = new File(tmp.getRoot(), "overlay.tar.gz");
+        out = createTar(archive);
+        try {
+            putFile(out, new TarEntry("eclipse/a/x"));
+        } finally {
+            out.close();
+        }
+        assertRejected(archive);
+    }
+
+    @Test(timeout = 30000)
+    public void rejectsHardlinkOutsideTarget() throws IOException {
+        File secret = tmp.newFile("secret");
+        Files.write(secret.toPath(), CONTENT);
+        File archive = new File(tmp.getRoot(), "hardlink.tar.gz");
+        TarOutputStream out = createTar(archive);
+        try {
+            putLink(out, "eclipse/x", TarConstants.LF_LINK, "../secret");
+        } finally {
+            out.close();
+        }
+        assertRejected(archive);
+        assertFalse(new File(target, "eclipse/x").exists());
+    }
+
+    /**
+     * Links staying inside the target directory are restored.
+     */
+    @Test(timeout = 30000)
+    public void extractsLinksInsideTarget() throws IOException {
+        Assume.assumeFalse(TestTrees.isWindows());
+        File archive = new File(tmp.getRoot(), "links.tar.gz");
+        TarOutputStream out = createTar(archive);
+        try {
+            putFile(out, new TarEntry("eclipse/plugins/x"));
+            putLink(out, "eclipse/link", TarConstants.LF_SYMLINK, "plugins");
+            putLink(out, "eclipse/y", TarConstants.LF_LINK, "eclipse/plugins/x");
+        } finally {
+            out.close();
+        }
+        new ArchiveExtractor(2).extract(archive, target, null);
+        assertTrue(Files.isSymbolicLink(new File(target, "eclipse/link").toPath()));
+        assertArrayEquals(CONTENT, Files.readAllBytes(new File(target, "eclipse/link/x").toPath()));
+        assertArrayEquals(CONTENT, Files.readAllBytes(new File(target, "eclipse/y").toPath()));
+    }
+}
@@ -0,0 +1,232 @@
+package at.bestsolution.releng.distrobuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuildCoordinatorTest {
+    private static final String SECRET = "s3cret";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private int port;
+    private File dist;
+    private DistroBuilder coordinator;
+    private Thread coordinatorThread;
+    private final List<Throwable> coordinatorErrors = new ArrayList<Throwable>();
+    private final List<Thread> nodes = new ArrayList<Thread>();
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeFalse(TestTrees.isWindows());
+        ServerSocket s = new ServerSocket(0);
+        port = s.getLocalPort();
+        s.close();
+        dist = new File(tmp.getRoot(), "dist");
+        coordinator = new DistroBuilder();
+        coordinator.setBuildDirectory(new File(tmp.getRoot(), "build").getPath());
+        coordinator.setDistDirectory(dist.getPath());
+        coordinator.setStaticReposDirectory(new File(tmp.getRoot(), "repos").getPath());
+        coordinator.setP2DirectorExecutable(TestTrees.createDirector(tmp.newFolder("bin"), 0));
+        coordinator.setCoordinatorPort(port);
+        coordinator.setCoordinatorSecret(SECRET);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (Thread t : nodes) {
+            t.interrupt();
+        }
+        for (Thread t : nodes) {
+            t.join(30000);
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void buildsOnTwoNodes() throws Exception {
+        startCoordinator(3);
+        File director = new File(TestTrees.createDirector(tmp.newFolder("slow"), 1));
+        startNode("node1", director);
+        startNode("node2", director);
+        joinCoordinator();
+        assertDistros(3);
+    }
+
+    /**
+     * The idle node steals the only unit, both nodes build it.
+     */
+    @Test(timeout = 120000)
+    public void idleNodeStealsUnit() throws Exception {
+        startCoordinator(1);
+        File director = new File(TestTrees.createDirector(tmp.newFolder("slow"), 3));
+        File build1 = startNode("node1", director);
+        Thread.sleep(1000);
+        File build2 = startNode("node2", director);
+        joinCoordinator();
+        assertDistros(1);
+        String log = "logs/eclipse-SDK-1-linux-gtk-arch0-distro.zip.log";
+        assertTrue(new File(build1, log).exists());
+        assertTrue(new File(build2, log).exists());
+    }
+
+    /**
+     * The unit of a node which disconnects is built by another node.
+     */
+    @Test(timeout = 120000)
+    public void reassignsUnitOfLostNode() throws Exception {
+        startCoordinator(1);
+        Socket socket = connect("lost", SECRET);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        assertEquals(BuildCoordinator.JOB, in.readUTF());
+        in.readUTF();
+        BuildCoordinator.readProperties(in);
+        out.writeUTF(BuildCoordinator.NEED);
+        out.writeInt(0);
+        out.flush();
+        socket.close();
+
+        startNode("node1", new File(coordinator.getP2DirectorExecutable()));
+        joinCoordinator();
+        assertDistros(1);
+    }
+
+    @Test(timeout = 120000)
+    public void rejectsWrongSecret() throws Exception {
+        startCoordinator(1);
+        Socket socket = connect("intruder", "guess");
+        assertEquals(BuildCoordinator.DENIED, new DataInputStream(socket.getInputStream()).readUTF());
+        socket.close();
+
+        startNode("node1", new File(coordinator.getP2DirectorExecutable()));
+        joinCoordinator();
+        assertDistros(1);
+    }
+
+    @Test
+    public void requiresSecretOnNetwork() throws Exception {
+        TestTrees.createTargets(new File(tmp.getRoot(), "targets"), 1);
+        coordinator.setTargetDirectory(new File(tmp.getRoot(), "targets").getPath());
+        coordinator.setCoordinatorAddress("0.0.0.0");
+        coordinator.setCoordinatorSecret(null);
+        try {
+            coordinator.buildDistros();
+            fail("coordinator accepted nodes without secret");
+        } catch (DistroBuildException e) {
+            assertTrue(e.getMessage().contains("secret"));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void nodesNeedSeparateBuildDirectories() throws Exception {
+        File director = new File(coordinator.getP2DirectorExecutable());
+        File build = startNode("node1", director);
+        Thread.sleep(500);
+        try {
+            new DistroWorkerNode("localhost", port, "node2", SECRET, director.getPath(), build).run();
+            fail("second node started on the same build directory");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("another worker node"));
+        }
+    }
+
+    private void startCoordinator(int units) throws Exception {
+        File targets = new File(tmp.getRoot(), "targets");
+        TestTrees.createTargets(targets, units);
+        coordinator.setTargetDirectory(targets.getPath());
+        coordinatorThread = new Thread("coordinator") {
+            @Override
+            public void run() {
+                try {
+                    coordinator.buildDistros();
+                } catch (Throwable e) {
+                    synchronized (coordinatorErrors) {
+                        coordinatorErrors.add(e);
+                    }
+                }
+            }
+        };
+        coordinatorThread.start();
+        // the nodes retry only every few seconds
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void joinCoordinator() throws InterruptedException {
+        coordinatorThread.join();
+        synchronized (coordinatorErrors) {
+            if (!coordinatorErrors.isEmpty()) {
+                throw new AssertionError(coordinatorErrors.get(0));
+            }
+        }
+    }
+
+    /**
+     * @return the build directory of the node
+     */
+    private File startNode(String name, File director) {
+        final File build = new File(tmp.getRoot(), name);
+        final DistroWorkerNode node = new DistroWorkerNode("localhost", port, name, SECRET, director.getPath(),
+                build);
+        Thread t = new Thread(name) {
+            @Override
+            public void run() {
+                try {
+                    node.run();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                } catch (InterruptedException e) {
+                    // stopped by the test
+                }
+            }
+        };
+        t.start();
+        nodes.add(t);
+        return build;
+    }
+
+    /**
+     * @return a connection which passed the greeting
+     */
+    private Socket connect(String name, String secret) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        String challenge = in.readUTF();
+        out.writeUTF(BuildCoordinator.HELLO);
+        out.writeUTF(name);
+        out.writeUTF(BuildCoordinator.respond(secret, challenge));
+        out.flush();
+        return socket;
+    }
+
+    private void assertDistros(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            File f = new File(dist, "eclipse-SDK-1-linux-gtk-arch" + i + "-distro.zip");
+            assertTrue(f + " not built", TestTrees.isInstalled(f));
+        }
+    }
+}
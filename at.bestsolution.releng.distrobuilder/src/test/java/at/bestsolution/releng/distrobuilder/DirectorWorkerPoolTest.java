@@ -0,0 +1,159 @@
+package at.bestsolution.releng.distrobuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectorWorkerPoolTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private DirectorLog log;
+    private DirectorWorkerPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        log = new DirectorLog("test", tmp.newFile("director.log"), 100, DirectorLog.ConsoleLevel.SUMMARY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        log.close();
+    }
+
+    @Test(timeout = 60000)
+    public void reusesWorker() throws Exception {
+        pool = new DirectorWorkerPool(TestTrees.javaCommand(StubDirectorWorker.class), 1, log);
+        assertEquals(0, pool.run(Arrays.asList("-destination", "a"), log));
+        assertEquals(7, pool.run(Arrays.asList("exit=7"), log));
+        List<String> workers = getWorkers();
+        assertEquals(2, workers.size());
+        assertEquals(workers.get(0), workers.get(1));
+        assertTrue(log.getTail().contains("job 2"));
+    }
+
+    @Test(timeout = 60000)
+    public void replacesDeadWorker() throws Exception {
+        pool = new DirectorWorkerPool(TestTrees.javaCommand(StubDirectorWorker.class), 1, log);
+        assertEquals(0, pool.run(Arrays.asList("sleep=0"), log));
+        try {
+            pool.run(Arrays.asList("crash"), log);
+            fail("worker crash not reported");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, pool.run(Arrays.asList("sleep=0"), log));
+        List<String> workers = getWorkers();
+        assertEquals(3, workers.size());
+        assertNotEquals(workers.get(0), workers.get(2));
+    }
+
+    /**
+     * A job waiting for the only worker gets a new one when the worker dies.
+     */
+    @Test(timeout = 60000)
+    public void waitingJobSurvivesWorkerDeath() throws Exception {
+        pool = new DirectorWorkerPool(TestTrees.javaCommand(StubDirectorWorker.class), 1, log);
+        final List<Object> results = new ArrayList<Object>();
+        Thread crashing = runAsync(Arrays.asList("sleep=1000", "crash"), results);
+        Thread.sleep(500);
+        Thread waiting = runAsync(Arrays.asList("exit=5"), results);
+        crashing.join(30000);
+        waiting.join(30000);
+        assertFalse("job waiting for a worker hangs", waiting.isAlive());
+        assertEquals(2, results.size());
+        assertTrue(results.get(0) instanceof IOException);
+        assertEquals(5, results.get(1));
+    }
+
+    @Test(timeout = 60000)
+    public void brokenWorkerDoesNotBlockPool() throws Exception {
+        pool = new DirectorWorkerPool(TestTrees.javaCommand(StubDirectorWorker.class, "broken"), 1, log);
+        for (int i = 0; i < 2; i++) {
+            try {
+                pool.run(Arrays.asList("sleep=0"), log);
+                fail("broken worker not reported");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("failed to start"));
+            }
+        }
+    }
+
+    /**
+     * Targets are installed by a director process if the workers die.
+     */
+    @Test(timeout = 120000)
+    public void buildFallsBackToDirector() throws Exception {
+        Assume.assumeFalse(TestTrees.isWindows());
+        File targets = tmp.newFolder("targets");
+        TestTrees.createTargets(targets, 2);
+        File dist = new File(tmp.getRoot(), "dist");
+        DistroBuilder builder = new DistroBuilder();
+        builder.setTargetDirectory(targets.getPath());
+        builder.setBuildDirectory(new File(tmp.getRoot(), "build").getPath());
+        builder.setDistDirectory(dist.getPath());
+        builder.setStaticReposDirectory(new File(tmp.getRoot(), "repos").getPath());
+        builder.setP2DirectorExecutable(TestTrees.createDirector(tmp.newFolder("bin"), 0));
+        builder.setDirectorWorkers(1);
+        builder.setDirectorWorkerCommand(join(TestTrees.javaCommand(StubDirectorWorker.class, "crash")));
+        builder.buildDistros();
+        for (int i = 0; i < 2; i++) {
+            assertTrue(TestTrees.isInstalled(new File(dist, "eclipse-SDK-1-linux-gtk-arch" + i + "-distro.zip")));
+        }
+    }
+
+    private Thread runAsync(final List<String> args, final List<Object> results) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                Object result;
+                try {
+                    result = pool.run(args, log);
+                } catch (Exception e) {
+                    result = e;
+                }
+                synchronized (results) {
+                    results.add(result);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private List<String> getWorkers() {
+        List<String> rv = new ArrayList<String>();
+        for (String l : log.getTail()) {
+            if (l.startsWith("worker ")) {
+                rv.add(l.substring("worker ".length()));
+            }
+        }
+        return rv;
+    }
+
+    private static String join(List<String> l) {
+        StringBuilder b = new StringBuilder();
+        for (String s : l) {
+            b.append(s).append(' ');
+        }
+        return b.toString().trim();
+    }
+}
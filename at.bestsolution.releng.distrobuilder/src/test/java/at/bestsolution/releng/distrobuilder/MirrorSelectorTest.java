@@ -0,0 +1,129 @@
+package at.bestsolution.releng.distrobuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MirrorSelectorTest {
+    private static final String LAST_MODIFIED = "Wed, 01 Jan 2020 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<StubRepositoryServer> servers = new ArrayList<StubRepositoryServer>();
+    private File statsFile;
+
+    @Before
+    public void setUp() {
+        statsFile = new File(tmp.getRoot(), "mirrors.properties");
+    }
+
+    @After
+    public void tearDown() {
+        for (StubRepositoryServer s : servers) {
+            s.stop();
+        }
+    }
+
+    private StubRepositoryServer mirror(byte[] content) throws IOException {
+        StubRepositoryServer s = new StubRepositoryServer();
+        s.setContent(content, "\"" + servers.size() + "\"", LAST_MODIFIED);
+        servers.add(s);
+        return s;
+    }
+
+    /**
+     * Records the throughput of <code>mirror</code> by downloading from it.
+     */
+    private void measure(MirrorSelector selector, StubRepositoryServer mirror) throws IOException {
+        DownloadCache cache = new DownloadCache(tmp.newFolder(), 0);
+        RepositoryDownloader downloader = new RepositoryDownloader(cache, 1, selector,
+                Collections.<String, List<String>> emptyMap(), 0, 0);
+        try {
+            downloader.get(mirror.getUrl());
+        } finally {
+            downloader.shutdown();
+            cache.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void ranksUnmeasuredHostsByLatency() throws IOException {
+        byte[] content = StubRepositoryServer.content(1024, 1);
+        StubRepositoryServer slow = mirror(content);
+        StubRepositoryServer fast = mirror(content);
+        slow.delay(500);
+
+        MirrorSelector selector = new MirrorSelector(statsFile);
+        assertEquals(Arrays.asList(fast.getUrl(), slow.getUrl()),
+                selector.rank(Arrays.asList(slow.getUrl(), fast.getUrl())));
+        assertEquals("HEAD", slow.getRequests().get(0).method);
+        assertEquals("HEAD", fast.getRequests().get(0).method);
+    }
+
+    @Test(timeout = 30000)
+    public void ranksByMeasuredThroughput() throws IOException {
+        byte[] content = StubRepositoryServer.content(512 * 1024, 1);
+        StubRepositoryServer slow = mirror(content);
+        StubRepositoryServer fast = mirror(content);
+        slow.throttle(1024 * 1024);
+
+        MirrorSelector selector = new MirrorSelector(statsFile);
+        measure(selector, slow);
+        measure(selector, fast);
+        assertEquals(Arrays.asList(fast.getUrl(), slow.getUrl()),
+                selector.rank(Arrays.asList(slow.getUrl(), fast.getUrl())));
+    }
+
+    @Test(timeout = 30000)
+    public void ranksFailedHostsLast() throws IOException {
+        byte[] content = StubRepositoryServer.content(1024, 1);
+        StubRepositoryServer dead = mirror(content);
+        StubRepositoryServer failing = mirror(content);
+        StubRepositoryServer good = mirror(content);
+        dead.stop();
+        failing.delay(200);
+
+        MirrorSelector selector = new MirrorSelector(statsFile);
+        List<String> ranked = selector.rank(Arrays.asList(dead.getUrl(), failing.getUrl(), good.getUrl()));
+        assertEquals(Arrays.asList(good.getUrl(), failing.getUrl(), dead.getUrl()), ranked);
+
+        selector.failed(failing.getUrl());
+        selector.failed(failing.getUrl());
+        ranked = selector.rank(Arrays.asList(dead.getUrl(), failing.getUrl(), good.getUrl()));
+        assertEquals(Arrays.asList(good.getUrl(), dead.getUrl(), failing.getUrl()), ranked);
+    }
+
+    /**
+     * The throughput measured in one run ranks the mirrors of the next one.
+     */
+    @Test(timeout = 30000)
+    public void keepsStatisticsBetweenRuns() throws IOException {
+        byte[] content = StubRepositoryServer.content(512 * 1024, 1);
+        StubRepositoryServer slow = mirror(content);
+        StubRepositoryServer fast = mirror(content);
+        slow.throttle(1024 * 1024);
+
+        MirrorSelector selector = new MirrorSelector(statsFile);
+        measure(selector, slow);
+        measure(selector, fast);
+        selector.save();
+        assertNotNull(FileDigests.load(statsFile).getProperty(MirrorSelector.host(slow.getUrl()) + ".throughput"));
+
+        selector = new MirrorSelector(statsFile);
+        assertEquals(Arrays.asList(fast.getUrl(), slow.getUrl()),
+                selector.rank(Arrays.asList(slow.getUrl(), fast.getUrl())));
+    }
+}
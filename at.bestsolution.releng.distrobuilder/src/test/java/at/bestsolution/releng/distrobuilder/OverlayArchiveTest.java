@@ -0,0 +1,119 @@
+package at.bestsolution.releng.distrobuilder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OverlayArchiveTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File baseSdk;
+    private File victim;
+
+    @Before
+    public void setUp() throws IOException {
+        baseSdk = tmp.newFile("eclipse-SDK.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(baseSdk));
+        try {
+            for (String d : new String[] { "eclipse/", "eclipse/plugins/" }) {
+                out.putNextEntry(new ZipEntry(d));
+                out.closeEntry();
+            }
+            for (String f : new String[] { "eclipse/eclipse.ini", "eclipse/plugins/org.example.old_1.0.0.jar" }) {
+                out.putNextEntry(new ZipEntry(f));
+                out.write(f.getBytes(UTF8));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        victim = tmp.newFile("victim");
+    }
+
+    /**
+     * @return an overlay of the base SDK adding a plugin and deleting
+     *         <code>deleted</code>
+     */
+    private File createOverlay(String root, String deleted) throws IOException {
+        File dir = new File(tmp.newFolder(), "eclipse");
+        File plugin = new File(dir, "plugins/org.example.new_1.0.0.jar");
+        plugin.getParentFile().mkdirs();
+        Files.write(plugin.toPath(), "new".getBytes(UTF8));
+        Properties p = new Properties();
+        p.setProperty("base", baseSdk.getName());
+        p.setProperty("base.sha256", FileDigests.sha256(baseSdk));
+        p.setProperty("root", root);
+        p.setProperty("deleted.0", deleted);
+        FileDigests.store(p, new File(dir, OverlayArchive.MANIFEST));
+
+        File overlay = new File(tmp.getRoot(), "overlay.zip");
+        new ArchiveIO(1, OverlayArchive.DEFAULT_BLOCK_SIZE).compress(dir, overlay, null);
+        return overlay;
+    }
+
+    private void assertRejected(File overlay) {
+        try {
+            new OverlayArchive(2, 1, OverlayArchive.DEFAULT_BLOCK_SIZE).apply(baseSdk, overlay, new File(
+                    tmp.getRoot(), "distro.zip"), new File(tmp.getRoot(), "work"));
+            fail("applied " + overlay.getName());
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(victim.exists());
+    }
+
+    @Test(timeout = 30000)
+    public void appliesOverlay() throws IOException {
+        File overlay = createOverlay("eclipse", "eclipse/plugins/org.example.old_1.0.0.jar");
+        File distro = new File(tmp.getRoot(), "distro.zip");
+        new OverlayArchive(2, 1, OverlayArchive.DEFAULT_BLOCK_SIZE).apply(baseSdk, overlay, distro, new File(
+                tmp.getRoot(), "work"));
+
+        ZipFile zip = new ZipFile(distro);
+        try {
+            assertNotNull(zip.getEntry("eclipse/eclipse.ini"));
+            assertNotNull(zip.getEntry("eclipse/plugins/org.example.new_1.0.0.jar"));
+            assertNull(zip.getEntry("eclipse/plugins/org.example.old_1.0.0.jar"));
+            assertNull(zip.getEntry("eclipse/" + OverlayArchive.MANIFEST));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void rejectsDeletedPathOutsideWorkDir() throws IOException {
+        assertRejected(createOverlay("eclipse", "../victim"));
+    }
+
+    @Test(timeout = 30000)
+    public void rejectsDeletedPathOutsideRoot() throws IOException {
+        assertRejected(createOverlay("eclipse", "eclipse/../../victim"));
+        assertRejected(createOverlay("eclipse", "eclipse"));
+    }
+
+    @Test(timeout = 30000)
+    public void rejectsRootOutsideWorkDir() throws IOException {
+        assertRejected(createOverlay("../eclipse", "eclipse/plugins"));
+        assertFalse(new File(tmp.getRoot(), "distro.zip").exists());
+    }
+}
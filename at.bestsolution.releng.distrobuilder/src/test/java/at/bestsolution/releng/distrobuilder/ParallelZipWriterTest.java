@@ -0,0 +1,158 @@
+package at.bestsolution.releng.distrobuilder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelZipWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * More than 65535 entries need the zip64 end of central directory.
+     */
+    @Test
+    public void writesManyEntries() throws Exception {
+        File content = tmp.newFile("content.txt");
+        Files.write(content.toPath(), "content".getBytes("UTF-8"));
+        File zip = new File(tmp.getRoot(), "many.zip");
+        int count = 70000;
+        ParallelZipWriter w = new ParallelZipWriter(zip, 2);
+        try {
+            for (int i = 0; i < count; i++) {
+                w.addFile("dir/file" + i + ".txt", content);
+            }
+        } finally {
+            w.close();
+        }
+
+        ZipFile f = new ZipFile(zip);
+        try {
+            assertEquals(count, f.size());
+            assertEquals("content", new String(read(f.getInputStream(f.getEntry("dir/file69999.txt"))), "UTF-8"));
+        } finally {
+            f.close();
+        }
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+        try {
+            int entries = 0;
+            while (in.getNextEntry() != null) {
+                entries++;
+            }
+            assertEquals(count, entries);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Large files are streamed into the archive instead of compressed in
+     * memory.
+     */
+    @Test
+    public void writesLargeEntries() throws Exception {
+        byte[] data = new byte[(int) ParallelZipWriter.LARGE_ENTRY + 1024 * 1024];
+        Random random = new Random(1);
+        for (int i = 0; i < data.length; i += 4096) {
+            data[i] = (byte) random.nextInt();
+        }
+        File large = tmp.newFile("large.bin");
+        Files.write(large.toPath(), data);
+        File small = tmp.newFile("small.txt");
+        Files.write(small.toPath(), "small".getBytes("UTF-8"));
+
+        File zip = new File(tmp.getRoot(), "large.zip");
+        ParallelZipWriter w = new ParallelZipWriter(zip, 2);
+        try {
+            w.addFile("deflated.bin", large);
+            w.addFile("small.txt", small);
+            w.addStoredFile("stored.bin", large);
+        } finally {
+            w.close();
+        }
+
+        ZipFile f = new ZipFile(zip);
+        try {
+            assertEquals(ZipEntry.DEFLATED, f.getEntry("deflated.bin").getMethod());
+            assertArrayEquals(data, read(f.getInputStream(f.getEntry("deflated.bin"))));
+            assertEquals(ZipEntry.STORED, f.getEntry("stored.bin").getMethod());
+            assertArrayEquals(data, read(f.getInputStream(f.getEntry("stored.bin"))));
+        } finally {
+            f.close();
+        }
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+        try {
+            assertEquals("deflated.bin", in.getNextEntry().getName());
+            assertArrayEquals(data, read(in));
+            assertEquals("small.txt", in.getNextEntry().getName());
+            assertEquals("small", new String(read(in), "UTF-8"));
+            assertEquals("stored.bin", in.getNextEntry().getName());
+            assertArrayEquals(data, read(in));
+            assertNull(in.getNextEntry());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The entries of a zip64 SDK can not be reused, it is extracted by
+     * streaming it and recompressed completely.
+     */
+    @Test
+    public void recompressesZip64Sdk() throws Exception {
+        File content = tmp.newFile("content.txt");
+        Files.write(content.toPath(), "content".getBytes("UTF-8"));
+        File sdk = new File(tmp.getRoot(), "eclipse-SDK-1-linux-gtk-x86_64.zip");
+        int count = 70000;
+        ParallelZipWriter w = new ParallelZipWriter(sdk, 2);
+        try {
+            w.addDirectory("eclipse/", content.lastModified());
+            w.addDirectory("eclipse/plugins/", content.lastModified());
+            for (int i = 0; i < count; i++) {
+                w.addFile("eclipse/plugins/file" + i + ".txt", content);
+            }
+        } finally {
+            w.close();
+        }
+
+        ExtractionIndex index = DistroBuilder.createIndex(sdk);
+        assertNull(index.getZipDirectory());
+        File root = new ArchiveExtractor(2).extract(sdk, tmp.newFolder("work"), index);
+        File distro = new File(tmp.getRoot(), "distro.zip");
+        new ArchiveIO(2, ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE).compress(root, distro, index);
+
+        ZipFile f = new ZipFile(distro);
+        try {
+            assertEquals(count + 2, f.size());
+            assertEquals("content", new String(read(f.getInputStream(f.getEntry("eclipse/plugins/file69999.txt"))),
+                    "UTF-8"));
+        } finally {
+            f.close();
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int l;
+        while ((l = in.read(buf)) != -1) {
+            out.write(buf, 0, l);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,271 @@
+package at.bestsolution.releng.distrobuilder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RepositoryDownloaderTest {
+    private static final String LAST_MODIFIED = "Wed, 01 Jan 2020 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private StubRepositoryServer server;
+    private StubRepositoryServer mirror;
+    private File cacheDir;
+    private DownloadCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubRepositoryServer();
+        mirror = new StubRepositoryServer();
+        cacheDir = tmp.newFolder("cache");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        mirror.stop();
+    }
+
+    /**
+     * Downloads the repository with a new cache on the same directory, like
+     * a later build.
+     */
+    private byte[] download() throws IOException {
+        cache = new DownloadCache(cacheDir, 0);
+        RepositoryDownloader downloader = new RepositoryDownloader(cache, 1);
+        try {
+            return Files.readAllBytes(downloader.get(server.getUrl()).toPath());
+        } finally {
+            downloader.shutdown();
+            cache.close();
+        }
+    }
+
+    /**
+     * Downloads the repository of the server, which has the mirror as
+     * second URL.
+     */
+    private byte[] downloadMirrored(long minThroughput, int rangeMirrors) throws IOException {
+        List<String> urls = new ArrayList<String>();
+        urls.add(server.getUrl());
+        urls.add(mirror.getUrl());
+        cache = new DownloadCache(cacheDir, 0);
+        RepositoryDownloader downloader = new RepositoryDownloader(cache, 1, null, Collections.singletonMap(
+                server.getUrl(), urls), minThroughput, rangeMirrors);
+        try {
+            return Files.readAllBytes(downloader.get(server.getUrl()).toPath());
+        } finally {
+            downloader.shutdown();
+            cache.close();
+        }
+    }
+
+    /**
+     * Serves <code>content</code> from the server and the mirror, with the
+     * same modification time but entity tags of their own.
+     */
+    private void setMirroredContent(byte[] content) {
+        server.setContent(content, "\"primary\"", LAST_MODIFIED);
+        mirror.setContent(content, "\"mirror\"", LAST_MODIFIED);
+    }
+
+    private static int countRanges(StubRepositoryServer s) {
+        int count = 0;
+        for (StubRepositoryServer.Request r : s.getRequests()) {
+            if (r.status == 206) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private StubRepositoryServer.Request lastRequest() {
+        List<StubRepositoryServer.Request> requests = server.getRequests();
+        return requests.get(requests.size() - 1);
+    }
+
+    @Test(timeout = 30000)
+    public void revalidatesWithEntityTag() throws IOException {
+        byte[] content = StubRepositoryServer.content(300 * 1024, 1);
+        server.setContent(content, "\"v1\"", LAST_MODIFIED);
+        assertArrayEquals(content, download());
+        assertEquals(1, cache.getMisses());
+
+        assertArrayEquals(content, download());
+        assertEquals("\"v1\"", lastRequest().header("If-None-Match"));
+        assertEquals(304, lastRequest().status);
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test(timeout = 30000)
+    public void revalidatesWithLastModified() throws IOException {
+        byte[] content = StubRepositoryServer.content(300 * 1024, 1);
+        server.setContent(content, null, LAST_MODIFIED);
+        download();
+
+        assertArrayEquals(content, download());
+        assertNull(lastRequest().header("If-None-Match"));
+        assertEquals(LAST_MODIFIED, lastRequest().header("If-Modified-Since"));
+        assertEquals(304, lastRequest().status);
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test(timeout = 30000)
+    public void downloadsChangedRepository() throws IOException {
+        server.setContent(StubRepositoryServer.content(300 * 1024, 1), "\"v1\"", LAST_MODIFIED);
+        download();
+
+        byte[] changed = StubRepositoryServer.content(200 * 1024, 2);
+        server.setContent(changed, "\"v2\"", "Thu, 02 Jan 2020 00:00:00 GMT");
+        assertArrayEquals(changed, download());
+        assertEquals(200, lastRequest().status);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test(timeout = 30000)
+    public void retriesFailedRequests() throws IOException {
+        byte[] content = StubRepositoryServer.content(300 * 1024, 1);
+        server.setContent(content, "\"v1\"", LAST_MODIFIED);
+        server.fail(2);
+        assertArrayEquals(content, download());
+        assertEquals(3, server.getRequests().size());
+    }
+
+    @Test(timeout = 30000)
+    public void givesUpAfterThreeAttempts() throws IOException {
+        server.setContent(StubRepositoryServer.content(300 * 1024, 1), "\"v1\"", LAST_MODIFIED);
+        server.fail(3);
+        try {
+            download();
+            fail("download succeeded");
+        } catch (IOException e) {
+            assertEquals(3, server.getRequests().size());
+        }
+    }
+
+    /**
+     * The retries after broken off transfers only ask for the missing part.
+     */
+    @Test(timeout = 30000)
+    public void resumesInterruptedTransfer() throws IOException {
+        byte[] content = StubRepositoryServer.content(1024 * 1024, 1);
+        server.setContent(content, "\"v1\"", LAST_MODIFIED);
+        server.truncate(400 * 1024);
+        assertArrayEquals(content, download());
+
+        List<StubRepositoryServer.Request> requests = server.getRequests();
+        assertEquals(3, requests.size());
+        assertNull(requests.get(0).header("Range"));
+        for (int i = 1; i < requests.size(); i++) {
+            assertEquals("bytes=" + i * 400 * 1024 + "-", requests.get(i).header("Range"));
+            assertEquals("\"v1\"", requests.get(i).header("If-Range"));
+            assertEquals(206, requests.get(i).status);
+        }
+    }
+
+    /**
+     * A later build resumes the partial download of an earlier one, unless
+     * the repository has changed in between.
+     */
+    @Test(timeout = 30000)
+    public void restartsTransferOfChangedRepository() throws IOException {
+        server.setContent(StubRepositoryServer.content(1024 * 1024, 1), "\"v1\"", LAST_MODIFIED);
+        server.truncate(100 * 1024);
+        try {
+            download();
+            fail("download succeeded");
+        } catch (IOException e) {
+            // the part file is kept
+        }
+
+        byte[] changed = StubRepositoryServer.content(1024 * 1024, 2);
+        server.setContent(changed, "\"v2\"", "Thu, 02 Jan 2020 00:00:00 GMT");
+        server.truncate(-1);
+        assertArrayEquals(changed, download());
+        assertEquals("bytes=" + 300 * 1024 + "-", lastRequest().header("Range"));
+        assertEquals("\"v1\"", lastRequest().header("If-Range"));
+        assertEquals(200, lastRequest().status);
+    }
+
+    /**
+     * A mirror taking over resumes the part file by modification time, the
+     * entity tags of mirrors differ.
+     */
+    @Test(timeout = 30000)
+    public void failsOverToNextMirror() throws IOException {
+        byte[] content = StubRepositoryServer.content(1024 * 1024, 1);
+        setMirroredContent(content);
+        server.truncate(400 * 1024);
+        assertArrayEquals(content, downloadMirrored(0, 0));
+
+        assertEquals(1, server.getRequests().size());
+        StubRepositoryServer.Request r = mirror.getRequests().get(0);
+        assertEquals("bytes=" + 400 * 1024 + "-", r.header("Range"));
+        assertEquals(LAST_MODIFIED, r.header("If-Range"));
+        assertEquals(206, r.status);
+    }
+
+    @Test(timeout = 30000)
+    public void failsOverFromUnreachableMirror() throws IOException {
+        byte[] content = StubRepositoryServer.content(300 * 1024, 1);
+        setMirroredContent(content);
+        server.stop();
+        assertArrayEquals(content, downloadMirrored(0, 0));
+        assertEquals(200, mirror.getRequests().get(0).status);
+    }
+
+    /**
+     * A transfer slower than the minimum throughput for a whole window moves
+     * to the next mirror.
+     */
+    @Test(timeout = 60000)
+    public void movesOnFromSlowMirror() throws IOException {
+        byte[] content = StubRepositoryServer.content(2 * 1024 * 1024, 1);
+        setMirroredContent(content);
+        server.throttle(64 * 1024);
+        assertArrayEquals(content, downloadMirrored(256 * 1024, 0));
+
+        StubRepositoryServer.Request r = mirror.getRequests().get(0);
+        assertEquals(LAST_MODIFIED, r.header("If-Range"));
+        assertEquals(206, r.status);
+    }
+
+    @Test(timeout = 30000)
+    public void splitsLargeFileAcrossMirrors() throws IOException {
+        byte[] content = StubRepositoryServer.content(9 * 1024 * 1024, 1);
+        setMirroredContent(content);
+        assertArrayEquals(content, downloadMirrored(0, 2));
+        assertEquals(3, countRanges(server) + countRanges(mirror));
+        assertEquals("HEAD", mirror.getRequests().get(0).method);
+    }
+
+    /**
+     * The ranges of a mirror dropping out are fetched from the others.
+     */
+    @Test(timeout = 30000)
+    public void splitDownloadSurvivesMirrorFailure() throws IOException {
+        byte[] content = StubRepositoryServer.content(9 * 1024 * 1024, 1);
+        setMirroredContent(content);
+        mirror.truncate(64 * 1024);
+        assertArrayEquals(content, downloadMirrored(0, 2));
+        assertEquals(3, countRanges(server));
+    }
+}
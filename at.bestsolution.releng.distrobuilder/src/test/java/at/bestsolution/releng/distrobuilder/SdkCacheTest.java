@@ -0,0 +1,88 @@
+package at.bestsolution.releng.distrobuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SdkCacheTest {
+    private static final String[] FILES = { "eclipse/eclipse", "eclipse/eclipse.ini",
+            "eclipse/plugins/org.example.core_1.0.0.jar", "eclipse/plugins/org.example.launcher_1.0.0/launcher.so",
+            "eclipse/plugins/org.example.launcher_1.0.0/about.html",
+            "eclipse/features/org.example.feature_1.0.0/feature.xml" };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File archive;
+    private SdkCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeFalse(TestTrees.isWindows());
+        File tree = tmp.newFolder("sdk");
+        for (String name : FILES) {
+            File f = new File(tree, name);
+            f.getParentFile().mkdirs();
+            Files.write(f.toPath(), name.getBytes("UTF-8"));
+            f.setExecutable(name.equals("eclipse/eclipse") || name.endsWith(".so"));
+        }
+        archive = new File(tmp.getRoot(), "eclipse-SDK-1-linux-gtk-x86_64.zip");
+        ParallelZipWriter w = new ParallelZipWriter(archive, 1);
+        try {
+            for (String name : FILES) {
+                w.addFile(name, new File(tree, name));
+            }
+        } finally {
+            w.close();
+        }
+        cache = new SdkCache(tmp.newFolder("cache"), new FileDigests(new File(tmp.getRoot(), "digests")),
+                new ArchiveExtractor(1));
+    }
+
+    /**
+     * Only bundle jars and feature files are shared with the cache.
+     */
+    @Test
+    public void linksOnlyImmutableFiles() throws IOException {
+        File work = new File(tmp.getRoot(), "work");
+        cache.materialize(archive, work, null);
+        File tree = cache.get(archive).getTree();
+        for (String name : FILES) {
+            boolean linked = name.endsWith(".jar") || name.startsWith("eclipse/features/");
+            assertEquals(name, linked, inode(new File(work, name)) == inode(new File(tree, name)));
+        }
+    }
+
+    /**
+     * A touchpoint changing the permissions of a linked file invalidates the
+     * cache entry.
+     */
+    @Test
+    public void detectsChangedPermissions() throws IOException {
+        File work = new File(tmp.getRoot(), "work");
+        cache.materialize(archive, work, null);
+        File tree = cache.get(archive).getTree();
+        File jar = new File(work, "eclipse/plugins/org.example.core_1.0.0.jar");
+        long lastModified = jar.lastModified();
+        Files.setPosixFilePermissions(jar.toPath(), PosixFilePermissions.fromString("rwxr-xr-x"));
+        jar.setLastModified(lastModified);
+
+        cache.materialize(archive, new File(tmp.getRoot(), "work2"), null);
+        assertEquals(2, cache.getMisses());
+        assertNotEquals(inode(jar), inode(new File(tree, "eclipse/plugins/org.example.core_1.0.0.jar")));
+    }
+
+    private static long inode(File f) throws IOException {
+        return ((Number) Files.getAttribute(f.toPath(), "unix:ino")).longValue();
+    }
+}
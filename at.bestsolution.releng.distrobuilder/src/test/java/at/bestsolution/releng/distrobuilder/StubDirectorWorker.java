@@ -0,0 +1,70 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Director worker speaking the protocol of {@link DirectorWorkerPool}
+ * without running a director.
+ * <p>
+ * Every job prints the id of the worker and the number of jobs it ran, then
+ * follows its arguments in order: <code>sleep=&lt;ms&gt;</code> delays the
+ * job, <code>exit=&lt;code&gt;</code> ends it with that code and
+ * <code>crash</code> terminates the worker in the middle of the job. Started
+ * with the argument <code>broken</code> the worker never becomes ready, with
+ * <code>crash</code> it crashes on every job.
+ * </p>
+ */
+public class StubDirectorWorker {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean crash = args.length > 0 && args[0].equals("crash");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, UTF8));
+        if (args.length > 0 && args[0].equals("broken")) {
+            out.println("Unable to start the framework");
+            out.flush();
+            System.exit(1);
+        }
+        out.println(DirectorWorkerPool.READY);
+        out.flush();
+
+        String id = UUID.randomUUID().toString();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, UTF8));
+        int jobs = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            int count = Integer.parseInt(line.substring(DirectorWorkerPool.INSTALL.length()).trim());
+            List<String> job = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                job.add(in.readLine());
+            }
+            jobs++;
+            out.println(DirectorWorkerPool.OUT + "worker " + id);
+            out.println(DirectorWorkerPool.ERR + "job " + jobs);
+            out.flush();
+            if (crash) {
+                System.exit(3);
+            }
+            int rv = 0;
+            for (String arg : job) {
+                if (arg.equals("crash")) {
+                    System.exit(3);
+                } else if (arg.startsWith("sleep=")) {
+                    Thread.sleep(Long.parseLong(arg.substring("sleep=".length())));
+                } else if (arg.startsWith("exit=")) {
+                    rv = Integer.parseInt(arg.substring("exit=".length()));
+                }
+            }
+            out.println(DirectorWorkerPool.EXIT + rv);
+            out.flush();
+        }
+    }
+}
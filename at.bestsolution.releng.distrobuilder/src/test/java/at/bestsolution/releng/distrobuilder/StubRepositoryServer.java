@@ -0,0 +1,252 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server on the loopback interface serving one repository archive the
+ * way update sites do.
+ * <p>
+ * The archive is sent with its <code>ETag</code> and
+ * <code>Last-Modified</code> validators, conditional requests matching them
+ * are answered with <code>304</code> and range requests with
+ * <code>206</code> if their <code>If-Range</code> validator is current.
+ * Failures can be scheduled: {@link #fail(int)} answers the next requests
+ * with <code>503</code>, {@link #truncate(long)} breaks off the
+ * transfers. {@link #delay(long)} and {@link #throttle(int)} make it a slow
+ * mirror. Every request is recorded.
+ * </p>
+ */
+class StubRepositoryServer {
+    static final String PATH = "/repository.zip";
+
+    private final HttpServer server;
+    private byte[] content;
+    private String etag;
+    private String lastModified;
+    private int failures;
+    private long truncate = -1;
+    private long delay;
+    private int bytesPerSecond;
+    private final List<Request> requests = new ArrayList<Request>();
+
+    /**
+     * A request as received and the status it was answered with.
+     */
+    static class Request {
+        final String method;
+        final Headers headers;
+        int status;
+
+        Request(String method, Headers headers) {
+            this.method = method;
+            this.headers = headers;
+        }
+
+        String header(String name) {
+            return headers.getFirst(name);
+        }
+    }
+
+    StubRepositoryServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return random content of <code>length</code> bytes, the same for the
+     *         same <code>seed</code>
+     */
+    static byte[] content(int length, long seed) {
+        byte[] b = new byte[length];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * Replaces the archive served.
+     *
+     * @param etag
+     *            entity tag including the quotes or <code>null</code>
+     * @param lastModified
+     *            HTTP date or <code>null</code>
+     */
+    synchronized void setContent(byte[] content, String etag, String lastModified) {
+        this.content = content;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Answers the next <code>count</code> requests with <code>503</code>.
+     */
+    synchronized void fail(int count) {
+        failures = count;
+    }
+
+    /**
+     * Closes the connection of every transfer after <code>bytes</code> bytes
+     * of the body, <code>-1</code> to send the bodies in full.
+     */
+    synchronized void truncate(long bytes) {
+        truncate = bytes;
+    }
+
+    /**
+     * Waits <code>millis</code> ms before answering a request.
+     */
+    synchronized void delay(long millis) {
+        delay = millis;
+    }
+
+    /**
+     * Limits the bodies to <code>bytesPerSecond</code>, <code>0</code> to
+     * send them as fast as possible.
+     */
+    synchronized void throttle(int bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    synchronized List<Request> getRequests() {
+        return new ArrayList<Request>(requests);
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        Request r = new Request(exchange.getRequestMethod(), exchange.getRequestHeaders());
+        byte[] body;
+        long from;
+        long to;
+        long limit;
+        int rate;
+        long wait;
+        synchronized (this) {
+            requests.add(r);
+            wait = delay;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        synchronized (this) {
+            if (failures > 0) {
+                failures--;
+                r.status = 503;
+                exchange.sendResponseHeaders(r.status, -1);
+                return;
+            }
+            Headers h = exchange.getResponseHeaders();
+            if (etag != null) {
+                h.set("ETag", etag);
+            }
+            if (lastModified != null) {
+                h.set("Last-Modified", lastModified);
+            }
+            h.set("Accept-Ranges", "bytes");
+            if (isNotModified(r)) {
+                r.status = 304;
+                exchange.sendResponseHeaders(r.status, -1);
+                return;
+            }
+            body = content;
+            from = 0;
+            to = body.length - 1;
+            String range = r.header("Range");
+            String ifRange = r.header("If-Range");
+            if (range != null && range.startsWith("bytes=")
+                    && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified))) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                from = Long.parseLong(bounds[0]);
+                if (bounds[1].length() > 0) {
+                    to = Math.min(to, Long.parseLong(bounds[1]));
+                }
+                h.set("Content-Range", "bytes " + from + "-" + to + "/" + body.length);
+                r.status = 206;
+            } else {
+                r.status = 200;
+            }
+            limit = truncate;
+            rate = bytesPerSecond;
+        }
+        long length = to - from + 1;
+        if (r.method.equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(r.status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(r.status, length);
+        OutputStream out = exchange.getResponseBody();
+        if (limit >= 0 && limit < length) {
+            write(out, body, from, limit, rate);
+            // the server drops the connection of a failed exchange, the
+            // client sees a premature end of the transfer
+            throw new IOException("Transfer broken off");
+        }
+        write(out, body, from, length, rate);
+        out.close();
+    }
+
+    private static void write(OutputStream out, byte[] body, long from, long length, int rate)
+            throws IOException {
+        if (rate <= 0) {
+            out.write(body, (int) from, (int) length);
+            out.flush();
+            return;
+        }
+        int chunk = Math.max(1, rate / 20);
+        long start = System.currentTimeMillis();
+        for (long sent = 0; sent < length;) {
+            int n = (int) Math.min(chunk, length - sent);
+            out.write(body, (int) (from + sent), n);
+            out.flush();
+            sent += n;
+            long wait = start + sent * 1000 / rate - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    private boolean isNotModified(Request r) {
+        String ifNoneMatch = r.header("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals(etag);
+        }
+        String ifModifiedSince = r.header("If-Modified-Since");
+        return ifModifiedSince != null && ifModifiedSince.equals(lastModified);
+    }
+}
@@ -0,0 +1,95 @@
+package at.bestsolution.releng.distrobuilder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TarEntryWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File tree;
+    private File small;
+    private File large;
+    private File archived;
+
+    @Before
+    public void setUp() throws IOException {
+        tree = tmp.newFolder("eclipse");
+        small = write("plugins/org.example.small_1.0.0.jar", 64 * 1024);
+        large = write("plugins/org.example.large_1.0.0.jar", (int) ParallelZipWriter.LARGE_ENTRY + 1024 * 1024);
+        archived = write("plugins/org.example.data_1.0.0/data.zip", (int) ParallelZipWriter.LARGE_ENTRY + 1024 * 1024);
+    }
+
+    /**
+     * @return a file of <code>length</code> bytes which deflates to about
+     *         half its size
+     */
+    private File write(String name, int length) throws IOException {
+        byte[] b = new byte[length];
+        Random r = new Random(length);
+        for (int i = 0; i < length; i += 2) {
+            b[i] = (byte) r.nextInt();
+        }
+        File f = new File(tree, name);
+        f.getParentFile().mkdirs();
+        Files.write(f.toPath(), b);
+        return f;
+    }
+
+    private void assertExtracted(File archive) throws IOException {
+        File dir = tmp.newFolder("extract");
+        new ArchiveExtractor(1).extract(archive, dir, null);
+        for (File f : new File[] { small, large, archived }) {
+            String name = tree.toPath().relativize(f.toPath()).toString();
+            assertArrayEquals(name, Files.readAllBytes(f.toPath()),
+                    Files.readAllBytes(new File(new File(dir, "eclipse"), name).toPath()));
+        }
+    }
+
+    /**
+     * Files above {@link ParallelZipWriter#LARGE_ENTRY} are streamed into
+     * the gzip stream instead of being deflated into the cache in memory.
+     */
+    @Test(timeout = 60000)
+    public void streamsLargeFilesPastEntryCache() throws IOException {
+        EntryCache cache = new EntryCache(tmp.newFolder("cache"));
+        CodecSettings settings = new CodecSettings();
+        settings.setThreads(2);
+        settings.setCache(cache);
+        File archive = new File(tmp.getRoot(), "distro.tar.gz");
+        new ArchiveIO(settings).compress(tree, archive, null);
+
+        assertEquals(1, cache.getMisses());
+        assertExtracted(archive);
+    }
+
+    /**
+     * Archives are stored block by block, not deflated into memory as a
+     * whole.
+     */
+    @Test(timeout = 60000)
+    public void storesLargeArchives() throws IOException {
+        CodecSettings settings = new CodecSettings();
+        settings.setThreads(2);
+        File deflated = new File(tmp.getRoot(), "deflated.tar.gz");
+        new ArchiveIO(settings).compress(tree, deflated, null);
+        settings.setStoreIncompressible(true);
+        File archive = new File(tmp.getRoot(), "distro.tar.gz");
+        new ArchiveIO(settings).compress(tree, archive, null);
+
+        // the content deflates to about half its size
+        assertTrue(archive.length() - deflated.length() > archived.length() / 3);
+        assertExtracted(archive);
+    }
+}
@@ -0,0 +1,128 @@
+package at.bestsolution.releng.distrobuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Creates the inputs of small builds: SDK archives, a director script and
+ * the command line of Java helpers.
+ */
+class TestTrees {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Creates <code>count</code> targets of version <code>1</code> with
+     * different SDKs below <code>targetDir</code>, so every target is a work
+     * unit of its own.
+     */
+    static void createTargets(File targetDir, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            String arch = "arch" + i;
+            File dir = new File(targetDir, "1/linux-gtk/" + arch);
+            dir.mkdirs();
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(new File(dir, "eclipse-SDK-1-linux-gtk-"
+                    + arch + ".zip")));
+            try {
+                for (String d : new String[] { "eclipse/", "eclipse/plugins/", "eclipse/features/",
+                        "eclipse/features/org.example.feature_1.0.0/" }) {
+                    out.putNextEntry(new ZipEntry(d));
+                    out.closeEntry();
+                }
+                put(out, "eclipse/eclipse.ini", "-vmargs\n-Xmx512m\n-Darch=" + arch + "\n");
+                put(out, "eclipse/plugins/org.example.core_1.0.0.jar", "core " + arch);
+                put(out, "eclipse/features/org.example.feature_1.0.0/feature.xml", "<feature/>");
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static void put(ZipOutputStream out, String name, String content) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(content.getBytes(UTF8));
+        out.closeEntry();
+    }
+
+    /**
+     * @return whether <code>distro</code> contains the plugin added by the
+     *         {@link #createDirector(File, int) director}
+     */
+    static boolean isInstalled(File distro) throws IOException {
+        if (!distro.isFile()) {
+            return false;
+        }
+        ZipFile zip = new ZipFile(distro);
+        try {
+            return zip.getEntry("eclipse/plugins/org.example.installed_1.0.0.jar") != null;
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Writes a director script which adds a plugin to the destination, after
+     * waiting <code>delay</code> seconds.
+     *
+     * @return the path of the script
+     */
+    static String createDirector(File dir, int delay) throws IOException {
+        dir.mkdirs();
+        File f = new File(dir, "director.sh");
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), UTF8);
+        try {
+            w.write("#!/bin/sh\n"
+                    + "dest=\"\"\n"
+                    + "while [ $# -gt 0 ]; do\n"
+                    + "  if [ \"$1\" = \"-destination\" ]; then dest=\"$2\"; shift; fi\n"
+                    + "  shift\n"
+                    + "done\n"
+                    + "[ -n \"$dest\" ] || exit 1\n"
+                    + "sleep " + delay + "\n"
+                    + "mkdir -p \"$dest/plugins\"\n"
+                    + "echo installed > \"$dest/plugins/org.example.installed_1.0.0.jar\"\n"
+                    + "echo \"installed into $dest\"\n");
+        } finally {
+            w.close();
+        }
+        f.setExecutable(true);
+        return f.getAbsolutePath();
+    }
+
+    /**
+     * @return the command line running <code>main</code> in a new JVM with
+     *         the classes of the build and the tests
+     */
+    static List<String> javaCommand(Class<?> main, String... args) {
+        List<String> rv = new ArrayList<String>();
+        rv.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+        rv.add("-cp");
+        rv.add(location(main) + File.pathSeparator + location(DistroBuilder.class));
+        rv.add(main.getName());
+        for (String arg : args) {
+            rv.add(arg);
+        }
+        return rv;
+    }
+
+    private static String location(Class<?> c) {
+        try {
+            return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static boolean isWindows() {
+        return File.separatorChar == '\\';
+    }
+}